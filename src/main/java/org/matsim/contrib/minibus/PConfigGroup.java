@@ -30,6 +30,8 @@ import org.matsim.contrib.minibus.operator.BasicOperator;
 import org.matsim.contrib.minibus.operator.WelfareCarefulMultiPlanOperator;
 import org.matsim.contrib.minibus.replanning.ReduceStopsToBeServedRFare;
 import org.matsim.contrib.minibus.replanning.ReduceTimeServedRFare;
+import org.matsim.contrib.minibus.routeProvider.PNetworkRouter;
+import org.matsim.contrib.minibus.schedule.PStopTwins;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigGroup;
 import org.matsim.core.utils.misc.StringUtils;
@@ -106,10 +108,19 @@ public final class PConfigGroup extends ConfigGroup{
 	private static final String PT_ROUTER = "ptRouter";
 	private static final String OPERATIONMODE = "OperationMode";
 	private static final String TOPOTYPESFORSTOPS = "TopoTypesForStops";
+	private static final String USE_PARALLEL_REPLANNING = "useParallelReplanning";
+	private static final String ADD_ONLY_SERVED_PSTOPS = "addOnlyServedPStops";
+	private static final String SCHEDULE_OUTPUT_MODE = "scheduleOutputMode";
+	private static final String CHECKPOINT_INTERVAL = "checkpointInterval";
+	private static final String RESUME_FROM_CHECKPOINT = "resumeFromCheckpoint";
+	private static final String USE_ADAPTIVE_STRATEGY_WEIGHTS = "useAdaptiveStrategyWeights";
+	private static final String ADAPTIVE_STRATEGY_WEIGHTS_LEARNING_RATE = "adaptiveStrategyWeightsLearningRate";
 	
 	private static final String PMODULE = "Module_";
 	private static final String PMODULE_PROBABILITY = "ModuleProbability_";
 	private static final String PMODULE_DISABLEINITERATION = "ModuleDisableInIteration_";
+	private static final String PMODULE_MIN_WEIGHT = "ModuleMinWeight_";
+	private static final String PMODULE_MAX_WEIGHT = "ModuleMaxWeight_";
 	private static final String PMODULE_PARAMETER = "ModuleParameter_";
 	
 	private static final String PVEHICLE = "PVeh_";
@@ -152,6 +163,8 @@ public final class PConfigGroup extends ConfigGroup{
 	private double subsidyPerBoardingPassenger = 0.0;
 	private String subsidizedStopFile = null;
 	private Network pNetwork = null;
+	private volatile PNetworkRouter pNetworkRouter = null;
+	private PStopTwins pStopTwins = null;
 	private double earningsPerKilometerAndPassenger = 0.50;
 	private double pricePerVehicleBought = 1000.0;
 	private double pricePerVehicleSold = 1000.0;
@@ -178,6 +191,13 @@ public final class PConfigGroup extends ConfigGroup{
 	private String ptRouter = "none set";
 	private String operationMode = TransportMode.pt;
 	private String topoTypesForStops = null;
+	private boolean useParallelReplanning = false;
+	private boolean addOnlyServedPStops = false;
+	private String scheduleOutputMode = "full";
+	private int checkpointInterval = 0;
+	private String resumeFromCheckpoint = null;
+	private boolean useAdaptiveStrategyWeights = false;
+	private double adaptiveStrategyWeightsLearningRate = 0.2;
 	
 	private boolean welfareMaximization = false;
 	private String initialScoresFile = null;
@@ -189,6 +209,7 @@ public final class PConfigGroup extends ConfigGroup{
 	
 	// Vehicles
 	private final LinkedHashMap<Id<PVehicleSettings>, PVehicleSettings> pVehicleTypes = new LinkedHashMap<>();
+	private volatile PVehicleTypeRegistry pVehicleTypeRegistry = null;
 	
 	
 	public PConfigGroup(){
@@ -310,6 +331,20 @@ public final class PConfigGroup extends ConfigGroup{
 			this.operationMode = value;
 		} else if(TOPOTYPESFORSTOPS.equals(key)){
 			this.topoTypesForStops = value;
+		} else if (USE_PARALLEL_REPLANNING.equals(key)){
+			this.useParallelReplanning = Boolean.parseBoolean(value);
+		} else if (ADD_ONLY_SERVED_PSTOPS.equals(key)){
+			this.addOnlyServedPStops = Boolean.parseBoolean(value);
+		} else if (SCHEDULE_OUTPUT_MODE.equals(key)){
+			this.scheduleOutputMode = value;
+		} else if (CHECKPOINT_INTERVAL.equals(key)){
+			this.checkpointInterval = Integer.parseInt(value);
+		} else if (RESUME_FROM_CHECKPOINT.equals(key)){
+			this.resumeFromCheckpoint = value;
+		} else if (USE_ADAPTIVE_STRATEGY_WEIGHTS.equals(key)){
+			this.useAdaptiveStrategyWeights = Boolean.parseBoolean(value);
+		} else if (ADAPTIVE_STRATEGY_WEIGHTS_LEARNING_RATE.equals(key)){
+			this.adaptiveStrategyWeightsLearningRate = Double.parseDouble(value);
 		}else if (key != null && key.startsWith(PMODULE)) {
 			PStrategySettings settings = getStrategySettings(Id.create(key.substring(PMODULE.length()), PStrategySettings.class), true);
 			settings.setModuleName(value);
@@ -319,6 +354,12 @@ public final class PConfigGroup extends ConfigGroup{
 		} else if (key != null && key.startsWith(PMODULE_DISABLEINITERATION)) {
 			PStrategySettings settings = getStrategySettings(Id.create(key.substring(PMODULE_DISABLEINITERATION.length()), PStrategySettings.class), true);
 			settings.setDisableInIteration(Integer.parseInt(value));
+		} else if (key != null && key.startsWith(PMODULE_MIN_WEIGHT)) {
+			PStrategySettings settings = getStrategySettings(Id.create(key.substring(PMODULE_MIN_WEIGHT.length()), PStrategySettings.class), true);
+			settings.setMinWeight(Double.parseDouble(value));
+		} else if (key != null && key.startsWith(PMODULE_MAX_WEIGHT)) {
+			PStrategySettings settings = getStrategySettings(Id.create(key.substring(PMODULE_MAX_WEIGHT.length()), PStrategySettings.class), true);
+			settings.setMaxWeight(Double.parseDouble(value));
 		} else if (key != null && key.startsWith(PMODULE_PARAMETER)) {
 			PStrategySettings settings = getStrategySettings(Id.create(key.substring(PMODULE_PARAMETER.length()), PStrategySettings.class), true);
 			settings.setParameters(value);
@@ -421,6 +462,13 @@ public final class PConfigGroup extends ConfigGroup{
 		map.put(PT_ROUTER, this.ptRouter);
 		map.put(OPERATIONMODE, this.operationMode);
 		map.put(TOPOTYPESFORSTOPS, this.topoTypesForStops);
+		map.put(USE_PARALLEL_REPLANNING, Boolean.toString(this.useParallelReplanning));
+		map.put(ADD_ONLY_SERVED_PSTOPS, Boolean.toString(this.addOnlyServedPStops));
+		map.put(SCHEDULE_OUTPUT_MODE, this.scheduleOutputMode);
+		map.put(CHECKPOINT_INTERVAL, Integer.toString(this.checkpointInterval));
+		map.put(RESUME_FROM_CHECKPOINT, this.resumeFromCheckpoint);
+		map.put(USE_ADAPTIVE_STRATEGY_WEIGHTS, Boolean.toString(this.useAdaptiveStrategyWeights));
+		map.put(ADAPTIVE_STRATEGY_WEIGHTS_LEARNING_RATE, Double.toString(this.adaptiveStrategyWeightsLearningRate));
 		map.put(WELFARE_MAXIMIZATION, Boolean.toString(this.welfareMaximization));
 		map.put(INITIAL_SCORES_FILE, this.initialScoresFile);
 		
@@ -428,6 +476,8 @@ public final class PConfigGroup extends ConfigGroup{
 			map.put(PMODULE + entry.getKey().toString(), entry.getValue().getModuleName());
 			map.put(PMODULE_PROBABILITY + entry.getKey().toString(), Double.toString(entry.getValue().getProbability()));
 			map.put(PMODULE_DISABLEINITERATION + entry.getKey().toString(), Integer.toString(entry.getValue().getDisableInIteration()));
+			map.put(PMODULE_MIN_WEIGHT + entry.getKey().toString(), Double.toString(entry.getValue().getMinWeight()));
+			map.put(PMODULE_MAX_WEIGHT + entry.getKey().toString(), Double.toString(entry.getValue().getMaxWeight()));
 			map.put(PMODULE_PARAMETER + entry.getKey().toString(), entry.getValue().getParametersAsString());
 		}
 		
@@ -500,6 +550,13 @@ public final class PConfigGroup extends ConfigGroup{
 		map.put(PT_ROUTER, "Uses a experimental connection scan algorithm for routing if set to 'raptor'. Defaults to MATSim standard router.");
 		map.put(OPERATIONMODE, "the mode of transport in which the paratransit operates");
 		map.put(TOPOTYPESFORSTOPS, "comma separated integer-values, as used in NetworkCalcTopoTypes");
+		map.put(USE_PARALLEL_REPLANNING, "Replans the operators and initializes new operators concurrently using global.numberOfThreads threads. Each operator draws from its own random number generator seeded in a fixed order, thus results stay reproducible for a given random seed. Default is false.");
+		map.put(ADD_ONLY_SERVED_PSTOPS, "Adds only the paratransit stops served by at least one operator to the transit schedule used for routing. Reduces the work of the transit router on large networks. Default is false, i.e. all potential paratransit stops are added.");
+		map.put(SCHEDULE_OUTPUT_MODE, "Transit schedule and vehicles written each iteration, on a background thread. full: the whole schedule and all vehicles (default). paratransitOnly: base schedule and vehicles once, paratransit lines and vehicles each iteration. delta: base schedule and vehicles once, binary delta of the paratransit lines each iteration. Use PScheduleRebuilder to restore the full files of an iteration.");
+		map.put(CHECKPOINT_INTERVAL, "Writes a binary checkpoint of the paratransit state (stops, operators, plans, time slot weights, strategy weights, offsets of the route provider, state of the paratransit random number generator) after the scoring of every n-th iteration. 0 disables checkpoints (default). The state of the agents and of other modules is not part of it. With adaptive strategy weights, runs are not reproducible anyway, since the weights depend on the CPU time measured.");
+		map.put(USE_ADAPTIVE_STRATEGY_WEIGHTS, "Adapts the weights of the strategies after each scoring. Weights shift towards the strategies whose plans improved the score per vehicle most per CPU second spent in the strategy, within ModuleMinWeight and ModuleMaxWeight. Since the CPU time measured varies, runs are not exactly reproducible with this option. Default is false, i.e. the weights configured are used throughout.");
+		map.put(ADAPTIVE_STRATEGY_WEIGHTS_LEARNING_RATE, "Share of the last iteration in the smoothed gain per CPU second of each strategy, between 0 and 1. Default is 0.2.");
+		map.put(RESUME_FROM_CHECKPOINT, "Checkpoint file to resume from. Stops and operators are restored instead of being created. controler.firstIteration has to be set to the iteration after the one of the checkpoint. null (default) starts a new run.");
 		map.put(WELFARE_MAXIMIZATION, "computes operator revenues based on the change in welfare. EXPERIMENTAL!");
 		map.put(INITIAL_SCORES_FILE, "plan scores of a base case scenario. Needed to compare changes in user benefits during welfare maximization. EXPERIMENTAL!");
 		
@@ -507,6 +564,8 @@ public final class PConfigGroup extends ConfigGroup{
 			map.put(PMODULE + entry.getKey().toString(), "name of strategy");
 			map.put(PMODULE_PROBABILITY + entry.getKey().toString(), "probability that a strategy is applied to a given a plan. despite its name, this really is a ``weight''");
 			map.put(PMODULE_DISABLEINITERATION + entry.getKey().toString(), "removes the strategy from the choice set at the beginning of the given iteration");
+			map.put(PMODULE_MIN_WEIGHT + entry.getKey().toString(), "lowest weight of the strategy if useAdaptiveStrategyWeights is set. Defaults to a tenth of the weight configured");
+			map.put(PMODULE_MAX_WEIGHT + entry.getKey().toString(), "highest weight of the strategy if useAdaptiveStrategyWeights is set. Defaults to ten times the weight configured");
 			map.put(PMODULE_PARAMETER + entry.getKey().toString(), "parameters of the strategy");
 		}
 		
@@ -601,6 +660,32 @@ public final class PConfigGroup extends ConfigGroup{
 	
 	public void setPNetwork(Network network) {
 		this.pNetwork = network;
+		this.pNetworkRouter = null;
+	}
+	
+	/**
+	 * @return The router of the paratransit network, shared by all route providers and strategies. Prepared on first use, thus the network must not be changed afterwards.
+	 */
+	public PNetworkRouter getPNetworkRouter() {
+		if (this.pNetworkRouter == null) {
+			synchronized (this) {
+				if (this.pNetworkRouter == null) {
+					this.pNetworkRouter = new PNetworkRouter(this.pNetwork);
+				}
+			}
+		}
+		return this.pNetworkRouter;
+	}
+	
+	/**
+	 * @return The twins of the paratransit stops, set together with the stops
+	 */
+	public PStopTwins getPStopTwins() {
+		return this.pStopTwins;
+	}
+	
+	public void setPStopTwins(PStopTwins pStopTwins) {
+		this.pStopTwins = pStopTwins;
 	}
 	
 	
@@ -728,6 +813,34 @@ public final class PConfigGroup extends ConfigGroup{
 		return this.operationMode;
 	}
 	
+	public boolean getUseParallelReplanning() {
+		return this.useParallelReplanning;
+	}
+	
+	public boolean getAddOnlyServedPStops() {
+		return this.addOnlyServedPStops;
+	}
+	
+	public String getScheduleOutputMode() {
+		return this.scheduleOutputMode;
+	}
+	
+	public int getCheckpointInterval() {
+		return this.checkpointInterval;
+	}
+	
+	public boolean getUseAdaptiveStrategyWeights() {
+		return this.useAdaptiveStrategyWeights;
+	}
+	
+	public double getAdaptiveStrategyWeightsLearningRate() {
+		return this.adaptiveStrategyWeightsLearningRate;
+	}
+	
+	public String getResumeFromCheckpoint() {
+		return this.resumeFromCheckpoint;
+	}
+	
 	public void setUseSubsidyApproach( boolean useSubs )	{
 		this.useSubsidyApproach = useSubs;
 	}
@@ -768,6 +881,20 @@ public final class PConfigGroup extends ConfigGroup{
 		return this.pVehicleTypes.values();
 	}
 	
+	/**
+	 * @return The vehicle types indexed. Created on first use, thus all vehicle types and the pIdentifier have to be set before.
+	 */
+	public PVehicleTypeRegistry getPVehicleTypeRegistry() {
+		if (this.pVehicleTypeRegistry == null) {
+			synchronized (this) {
+				if (this.pVehicleTypeRegistry == null) {
+					this.pVehicleTypeRegistry = new PVehicleTypeRegistry(this.pVehicleTypes.values(), this.pIdentifier);
+				}
+			}
+		}
+		return this.pVehicleTypeRegistry;
+	}
+	
 	private PVehicleSettings getPVehicleSettings(final Id<PVehicleSettings> vehicleId, final boolean createIfMissing) {
 		PVehicleSettings pVehicleSettings = this.pVehicleTypes.get(vehicleId);
 		if (pVehicleSettings == null && createIfMissing) {
@@ -892,6 +1019,8 @@ public final class PConfigGroup extends ConfigGroup{
 		private Id<PStrategySettings> id;
 		private double probability = -1.0;
 		private int disableInIteration = -1;
+		private double minWeight = -1.0;
+		private double maxWeight = -1.0;
 		private String moduleName = null;
 		private String[] parameters = null;
 
@@ -914,6 +1043,28 @@ public final class PConfigGroup extends ConfigGroup{
 		public int getDisableInIteration() {
 			return this.disableInIteration;
 		}
+		
+		public void setMinWeight(double minWeight) {
+			this.minWeight = minWeight;
+		}
+		
+		/**
+		 * @return The lowest weight of adaptive strategy weights, a tenth of the probability if not set
+		 */
+		public double getMinWeight() {
+			return this.minWeight < 0.0 ? 0.1 * this.probability : this.minWeight;
+		}
+		
+		public void setMaxWeight(double maxWeight) {
+			this.maxWeight = maxWeight;
+		}
+		
+		/**
+		 * @return The highest weight of adaptive strategy weights, ten times the probability if not set
+		 */
+		public double getMaxWeight() {
+			return this.maxWeight < 0.0 ? 10.0 * this.probability : this.maxWeight;
+		}
 
 		public void setModuleName(final String moduleName) {
 			this.moduleName = moduleName;
@@ -981,6 +1132,17 @@ public final class PConfigGroup extends ConfigGroup{
 			}
 		}
 		
+		if (this.useAdaptiveStrategyWeights) {
+			if (this.adaptiveStrategyWeightsLearningRate <= 0.0 || this.adaptiveStrategyWeightsLearningRate > 1.0) {
+				throw new RuntimeException("The learning rate of the adaptive strategy weights has to be within (0, 1], but is " + this.adaptiveStrategyWeightsLearningRate + ". Aborting...");
+			}
+			for (PStrategySettings settings : this.strategies.values()) {
+				if (settings.getMinWeight() > settings.getMaxWeight()) {
+					throw new RuntimeException("The minimal weight of strategy " + settings.getId() + " is higher than its maximal weight. Aborting...");
+				}
+			}
+		}
+		
 		if(this.welfareMaximization ){
 			
 			if(!this.operatorType.equals(WelfareCarefulMultiPlanOperator.OPERATOR_NAME)){
@@ -0,0 +1,221 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Vehicle types of the config, each with a dense index. Costs, earnings and capacity are precomputed per index, costs and earnings per meter and second.
+ * Paratransit vehicles are registered with their type when they are created, thus scoring and fare collection do not need to look at the vehicle id.
+ * Unknown types have the index -1, they have no capacity and neither cost nor earn anything while operated. Vehicles of an unknown type cannot be bought.
+ * 
+ * @author manserpa
+ *
+ */
+public final class PVehicleTypeRegistry {
+	
+	public static final int UNKNOWN = -1;
+	
+	private final String[] names;
+	private final int[] capacityPerVehicle;
+	private final double[] costPerVehicleAndDay;
+	private final double[] costPerVehicleBought;
+	private final double[] costPerVehicleSold;
+	private final double[] costPerKilometer;
+	private final double[] costPerHour;
+	private final double[] costPerMeter;
+	private final double[] costPerSecond;
+	private final double[] earningsPerBoardingPassenger;
+	private final double[] earningsPerKilometerAndPassenger;
+	private final double[] earningsPerMeterAndPassenger;
+	
+	private final Map<String, Integer> name2index = new HashMap<>();
+	private final String pIdentifier;
+	// written when vehicles are created, read by event handlers
+	private final Map<Id<Vehicle>, Integer> vehicleId2index = new ConcurrentHashMap<>();
+	// vehicles of the base schedule, which are never registered. Their number is fixed, thus they are kept for the whole run
+	private final Map<Id<Vehicle>, Integer> otherVehicleId2index = new ConcurrentHashMap<>();
+	
+	PVehicleTypeRegistry(Collection<PVehicleSettings> pVehicleSettings, String pIdentifier) {
+		this.pIdentifier = pIdentifier;
+		int numberOfTypes = pVehicleSettings.size();
+		this.names = new String[numberOfTypes];
+		this.capacityPerVehicle = new int[numberOfTypes];
+		this.costPerVehicleAndDay = new double[numberOfTypes];
+		this.costPerVehicleBought = new double[numberOfTypes];
+		this.costPerVehicleSold = new double[numberOfTypes];
+		this.costPerKilometer = new double[numberOfTypes];
+		this.costPerHour = new double[numberOfTypes];
+		this.costPerMeter = new double[numberOfTypes];
+		this.costPerSecond = new double[numberOfTypes];
+		this.earningsPerBoardingPassenger = new double[numberOfTypes];
+		this.earningsPerKilometerAndPassenger = new double[numberOfTypes];
+		this.earningsPerMeterAndPassenger = new double[numberOfTypes];
+		
+		int index = 0;
+		for (PVehicleSettings pVS : pVehicleSettings) {
+			this.names[index] = pVS.getPVehicleName();
+			this.capacityPerVehicle[index] = pVS.getCapacityPerVehicle();
+			this.costPerVehicleAndDay[index] = pVS.getCostPerVehicleAndDay();
+			this.costPerVehicleBought[index] = pVS.getCostPerVehicleBought();
+			this.costPerVehicleSold[index] = pVS.getCostPerVehicleSold();
+			this.costPerKilometer[index] = pVS.getCostPerKilometer();
+			this.costPerHour[index] = pVS.getCostPerHour();
+			this.costPerMeter[index] = pVS.getCostPerKilometer() / 1000.0;
+			this.costPerSecond[index] = pVS.getCostPerHour() / 3600.0;
+			this.earningsPerBoardingPassenger[index] = pVS.getEarningsPerBoardingPassenger();
+			this.earningsPerKilometerAndPassenger[index] = pVS.getEarningsPerKilometerAndPassenger();
+			this.earningsPerMeterAndPassenger[index] = pVS.getEarningsPerKilometerAndPassenger() / 1000.0;
+			// same as the former linear scans, the last one of equally named types wins
+			this.name2index.put(pVS.getPVehicleName(), index);
+			index++;
+		}
+	}
+	
+	public int size() {
+		return this.names.length;
+	}
+	
+	/**
+	 * @param pVehicleName
+	 * @return The index of the type or {@value #UNKNOWN}
+	 */
+	public int getIndex(String pVehicleName) {
+		Integer index = this.name2index.get(pVehicleName);
+		return index == null ? UNKNOWN : index;
+	}
+	
+	/**
+	 * @param vehicleId
+	 * @return The index of the type the vehicle was registered with. Vehicles not registered are looked up by their id, see {@link #parseIndex(Id)}.
+	 */
+	public int getIndex(Id<Vehicle> vehicleId) {
+		Integer index = this.vehicleId2index.get(vehicleId);
+		if (index != null) {
+			return index;
+		}
+		
+		if (vehicleId.toString().contains(this.pIdentifier)) {
+			// paratransit vehicle not registered
+			return parseIndex(vehicleId);
+		}
+		
+		index = this.otherVehicleId2index.get(vehicleId);
+		if (index == null) {
+			index = parseIndex(vehicleId);
+			this.otherVehicleId2index.put(vehicleId, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * The vehicle id of a paratransit vehicle ends with "_" + type name, optionally followed by "-" and some suffix.
+	 * 
+	 * @param vehicleId
+	 * @return The index of the type named in the vehicle id or {@value #UNKNOWN}
+	 */
+	public int parseIndex(Id<Vehicle> vehicleId) {
+		String id = vehicleId.toString();
+		int start = id.lastIndexOf('_') + 1;
+		int end = id.indexOf('-', start);
+		int index = getIndex(end < 0 ? id.substring(start) : id.substring(start, end));
+		if (index != UNKNOWN) {
+			return index;
+		}
+		
+		// type names containing "_" or "-"
+		for (int separator = id.indexOf('_'); separator >= 0; separator = id.indexOf('_', separator + 1)) {
+			for (int i = 0; i < this.names.length; i++) {
+				int typeEnd = separator + 1 + this.names[i].length();
+				if (id.startsWith(this.names[i], separator + 1) && (typeEnd == id.length() || id.charAt(typeEnd) == '-')) {
+					return i;
+				}
+			}
+		}
+		return UNKNOWN;
+	}
+	
+	public void registerVehicle(Id<Vehicle> vehicleId, int index) {
+		this.vehicleId2index.put(vehicleId, index);
+	}
+	
+	public void unregisterVehicle(Id<Vehicle> vehicleId) {
+		this.vehicleId2index.remove(vehicleId);
+	}
+	
+	public String getName(int index) {
+		return this.names[index];
+	}
+	
+	public int getCapacityPerVehicle(int index) {
+		return index == UNKNOWN ? 0 : this.capacityPerVehicle[index];
+	}
+	
+	public double getCostPerVehicleAndDay(int index) {
+		return index == UNKNOWN ? 0.0 : this.costPerVehicleAndDay[index];
+	}
+	
+	public double getCostPerVehicleBought(int index) {
+		if (index == UNKNOWN) {
+			// buying for free would never end
+			throw new RuntimeException("There is no price for vehicles of an unknown type. Aborting...");
+		}
+		return this.costPerVehicleBought[index];
+	}
+	
+	public double getCostPerVehicleSold(int index) {
+		return index == UNKNOWN ? 0.0 : this.costPerVehicleSold[index];
+	}
+	
+	public double getCostPerKilometer(int index) {
+		return index == UNKNOWN ? 0.0 : this.costPerKilometer[index];
+	}
+	
+	public double getCostPerHour(int index) {
+		return index == UNKNOWN ? 0.0 : this.costPerHour[index];
+	}
+	
+	public double getCostPerMeter(int index) {
+		return index == UNKNOWN ? 0.0 : this.costPerMeter[index];
+	}
+	
+	public double getCostPerSecond(int index) {
+		return index == UNKNOWN ? 0.0 : this.costPerSecond[index];
+	}
+	
+	public double getEarningsPerBoardingPassenger(int index) {
+		return index == UNKNOWN ? 0.0 : this.earningsPerBoardingPassenger[index];
+	}
+	
+	public double getEarningsPerKilometerAndPassenger(int index) {
+		return index == UNKNOWN ? 0.0 : this.earningsPerKilometerAndPassenger[index];
+	}
+	
+	public double getEarningsPerMeterAndPassenger(int index) {
+		return index == UNKNOWN ? 0.0 : this.earningsPerMeterAndPassenger[index];
+	}
+}
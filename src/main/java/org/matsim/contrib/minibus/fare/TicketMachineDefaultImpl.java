@@ -19,7 +19,6 @@
 
 package org.matsim.contrib.minibus.fare;
 
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -27,7 +26,7 @@ import javax.inject.Inject;
 
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
 import org.matsim.core.network.io.NetworkWriter;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 
@@ -39,27 +38,21 @@ import org.matsim.pt.transitSchedule.api.TransitStopFacility;
  */
 public final class TicketMachineDefaultImpl implements TicketMachineI {
 
-	private final Collection<PVehicleSettings> pVehicleSettings;
+	private final PVehicleTypeRegistry pVehicleTypes;
 	private boolean isSubsidized = false;
 	private double amountOfSubsidies;
 	private HashMap<Id<TransitStopFacility>, Double> actBasedSubs;
 	
 	@Inject public TicketMachineDefaultImpl(PConfigGroup pConfig ) {
-		this.pVehicleSettings = pConfig.getPVehicleSettings();
+		this.pVehicleTypes = pConfig.getPVehicleTypeRegistry();
 	}
 	
 	@Override
 	public double getFare(StageContainer stageContainer) {
 		
-		double earningsPerBoardingPassenger = 0.0;
-		double earningsPerMeterAndPassenger = 0.0;
-		
-		for (PVehicleSettings pVS : this.pVehicleSettings) {
-            if (stageContainer.getVehicleId().toString().contains(pVS.getPVehicleName())) {
-            	earningsPerBoardingPassenger = pVS.getEarningsPerBoardingPassenger();
-            	earningsPerMeterAndPassenger = pVS.getEarningsPerKilometerAndPassenger() / 1000.;
-            }
-        }
+		int typeIndex = this.pVehicleTypes.getIndex(stageContainer.getVehicleId());
+		double earningsPerBoardingPassenger = this.pVehicleTypes.getEarningsPerBoardingPassenger(typeIndex);
+		double earningsPerMeterAndPassenger = this.pVehicleTypes.getEarningsPerMeterAndPassenger(typeIndex);
 
 		if (this.actBasedSubs.containsKey(stageContainer.getStopEntered()))	{
 			this.isSubsidized  = true;
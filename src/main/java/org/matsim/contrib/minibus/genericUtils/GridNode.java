@@ -79,6 +79,20 @@ public final class GridNode {
 		return GridNode.createGridNodeId(xSlot, ySlot);
 	}
 
+	/**
+	 * Returns the node id for a given x,y-coordinate and the gridsize packed into a long, the x slot in the upper, the y slot in the lower 32 bits
+	 * 
+	 * @param coord - the coordinate for which the node is searched for
+	 * @param gridSize - distance between two nodes/slots
+	 * @return The unique key of the corresponding node
+	 */
+	public static long getGridNodeKeyForCoord(Coord coord, double gridSize){
+		int xSlot = GridNode.getSlotForCoord(coord.getX(), gridSize);
+		int ySlot = GridNode.getSlotForCoord(coord.getY(), gridSize);
+		
+		return ((long) xSlot << 32) | (ySlot & 0xFFFFFFFFL);
+	}
+
 	/**
 	 * Creates a node with shifting centroid
 	 * 
@@ -0,0 +1,127 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.genericUtils;
+
+import java.util.Random;
+
+/**
+ * Random number generator used by operators, strategies and route providers.
+ * Returns the generator of the paratransit code unless a thread bound its own generator, e.g. while replanning operators in parallel.
+ * The seeds of those generators are drawn in a fixed order beforehand, so results do not depend on the thread scheduling.
+ * <p>
+ * The generator of the paratransit code is seeded with the global random seed at startup. It is kept apart from the one of MATSim, thus its state can be written to and restored from a checkpoint.
+ * 
+ * @author manserpa
+ *
+ */
+public final class PRandom {
+	
+	// same default as MatsimRandom, replaced by the global random seed at startup
+	private static final StatefulRandom random = new StatefulRandom(4711L);
+	private static final ThreadLocal<Random> localRandom = new ThreadLocal<>();
+	
+	private PRandom() {} // should not be instantiated
+
+	public static Random getRandom() {
+		Random local = localRandom.get();
+		if (local == null) {
+			return random;
+		}
+		return local;
+	}
+	
+	/**
+	 * Restarts the generator of the paratransit code.
+	 * 
+	 * @param seed
+	 */
+	public static void reset(long seed) {
+		random.setSeed(seed);
+	}
+	
+	/**
+	 * Binds a new generator with the given seed to the current thread. Call {@link #unbindLocalRandom()} when done.
+	 * 
+	 * @param seed
+	 */
+	public static void bindLocalRandom(long seed) {
+		localRandom.set(new Random(seed));
+	}
+	
+	public static void unbindLocalRandom() {
+		localRandom.remove();
+	}
+	
+	/**
+	 * Reads the state of the generator of the paratransit code without drawing from it.
+	 * 
+	 * @return The state to be passed to {@link #setState(long)}
+	 */
+	public static long getState() {
+		return random.getState();
+	}
+	
+	/**
+	 * Continues the generator of the paratransit code from the state read by {@link #getState()}. A Gaussian drawn ahead by {@link Random#nextGaussian()} is discarded, as with any call of {@link Random#setSeed(long)}.
+	 * 
+	 * @param state
+	 */
+	public static void setState(long state) {
+		random.setState(state);
+	}
+	
+	/**
+	 * The linear congruential generator of {@link Random}, drawing the same numbers for the same seed, but keeping its state in a field of its own.
+	 */
+	private static final class StatefulRandom extends Random {
+		
+		private static final long serialVersionUID = 1L;
+		private static final long MULTIPLIER = 0x5DEECE66DL;
+		private static final long ADDEND = 0xBL;
+		private static final long MASK = (1L << 48) - 1;
+		
+		// no initializer, set by the constructor of Random calling setSeed
+		private long state;
+		
+		private StatefulRandom(long seed) {
+			super(seed);
+		}
+		
+		@Override
+		public synchronized void setSeed(long seed) {
+			super.setSeed(seed);
+			this.state = (seed ^ MULTIPLIER) & MASK;
+		}
+		
+		@Override
+		protected synchronized int next(int bits) {
+			this.state = (this.state * MULTIPLIER + ADDEND) & MASK;
+			return (int) (this.state >>> (48 - bits));
+		}
+		
+		private synchronized long getState() {
+			return this.state;
+		}
+		
+		private synchronized void setState(long state) {
+			this.setSeed(state ^ MULTIPLIER);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.genericUtils;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent tasks on a fixed number of threads, e.g. when replanning or initializing operators in parallel.
+ * 
+ * @author manserpa
+ *
+ */
+public final class PTaskRunner {
+	
+	private PTaskRunner() {} // should not be instantiated
+	
+	/**
+	 * Runs the tasks on up to the given number of threads and waits for all of them to finish. Runs them in the calling thread if there is only one thread or task.
+	 * A failure of any task is rethrown as RuntimeException.
+	 * 
+	 * @param tasks
+	 * @param numberOfThreads
+	 */
+	public static void runTasks(List<? extends Callable<Void>> tasks, int numberOfThreads) {
+		if (numberOfThreads < 2 || tasks.size() < 2) {
+			for (Callable<Void> task : tasks) {
+				try {
+					task.call();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numberOfThreads, tasks.size()));
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
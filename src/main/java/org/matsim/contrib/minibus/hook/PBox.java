@@ -30,17 +30,20 @@ import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Activity;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
 import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.contrib.minibus.PConstants.OperatorState;
 import org.matsim.contrib.minibus.fare.StageContainerCreator;
 import org.matsim.contrib.minibus.fare.TicketMachineI;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
+import org.matsim.contrib.minibus.genericUtils.PTaskRunner;
 import org.matsim.contrib.minibus.operator.*;
 import org.matsim.contrib.minibus.replanning.PStrategyManager;
 import org.matsim.contrib.minibus.schedule.PStopsFactory;
 import org.matsim.contrib.minibus.scoring.OperatorCostCollectorHandler;
-import org.matsim.contrib.minibus.scoring.PScoreContainer;
 import org.matsim.contrib.minibus.scoring.PScorePlansHandler;
 import org.matsim.contrib.minibus.scoring.StageContainer2AgentMoneyEvent;
+import org.matsim.contrib.minibus.stats.PPhaseStats;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.controler.events.IterationStartsEvent;
@@ -49,14 +52,18 @@ import org.matsim.core.controler.events.StartupEvent;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.scenario.MutableScenario;
 import org.matsim.core.scenario.ScenarioUtils;
-import org.matsim.pt.transitSchedule.TransitScheduleFactoryImpl;
-import org.matsim.pt.transitSchedule.TransitScheduleWriterV1;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.io.UncheckedIOException;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
-import org.matsim.vehicles.Vehicle;
 
 import javax.inject.Inject;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 
 /**
@@ -78,42 +85,93 @@ public final class PBox implements POperators {
 
 	private TransitSchedule pStopsOnly;
 	private TransitSchedule pTransitSchedule;
+	private PTransitScheduleSnapshots pTransitScheduleSnapshots;
 
 	private final PScorePlansHandler scorePlansHandler;
 	private final StageContainerCreator stageCollectorHandler;
 	private final OperatorCostCollectorHandler operatorCostCollectorHandler;
-	private final PStrategyManager strategyManager = new PStrategyManager();
+	private final PPhaseStats phaseStats;
+	private final PStrategyManager strategyManager;
 
 	private final TicketMachineI ticketMachine;
 
 	private PRouteOverlap routeOverlap;
+	
+	private int numberOfThreads = 1;
+	
+	private static final int CHECKPOINT_FORMAT_VERSION = 3;
+	static final String CHECKPOINT_FILE = "pCheckpoint.bin.gz";
+	
+	private TimeProvider timeProvider;
+	private final List<Link> linksAddedToNetwork = new ArrayList<>();
+	private int firstIterationOfRun;
 
 	/**
 	 * Constructor that allows to set the ticketMachine.  Deliberately in constructor and not as setter to keep the variable final.  Might be
 	 * replaced by a builder and/or guice at some later point in time.  But stay with "direct" injection for the time being.  kai, jan'17
 	 */
-	@Inject PBox(PConfigGroup pConfig, TicketMachineI ticketMachine) {
+	@Inject PBox(PConfigGroup pConfig, TicketMachineI ticketMachine, PPhaseStats phaseStats) {
 		this.pConfig = pConfig;
 		this.ticketMachine = ticketMachine;
+		this.phaseStats = phaseStats;
+		this.strategyManager = new PStrategyManager(this.phaseStats);
 		this.scorePlansHandler = new PScorePlansHandler(this.ticketMachine);
 		this.stageCollectorHandler = new StageContainerCreator(this.pConfig.getPIdentifier());
 
 		//this.operatorCostCollectorHandler = new OperatorCostCollectorHandler(this.pConfig.getPIdentifier(), this.pConfig.getCostPerVehicleAndDay(), this.pConfig.getCostPerKilometer() / 1000.0, this.pConfig.getCostPerHour() / 3600.0);
-		this.operatorCostCollectorHandler = new OperatorCostCollectorHandler(this.pConfig.getPIdentifier(), this.pConfig.getPVehicleSettings());
+		this.operatorCostCollectorHandler = new OperatorCostCollectorHandler(this.pConfig.getPIdentifier(), this.pConfig.getPVehicleTypeRegistry());
 
 		this.routeOverlap = new PRouteOverlap(true, pConfig.getGridSize());
 		this.franchise = new PFranchise(this.pConfig.getUseFranchise(), pConfig.getGridSize());
 	}
 
 	void notifyStartup(StartupEvent event) {
-		TimeProvider timeProvider = new TimeProvider(this.pConfig, event.getServices().getControlerIO().getOutputPath());
-		event.getServices().getEvents().addHandler(timeProvider);
+		this.timeProvider = new TimeProvider(this.pConfig, event.getServices().getControlerIO().getOutputPath());
+		event.getServices().getEvents().addHandler(this.timeProvider);
+		this.numberOfThreads = Math.max(1, event.getServices().getConfig().global().getNumberOfThreads());
+		this.firstIterationOfRun = event.getServices().getConfig().controler().getFirstIteration();
+		this.phaseStats.init(event.getServices().getControlerIO().getOutputPath());
+		PRandom.reset(event.getServices().getConfig().global().getRandomSeed());
 		
-		// init possible paratransit stops
-		this.pStopsOnly = PStopsFactory.createPStops(event.getServices().getScenario().getNetwork(), this.pConfig, event.getServices().getScenario().getTransitSchedule());
+		PPhaseStats.Phase stopCreation = this.phaseStats.startPhase("stopCreation");
+		DataInputStream checkpoint = null;
+		long randomStateOfCheckpoint = 0;
+		if (this.pConfig.getResumeFromCheckpoint() != null) {
+			checkpoint = new DataInputStream(IOUtils.getInputStream(this.pConfig.getResumeFromCheckpoint()));
+			try {
+				if (checkpoint.readInt() != CHECKPOINT_FORMAT_VERSION) {
+					throw new RuntimeException("Unknown format of checkpoint " + this.pConfig.getResumeFromCheckpoint() + ". Aborting...");
+				}
+				int iterationOfCheckpoint = checkpoint.readInt();
+				if (iterationOfCheckpoint + 1 != this.firstIterationOfRun) {
+					throw new RuntimeException("Checkpoint " + this.pConfig.getResumeFromCheckpoint() + " was written in iteration " + iterationOfCheckpoint + ". Set the first iteration of the controler to " + (iterationOfCheckpoint + 1) + " to resume from it. Aborting...");
+				}
+				this.firstIterationOfRun = checkpoint.readInt();
+				randomStateOfCheckpoint = checkpoint.readLong();
+				
+				// restore the paratransit stops instead of searching them again
+				this.pStopsOnly = PStopsFactory.readCheckpoint(checkpoint, event.getServices().getScenario().getNetwork(), this.pConfig, this.linksAddedToNetwork);
+				this.timeProvider.readCheckpoint(checkpoint);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			log.info("Resuming from checkpoint " + this.pConfig.getResumeFromCheckpoint() + " of iteration " + (event.getServices().getConfig().controler().getFirstIteration() - 1));
+		} else {
+			// init possible paratransit stops
+			this.pStopsOnly = PStopsFactory.createPStops(event.getServices().getScenario().getNetwork(), this.pConfig, event.getServices().getScenario().getTransitSchedule(), this.linksAddedToNetwork);
+		}
+		stopCreation.end();
+		this.pTransitScheduleSnapshots = new PTransitScheduleSnapshots(this.pStopsOnly, this.pConfig.getAddOnlyServedPStops());
 
 		// initialize strategy manager
-		this.strategyManager.init(this.pConfig, this.stageCollectorHandler, this.ticketMachine, timeProvider, event.getServices().getControlerIO().getOutputPath(), this.pStopsOnly);
+		this.strategyManager.init(this.pConfig, this.stageCollectorHandler, this.ticketMachine, this.timeProvider, event.getServices().getControlerIO().getOutputPath(), this.pStopsOnly);
+		if (checkpoint != null) {
+			try {
+				this.strategyManager.readCheckpoint(checkpoint);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 
 		// init fare collector
 		this.stageCollectorHandler.init(event.getServices().getScenario().getNetwork());
@@ -132,121 +190,328 @@ public final class PBox implements POperators {
 		this.stageCollectorHandler.addStageContainerHandler(fare2AgentMoney);
 
 		// init operators
+		PPhaseStats.Phase operatorInitialization = this.phaseStats.startPhase("operatorInitialization");
 		this.operators = new LinkedList<>();
-		this.operatorInitializer = new OperatorInitializer(this.pConfig, this.franchise, this.pStopsOnly, event.getServices(), timeProvider, this.routeOverlap);
-
-		// init additional operators from a given transit schedule file
-		// TODO (PM) not necessary
-		LinkedList<Operator> operatorsFromSchedule = this.operatorInitializer.createOperatorsFromSchedule(event.getServices().getScenario().getTransitSchedule());
-		this.operators.addAll(operatorsFromSchedule);
-
-		// init initial set of operators - reduced by the number of preset operators
-		LinkedList<Operator> initialOperators = this.operatorInitializer.createAdditionalOperators(this.strategyManager, event.getServices().getConfig().controler().getFirstIteration(), (this.pConfig.getNumberOfOperators() - operatorsFromSchedule.size()));
-		this.operators.addAll(initialOperators);
+		int numberOfThreadsForInitialization = this.pConfig.getUseParallelReplanning() ? this.numberOfThreads : 1;
+		this.operatorInitializer = new OperatorInitializer(this.pConfig, this.franchise, this.pStopsOnly, event.getServices(), this.timeProvider, this.routeOverlap, numberOfThreadsForInitialization);
+
+		if (checkpoint != null) {
+			// plans of operators created from the transit schedule may serve stops of the original schedule
+			Map<Id<TransitStopFacility>, TransitStopFacility> stops = new HashMap<>(event.getServices().getScenario().getTransitSchedule().getFacilities());
+			stops.putAll(this.pStopsOnly.getFacilities());
+			try {
+				this.operators.addAll(this.operatorInitializer.readCheckpoint(checkpoint, stops));
+				checkpoint.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		} else {
+			// init additional operators from a given transit schedule file
+			// TODO (PM) not necessary
+			LinkedList<Operator> operatorsFromSchedule = this.operatorInitializer.createOperatorsFromSchedule(event.getServices().getScenario().getTransitSchedule());
+			this.operators.addAll(operatorsFromSchedule);
+
+			// init initial set of operators - reduced by the number of preset operators
+			LinkedList<Operator> initialOperators = this.operatorInitializer.createAdditionalOperators(this.strategyManager, event.getServices().getConfig().controler().getFirstIteration(), (this.pConfig.getNumberOfOperators() - operatorsFromSchedule.size()));
+			this.operators.addAll(initialOperators);
+		}
+		operatorInitialization.end();
 
 		// collect the transit schedules from all operators
-		this.pTransitSchedule = new TransitScheduleFactoryImpl().createTransitSchedule();
-		for (TransitStopFacility stop : this.pStopsOnly.getFacilities().values()) {
-			this.pTransitSchedule.addStopFacility(stop);
-		}
-		for (Operator operator : this.operators) {
-			this.pTransitSchedule.addTransitLine(operator.getCurrentTransitLine());
-		}
+		PPhaseStats.Phase scheduleCollection = this.phaseStats.startPhase("scheduleCollection");
+		this.pTransitSchedule = this.pTransitScheduleSnapshots.getSnapshot(this.operators);
+		scheduleCollection.end();
+		
+		// the first iteration does not start the paratransit iteration, thus its vehicles are mapped to the plans here
+		this.scorePlansHandler.setPlans(this.operators);
 
 		// create subsidy distribution
 		HashMap<Id<TransitStopFacility>, Double> actBasedSub = new HashMap<>();
 		if(this.pConfig.getUseSubsidyApproach()) {
-			HashMap<Coord, Integer> nbActivities = new HashMap<>();
-			HashMap<TransitStopFacility, List<Integer>> nbActivitiesAroundStop = new HashMap<>();
-			for (Person person : event.getServices().getScenario().getPopulation().getPersons().values()) {
-				for (PlanElement pE : person.getSelectedPlan().getPlanElements()) {
-					if (pE instanceof Activity) {
-						Activity act = (Activity) pE;
-						if (!act.getType().equals("pt interaction") && !act.getType().equals("outside")) {
-							nbActivities.putIfAbsent(act.getCoord(), 0);
-							nbActivities.put(act.getCoord(), nbActivities.get(act.getCoord()) + 1);
-						}
-					}
-				}
+			PPhaseStats.Phase subsidies = this.phaseStats.startPhase("actBasedSubsidies");
+			actBasedSub = this.createActBasedSubs(event.getServices().getScenario().getPopulation(), subsidies);
+			subsidies.end();
+		}
+
+		this.ticketMachine.setActBasedSubs(actBasedSub);
+
+		// Reset the route overlap - TODO necessary?
+		this.routeOverlap.reset(this.operators);
+		
+		if (checkpoint != null) {
+			// the operators are in the state after the scoring of the checkpoint's iteration. Replay the strategy updates missed and replan them as at the start of any other iteration
+			int firstIteration = event.getServices().getConfig().controler().getFirstIteration();
+			for (int iteration = this.firstIterationOfRun + 1; iteration < firstIteration; iteration++) {
+				this.strategyManager.updateStrategies(iteration);
 			}
+			PRandom.setState(randomStateOfCheckpoint);
+			this.startIteration(firstIteration);
+		}
+	}
 
-			for (TransitStopFacility stop : this.pStopsOnly.getFacilities().values()) {
-				nbActivitiesAroundStop.putIfAbsent(stop, new ArrayList<>(Arrays.asList(0,0)));
-				for (Coord actCoord : nbActivities.keySet()) {
-					if(NetworkUtils.getEuclideanDistance(actCoord, stop.getCoord()) < 500)  {
-						int nbActs = nbActivities.get(actCoord);
-						nbActivitiesAroundStop.get(stop).set(0, nbActivitiesAroundStop.get(stop).get(0) + nbActs);
-					}
-					if(NetworkUtils.getEuclideanDistance(actCoord, stop.getCoord()) < 3000)  {
-						int nbActs = nbActivities.get(actCoord);
-						nbActivitiesAroundStop.get(stop).set(1, nbActivitiesAroundStop.get(stop).get(1) + nbActs);
+	/**
+	 * Subsidies per stop depending on the number of activities within 500 and 3000 meters. The activities are looked up in a quad tree, the stops are distributed among global.numberOfThreads threads.
+	 * 
+	 * @param population
+	 * @param phase
+	 * @return
+	 */
+	private HashMap<Id<TransitStopFacility>, Double> createActBasedSubs(Population population, PPhaseStats.Phase phase) {
+		final HashMap<Coord, Integer> nbActivities = new HashMap<>();
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (Person person : population.getPersons().values()) {
+			for (PlanElement pE : person.getSelectedPlan().getPlanElements()) {
+				if (pE instanceof Activity) {
+					Activity act = (Activity) pE;
+					if (!act.getType().equals("pt interaction") && !act.getType().equals("outside")) {
+						nbActivities.putIfAbsent(act.getCoord(), 0);
+						nbActivities.put(act.getCoord(), nbActivities.get(act.getCoord()) + 1);
+						minX = Math.min(minX, act.getCoord().getX());
+						minY = Math.min(minY, act.getCoord().getY());
+						maxX = Math.max(maxX, act.getCoord().getX());
+						maxY = Math.max(maxY, act.getCoord().getY());
 					}
 				}
 			}
+		}
 
-			int counter = 0;
-			for(TransitStopFacility stop: nbActivitiesAroundStop.keySet())	{
-				double activities = nbActivitiesAroundStop.get(stop).get(0) + (0.1 * nbActivitiesAroundStop.get(stop).get(1));
-				double subsidies = 60 - ( 0.5 * Math.pow(2, (activities * 0.0021) ) );
-				if(subsidies > 0.0)	{
-					counter++;
-					actBasedSub.put(stop.getId(), subsidies);
-				}
+		HashMap<Id<TransitStopFacility>, Double> actBasedSub = new HashMap<>();
+		final List<TransitStopFacility> stops = new ArrayList<>(this.pStopsOnly.getFacilities().values());
+		final int[] nbActivitiesWithin500 = new int[stops.size()];
+		final int[] nbActivitiesWithin3000 = new int[stops.size()];
+
+		if (!nbActivities.isEmpty()) {
+			final QuadTree<Coord> actCoords = new QuadTree<>(minX, minY, maxX, maxY);
+			for (Coord actCoord : nbActivities.keySet()) {
+				actCoords.put(actCoord.getX(), actCoord.getY(), actCoord);
 			}
-			log.info("number of subsidized stops: " + counter);
-		}
 
-		this.ticketMachine.setActBasedSubs(actBasedSub);
+			int numberOfTasks = Math.min(this.numberOfThreads, Math.max(1, stops.size()));
+			List<Callable<Void>> tasks = new ArrayList<>(numberOfTasks);
+			for (int i = 0; i < numberOfTasks; i++) {
+				final int firstStop = i * stops.size() / numberOfTasks;
+				final int lastStop = (i + 1) * stops.size() / numberOfTasks;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int j = firstStop; j < lastStop; j++) {
+							Coord stopCoord = stops.get(j).getCoord();
+							// the disk is slightly larger, the exact distance below decides as before
+							for (Coord actCoord : actCoords.getDisk(stopCoord.getX(), stopCoord.getY(), 3001.0)) {
+								double distance = NetworkUtils.getEuclideanDistance(actCoord, stopCoord);
+								if (distance < 500) {
+									nbActivitiesWithin500[j] += nbActivities.get(actCoord);
+								}
+								if (distance < 3000) {
+									nbActivitiesWithin3000[j] += nbActivities.get(actCoord);
+								}
+							}
+						}
+						return null;
+					}
+				});
+			}
+			this.runTasks(tasks, phase);
+		}
 
-		// Reset the franchise system - TODO necessary?
-		this.franchise.reset(this.operators);
-		this.routeOverlap.reset(this.operators);
+		int counter = 0;
+		for (int i = 0; i < stops.size(); i++) {
+			double activities = nbActivitiesWithin500[i] + (0.1 * nbActivitiesWithin3000[i]);
+			double subsidies = 60 - ( 0.5 * Math.pow(2, (activities * 0.0021) ) );
+			if(subsidies > 0.0)	{
+				counter++;
+				actBasedSub.put(stops.get(i).getId(), subsidies);
+			}
+		}
+		log.info("number of subsidized stops: " + counter);
+		return actBasedSub;
 	}
 
 	void notifyIterationStarts(IterationStartsEvent event) {
+		this.startIteration(event.getIteration());
+	}
+
+	private void startIteration(int iteration) {
 
-		this.strategyManager.updateStrategies(event.getIteration());
+		this.strategyManager.updateStrategies(iteration);
 
 		// Adapt number of operators
-		this.handleBankruptOperators(event.getIteration());
+		PPhaseStats.Phase bankruptHandling = this.phaseStats.startPhase("bankruptHandling");
+		this.handleBankruptOperators(iteration);
+		bankruptHandling.end();
 
 		// Replan all operators
-		for (Operator operator : this.operators) {
-			operator.replan(this.strategyManager, event.getIteration());
-		}
+		PPhaseStats.Phase replanning = this.phaseStats.startPhase("replanning");
+		this.replanOperators(iteration, replanning);
+		replanning.end();
 
 		// Collect current lines offered
-		// why is the following done twice (see notifyScoring)?
-		this.pTransitSchedule = new TransitScheduleFactoryImpl().createTransitSchedule();
-		for (TransitStopFacility stop : this.pStopsOnly.getFacilities().values()) {
-			this.pTransitSchedule.addStopFacility(stop);
-		}
-		for (Operator operator : this.operators) {
-			this.pTransitSchedule.addTransitLine(operator.getCurrentTransitLine());
-		}
+		PPhaseStats.Phase scheduleCollection = this.phaseStats.startPhase("scheduleCollection");
+		this.pTransitSchedule = this.pTransitScheduleSnapshots.getSnapshot(this.operators);
+		scheduleCollection.end();
+		
+		// the vehicles of these plans are scored in this iteration
+		this.scorePlansHandler.setPlans(this.operators);
 
-		// Reset the franchise system
-		this.franchise.reset(this.operators);
+		// Reset the route overlap
 		this.routeOverlap.reset(this.operators);
 	}
 
 	void notifyScoring(ScoringEvent event) {
+		
+		// the events of the iteration are processed - replanning draws from these activity times
+		this.timeProvider.publish();
 
-		Map<Id<Vehicle>, PScoreContainer> driverId2ScoreMap = this.scorePlansHandler.getDriverId2ScoreMap();
-		for (Operator operator : this.operators) {
-			operator.score(driverId2ScoreMap);
-		}
+		PPhaseStats.Phase scoring = this.phaseStats.startPhase("scoring");
+		this.scoreOperators(scoring);
+		scoring.end();
+		
+		// the plans of this iteration are scored - shift the strategy weights if adaptive
+		this.strategyManager.adaptWeights(this.operators, event.getIteration());
 
-		// why is the following done twice (see notifyIterationstarts)?
-		this.pTransitSchedule = new TransitScheduleFactoryImpl().createTransitSchedule();
-		for (TransitStopFacility stop : this.pStopsOnly.getFacilities().values()) {
-			this.pTransitSchedule.addStopFacility(stop);
+		// only changes if scoring altered a line, otherwise the snapshot of the iteration start is reused
+		PPhaseStats.Phase scheduleCollection = this.phaseStats.startPhase("scheduleCollection");
+		this.pTransitSchedule = this.pTransitScheduleSnapshots.getSnapshot(this.operators);
+		scheduleCollection.end();
+		
+		if (this.pConfig.getCheckpointInterval() > 0 && event.getIteration() % this.pConfig.getCheckpointInterval() == 0) {
+			PPhaseStats.Phase checkpoint = this.phaseStats.startPhase("checkpoint");
+			this.writeCheckpoint(event.getIteration(), event.getServices().getControlerIO().getIterationFilename(event.getIteration(), CHECKPOINT_FILE));
+			checkpoint.end();
 		}
-		for (Operator operator : this.operators) {
-			this.pTransitSchedule.addTransitLine(operator.getCurrentTransitLine());
+	}
+
+	/**
+	 * Writes the state needed to resume after the given iteration: stops, time slot weights, strategy weights, the offsets of the route provider, operators and their plans, and the state of the random number generator of the paratransit code.
+	 * The state of the generator is read without drawing from it, thus writing a checkpoint does not change the random numbers of the run.
+	 * 
+	 * @param iteration
+	 * @param filename
+	 */
+	private void writeCheckpoint(int iteration, String filename) {
+		try (DataOutputStream out = new DataOutputStream(IOUtils.getOutputStream(filename))) {
+			out.writeInt(CHECKPOINT_FORMAT_VERSION);
+			out.writeInt(iteration);
+			out.writeInt(this.firstIterationOfRun);
+			out.writeLong(PRandom.getState());
+			PStopsFactory.writeCheckpoint(out, this.pStopsOnly, this.linksAddedToNetwork, this.pConfig.getPNetwork());
+			this.timeProvider.writeCheckpoint(out);
+			this.strategyManager.writeCheckpoint(out);
+			this.operatorInitializer.writeCheckpoint(out, this.operators);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
+		log.info("Wrote checkpoint of iteration " + iteration + " with " + this.operators.size() + " operators to " + filename);
+	}
 
-		writeScheduleToFile(this.pTransitSchedule, event.getServices().getControlerIO().getIterationFilename(event.getIteration(), "transitScheduleScored.xml.gz"));
+	/**
+	 * Replans all operators. If parallel replanning is switched on, the operators are distributed among global.numberOfThreads threads.
+	 * The seeds of the random number generators are drawn in the order of the operators beforehand, thus the outcome does not depend on the thread scheduling.
+	 * The new routes are admitted to the franchise in the same order afterwards, a later operator duplicating the new route of an earlier one drops its plan again.
+	 * 
+	 * @param iteration
+	 * @param phase
+	 */
+	private void replanOperators(final int iteration, PPhaseStats.Phase phase) {
+		
+		if (!this.pConfig.getUseParallelReplanning() || this.numberOfThreads < 2 || this.operators.size() < 2) {
+			for (Operator operator : this.operators) {
+				operator.replan(this.strategyManager, iteration);
+			}
+			return;
+		}
+		
+		List<Callable<Void>> tasks = new ArrayList<>(this.operators.size());
+		for (final Operator operator : this.operators) {
+			final long seed = PRandom.getRandom().nextLong();
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					PRandom.bindLocalRandom(seed);
+					PBox.this.franchise.beginLocalScope(operator.getId());
+					try {
+						operator.replan(PBox.this.strategyManager, iteration);
+					} finally {
+						PBox.this.franchise.endLocalScope();
+						PRandom.unbindLocalRandom();
+					}
+					return null;
+				}
+			});
+		}
+		
+		this.runTasks(tasks, phase);
+		
+		// the operators did not see each other's new routes
+		this.franchise.admitRoutesOfLocalScopes(this.operators);
+	}
+	
+	/**
+	 * Scores all operators from the slots of their plans. If parallel replanning is switched on, the operators are distributed among global.numberOfThreads threads.
+	 * Operators may draw random numbers while scoring, the seeds are drawn in the order of the operators beforehand as for the replanning.
+	 * 
+	 * @param phase
+	 */
+	private void scoreOperators(PPhaseStats.Phase phase) {
+		
+		if (!this.pConfig.getUseParallelReplanning() || this.numberOfThreads < 2 || this.operators.size() < 2) {
+			for (Operator operator : this.operators) {
+				operator.score(this.scorePlansHandler);
+			}
+			return;
+		}
+		
+		List<Callable<Void>> tasks = new ArrayList<>(this.operators.size());
+		for (final Operator operator : this.operators) {
+			final long seed = PRandom.getRandom().nextLong();
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					PRandom.bindLocalRandom(seed);
+					try {
+						operator.score(PBox.this.scorePlansHandler);
+					} finally {
+						PRandom.unbindLocalRandom();
+					}
+					return null;
+				}
+			});
+		}
+		
+		this.runTasks(tasks, phase);
+	}
+	
+	/**
+	 * Runs the tasks on up to global.numberOfThreads threads and waits for all of them to finish.
+	 * 
+	 * @param tasks
+	 * @param phase the memory allocated by the threads is added to this phase
+	 */
+	private void runTasks(List<Callable<Void>> tasks, final PPhaseStats.Phase phase) {
+		if (this.numberOfThreads < 2 || tasks.size() < 2) {
+			// the calling thread is measured by the phase itself
+			PTaskRunner.runTasks(tasks, 1);
+			return;
+		}
+		
+		List<Callable<Void>> measuredTasks = new ArrayList<>(tasks.size());
+		for (final Callable<Void> task : tasks) {
+			measuredTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					long allocatedBytesAtStart = PPhaseStats.getAllocatedBytesOfCurrentThread();
+					try {
+						return task.call();
+					} finally {
+						phase.addAllocatedBytes(PPhaseStats.getAllocatedBytesOfCurrentThread() - allocatedBytesAtStart);
+					}
+				}
+			});
+		}
+		PTaskRunner.runTasks(measuredTasks, this.numberOfThreads);
 	}
 
 	private void handleBankruptOperators(int iteration) {
@@ -270,6 +535,10 @@ public final class PBox implements POperators {
 
 			if(operator.getOperatorState().equals(OperatorState.BANKRUPT)){
 				operatorsBankrupt++;
+				// its routes may be offered by others again
+				for (PPlan plan : operator.getAllPlans()) {
+					this.franchise.planDropped(plan);
+				}
 			}
 		}
 
@@ -304,13 +573,16 @@ public final class PBox implements POperators {
 	TransitSchedule getpTransitSchedule() {
 		return this.pTransitSchedule;
 	}
+	
+	PPhaseStats getPhaseStats() {
+		return this.phaseStats;
+	}
+	
+	TransitSchedule getPStopsOnly() {
+		return this.pStopsOnly;
+	}
 
 	public List<Operator> getOperators() {
 		return operators;
 	}
-
-	private void writeScheduleToFile(TransitSchedule schedule, String iterationFilename) {
-		TransitScheduleWriterV1 writer = new TransitScheduleWriterV1(schedule);
-		writer.write(iterationFilename);		
-	}
 }
\ No newline at end of file
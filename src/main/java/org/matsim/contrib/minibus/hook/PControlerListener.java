@@ -24,25 +24,27 @@ import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.contrib.minibus.operator.POperators;
+import org.matsim.contrib.minibus.stats.PPhaseStats;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.controler.MatsimServices;
+import org.matsim.core.controler.events.IterationEndsEvent;
 import org.matsim.core.controler.events.IterationStartsEvent;
 import org.matsim.core.controler.events.ScoringEvent;
+import org.matsim.core.controler.events.ShutdownEvent;
 import org.matsim.core.controler.events.StartupEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
 import org.matsim.core.controler.listener.IterationStartsListener;
 import org.matsim.core.controler.listener.ScoringListener;
+import org.matsim.core.controler.listener.ShutdownListener;
 import org.matsim.core.controler.listener.StartupListener;
-import org.matsim.pt.transitSchedule.TransitScheduleWriterV1;
 import org.matsim.pt.transitSchedule.api.TransitLine;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
-import org.matsim.vehicles.Vehicle;
-import org.matsim.vehicles.VehicleType;
-import org.matsim.vehicles.VehicleWriterV1;
 import org.matsim.vehicles.Vehicles;
 
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
 
@@ -52,32 +54,46 @@ import java.util.Set;
  * @author aneumann
  */
 
-final class PControlerListener implements IterationStartsListener, StartupListener, ScoringListener {
+final class PControlerListener implements IterationStartsListener, StartupListener, ScoringListener, IterationEndsListener, ShutdownListener {
 
 	private final static Logger log = Logger.getLogger(PControlerListener.class);
 
 	private final PVehiclesFactory pVehiclesFactory;
 	private final POperators operators ;
+	private final String scheduleOutputMode;
 	@Inject private PTransitRouterFactory pTransitRouterFactory;
+	
+	private PScheduleOutputWriter scheduleOutputWriter;
+	private Vehicles currentPVehicles;
+	private PPhaseStats phaseStats;
+	private int lastIterationEnded = -1;
 
 	@Inject PControlerListener(Config config, POperators operators ){
 		PConfigGroup pConfig = ConfigUtils.addOrGetModule(config, PConfigGroup.GROUP_NAME, PConfigGroup.class);
 		this.pVehiclesFactory = new PVehiclesFactory(pConfig);
 		this.operators = operators ;
+		this.scheduleOutputMode = pConfig.getScheduleOutputMode();
 	}
 
 	@Override
 	public void notifyStartup(StartupEvent event) {
 		PBox pBox = (PBox) operators ;
 		pBox.notifyStartup(event);
-		addPTransitScheduleToOriginalOne(event.getServices().getScenario().getTransitSchedule(), pBox.getpTransitSchedule());
-		addPVehiclesToOriginalOnes(event.getServices().getScenario().getTransitVehicles(), this.pVehiclesFactory.createVehicles(pBox.getpTransitSchedule()));
-
-		this.pTransitRouterFactory.updateTransitSchedule();
+		this.phaseStats = pBox.getPhaseStats();
+		this.pTransitRouterFactory.setPhaseStats(this.phaseStats);
+		
+		// the scenario does not contain any paratransit lines yet
+		this.scheduleOutputWriter = new PScheduleOutputWriter(this.scheduleOutputMode, event.getServices().getControlerIO(), this.phaseStats);
+		PPhaseStats.Phase scheduleOutput = this.phaseStats.startPhase("scheduleOutput");
+		this.scheduleOutputWriter.writeBase(event.getServices().getScenario().getTransitSchedule(), event.getServices().getScenario().getTransitVehicles(), pBox.getPStopsOnly());
+		scheduleOutput.end();
+		
+		this.updateScenario(event.getServices(), pBox);
 	}
 
 	@Override
 	public void notifyIterationStarts(IterationStartsEvent event) {
+		this.writePhaseStatsOfLastIteration();
 		PBox pBox = (PBox) operators ;
 		final MatsimServices controler = event.getServices();
 		if(event.getIteration() == controler.getConfig().controler().getFirstIteration()){
@@ -85,19 +101,61 @@ final class PControlerListener implements IterationStartsListener, StartupListen
 		} else {
 			pBox.notifyIterationStarts(event);
 			removePreviousPTransitScheduleFromOriginalOne(event.getServices().getScenario().getTransitSchedule());
-			addPTransitScheduleToOriginalOne(event.getServices().getScenario().getTransitSchedule(), pBox.getpTransitSchedule());
-			removePreviousPVehiclesFromScenario(event.getServices().getScenario().getTransitVehicles());
-			addPVehiclesToOriginalOnes(event.getServices().getScenario().getTransitVehicles(), this.pVehiclesFactory.createVehicles(pBox.getpTransitSchedule()));
-
-			this.pTransitRouterFactory.updateTransitSchedule();
+			this.updateScenario(controler, pBox);
 		}
-		this.dumpTransitScheduleAndVehicles(event.getServices(), event.getIteration());
+		PPhaseStats.Phase scheduleOutput = this.phaseStats.startPhase("scheduleOutput");
+		this.scheduleOutputWriter.writeIteration(event.getIteration(), event.getServices().getScenario().getTransitSchedule(), event.getServices().getScenario().getTransitVehicles(), pBox.getpTransitSchedule(), this.currentPVehicles);
+		scheduleOutput.end();
+	}
+
+	/**
+	 * Adds the current paratransit schedule and vehicles to the scenario and rebuilds the router data.
+	 * 
+	 * @param controler
+	 * @param pBox
+	 */
+	private void updateScenario(MatsimServices controler, PBox pBox) {
+		PPhaseStats.Phase scheduleUpdate = this.phaseStats.startPhase("scheduleUpdate");
+		addPTransitScheduleToOriginalOne(controler.getScenario().getTransitSchedule(), pBox.getpTransitSchedule());
+		scheduleUpdate.end();
+
+		PPhaseStats.Phase vehicleCreation = this.phaseStats.startPhase("vehicleCreation");
+		// only vehicles no longer used are removed, only new ones are added
+		this.currentPVehicles = this.pVehiclesFactory.updateVehicles(pBox.getpTransitSchedule(), controler.getScenario().getTransitVehicles());
+		vehicleCreation.end();
+
+		this.pTransitRouterFactory.updateTransitSchedule();
 	}
 
 	@Override
 	public void notifyScoring(ScoringEvent event) {
 		PBox pBox = (PBox) operators ;
 		pBox.notifyScoring(event);
+		PPhaseStats.Phase scheduleOutput = this.phaseStats.startPhase("scheduleOutput");
+		this.scheduleOutputWriter.writeSchedule(pBox.getpTransitSchedule(), event.getServices().getControlerIO().getIterationFilename(event.getIteration(), "transitScheduleScored.xml.gz"));
+		scheduleOutput.end();
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		this.lastIterationEnded = event.getIteration();
+	}
+
+	@Override
+	public void notifyShutdown(ShutdownEvent event) {
+		this.scheduleOutputWriter.close();
+		this.writePhaseStatsOfLastIteration();
+		this.phaseStats.close();
+	}
+
+	/**
+	 * The phase stats of an iteration are written once the next one starts. The stats listeners time their output at the end of the iteration, too, and may be called after this listener.
+	 */
+	private void writePhaseStatsOfLastIteration() {
+		if (this.lastIterationEnded >= 0) {
+			this.phaseStats.writeIteration(this.lastIterationEnded);
+			this.lastIterationEnded = -1;
+		}
 	}
 
 	private final Set<Id<TransitStopFacility>> currentExclusivePFacilityIDs = new HashSet<>();
@@ -108,12 +166,28 @@ final class PControlerListener implements IterationStartsListener, StartupListen
 			log.info("pSchedule does not exist, doing nothing");
 			return;
 		}
+		// stops no longer part of the paratransit schedule are removed, new ones are added. All others remain untouched
+		int stopsBefore = currentExclusivePFacilityIDs.size();
+		int stopsRemoved = 0;
+		Iterator<Id<TransitStopFacility>> facilityIdIterator = currentExclusivePFacilityIDs.iterator();
+		while (facilityIdIterator.hasNext()) {
+			Id<TransitStopFacility> facilityId = facilityIdIterator.next();
+			if (!pSchedule.getFacilities().containsKey(facilityId)) {
+				baseSchedule.removeStopFacility(baseSchedule.getFacilities().get(facilityId));
+				facilityIdIterator.remove();
+				stopsRemoved++;
+			}
+		}
+		int stopsAdded = 0;
 		for (TransitStopFacility pStop : pSchedule.getFacilities().values()) {
 			if (!baseSchedule.getFacilities().containsKey(pStop.getId())) {
 				baseSchedule.addStopFacility(pStop);
 				currentExclusivePFacilityIDs.add(pStop.getId());
+				stopsAdded++;
 			}
 		}
+		log.info("Paratransit stops in the transit schedule: " + currentExclusivePFacilityIDs.size() + " (before: " + stopsBefore + ", added: " + stopsAdded + ", removed: " + stopsRemoved + ")");
+		
 		for (TransitLine pLine : pSchedule.getTransitLines().values()) {
 			if (!baseSchedule.getTransitLines().containsKey(pLine.getId())) {
 				baseSchedule.addTransitLine(pLine);
@@ -127,45 +201,6 @@ final class PControlerListener implements IterationStartsListener, StartupListen
 			transitSchedule.removeTransitLine(transitSchedule.getTransitLines().get(transitLineId));
 		}
 		currentExclusivePTransitLineIDs.clear();
-		for (Id<TransitStopFacility> facilityId : currentExclusivePFacilityIDs) {
-			transitSchedule.removeStopFacility(transitSchedule.getFacilities().get(facilityId));
-		}
-		currentExclusivePFacilityIDs.clear();
-	}
-
-	private final Set<Id<VehicleType>> currentExclusivePVehicleTypeIDs = new HashSet<>();
-	private final Set<Id<Vehicle>> currentExclusivePVehicleIDs = new HashSet<>();
-
-	private void addPVehiclesToOriginalOnes(Vehicles baseVehicles, Vehicles pVehicles){
-		for (VehicleType t : pVehicles.getVehicleTypes().values()) {
-			if (!baseVehicles.getVehicleTypes().containsKey(t.getId())) {
-				baseVehicles.addVehicleType(t);
-				currentExclusivePVehicleTypeIDs.add(t.getId());
-			}
-		}
-		for (Vehicle v : pVehicles.getVehicles().values()) {
-			if (!baseVehicles.getVehicles().containsKey(v.getId())) {
-				baseVehicles.addVehicle(v);
-				currentExclusivePVehicleIDs.add(v.getId());
-			}
-		}
-	}
-
-	private void removePreviousPVehiclesFromScenario(Vehicles vehicles) {
-		for (Id<Vehicle> vehicleId : currentExclusivePVehicleIDs) {
-			vehicles.removeVehicle(vehicleId);
-		}
-		currentExclusivePVehicleIDs.clear();
-		for (Id<VehicleType> vehicleTypeId : currentExclusivePVehicleTypeIDs) {
-			vehicles.removeVehicleType(vehicleTypeId);
-		}
-		currentExclusivePVehicleTypeIDs.clear();
-	}
-
-	private void dumpTransitScheduleAndVehicles(MatsimServices controler, int iteration){
-		TransitScheduleWriterV1 writer = new TransitScheduleWriterV1(controler.getScenario().getTransitSchedule());
-		VehicleWriterV1 writer2 = new VehicleWriterV1(controler.getScenario().getTransitVehicles());
-		writer.write(controler.getControlerIO().getIterationFilename(iteration, "transitSchedule.xml.gz"));
-		writer2.writeFile(controler.getControlerIO().getIterationFilename(iteration, "vehicles.xml.gz"));
+		// stop facilities are updated incrementally in addPTransitScheduleToOriginalOne
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,231 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.hook;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.utils.io.UncheckedIOException;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Compact binary format for the paratransit lines of one iteration, relative to the lines of the previous iteration.
+ * A delta lists the ids of the lines removed, followed by all lines that are new or changed. The first delta of a run is relative to no lines at all.
+ * 
+ * @author manserpa
+ *
+ */
+final class PScheduleDeltaCodec {
+	
+	private static final int FORMAT_VERSION = 1;
+	
+	private PScheduleDeltaCodec() {} // should not be instantiated
+	
+	/**
+	 * Encodes a single transit line. Equal lines result in equal byte arrays.
+	 * 
+	 * @param line
+	 * @return
+	 */
+	static byte[] encodeLine(TransitLine line) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(line.getId().toString());
+			out.writeInt(line.getRoutes().size());
+			for (TransitRoute route : line.getRoutes().values()) {
+				out.writeUTF(route.getId().toString());
+				out.writeUTF(route.getTransportMode());
+				
+				NetworkRoute networkRoute = route.getRoute();
+				out.writeBoolean(networkRoute != null);
+				if (networkRoute != null) {
+					out.writeUTF(networkRoute.getStartLinkId().toString());
+					out.writeInt(networkRoute.getLinkIds().size());
+					for (Id<Link> linkId : networkRoute.getLinkIds()) {
+						out.writeUTF(linkId.toString());
+					}
+					out.writeUTF(networkRoute.getEndLinkId().toString());
+				}
+				
+				out.writeInt(route.getStops().size());
+				for (TransitRouteStop stop : route.getStops()) {
+					out.writeUTF(stop.getStopFacility().getId().toString());
+					out.writeDouble(stop.getArrivalOffset());
+					out.writeDouble(stop.getDepartureOffset());
+					out.writeBoolean(stop.isAwaitDepartureTime());
+				}
+				
+				out.writeInt(route.getDepartures().size());
+				for (Departure departure : route.getDepartures().values()) {
+					out.writeUTF(departure.getId().toString());
+					out.writeDouble(departure.getDepartureTime());
+					out.writeBoolean(departure.getVehicleId() != null);
+					if (departure.getVehicleId() != null) {
+						out.writeUTF(departure.getVehicleId().toString());
+					}
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Writes the delta between the lines of the previous and the current iteration.
+	 * 
+	 * @param out
+	 * @param iteration
+	 * @param encodedLinesLastIteration encoded lines of the previous iteration
+	 * @param encodedLines encoded lines of the current iteration
+	 * @return the number of lines written, i.e. new or changed
+	 * @throws IOException
+	 */
+	static int writeDelta(DataOutputStream out, int iteration, Map<Id<TransitLine>, byte[]> encodedLinesLastIteration, Map<Id<TransitLine>, byte[]> encodedLines) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(iteration);
+		
+		List<Id<TransitLine>> removedLines = new ArrayList<>();
+		for (Id<TransitLine> lineId : encodedLinesLastIteration.keySet()) {
+			if (!encodedLines.containsKey(lineId)) {
+				removedLines.add(lineId);
+			}
+		}
+		out.writeInt(removedLines.size());
+		for (Id<TransitLine> lineId : removedLines) {
+			out.writeUTF(lineId.toString());
+		}
+		
+		List<byte[]> changedLines = new ArrayList<>();
+		for (Entry<Id<TransitLine>, byte[]> lineEntry : encodedLines.entrySet()) {
+			byte[] encodedLineLastIteration = encodedLinesLastIteration.get(lineEntry.getKey());
+			if (encodedLineLastIteration == null || !Arrays.equals(encodedLineLastIteration, lineEntry.getValue())) {
+				changedLines.add(lineEntry.getValue());
+			}
+		}
+		out.writeInt(changedLines.size());
+		for (byte[] encodedLine : changedLines) {
+			out.writeInt(encodedLine.length);
+			out.write(encodedLine);
+		}
+		return changedLines.size();
+	}
+	
+	/**
+	 * Applies one delta to the given lines.
+	 * 
+	 * @param in
+	 * @param lines lines of the previous iteration, will be modified
+	 * @param stopFacilities facilities referenced by the lines
+	 * @param factory
+	 * @return the iteration of the delta
+	 * @throws IOException
+	 */
+	static int readDelta(DataInputStream in, Map<Id<TransitLine>, TransitLine> lines, TransitSchedule stopFacilities, TransitScheduleFactory factory) throws IOException {
+		int version = in.readInt();
+		if (version != FORMAT_VERSION) {
+			throw new RuntimeException("Unknown format version " + version + " of paratransit schedule delta. Expected " + FORMAT_VERSION);
+		}
+		int iteration = in.readInt();
+		
+		int numberOfRemovedLines = in.readInt();
+		for (int i = 0; i < numberOfRemovedLines; i++) {
+			lines.remove(Id.create(in.readUTF(), TransitLine.class));
+		}
+		
+		int numberOfChangedLines = in.readInt();
+		for (int i = 0; i < numberOfChangedLines; i++) {
+			byte[] encodedLine = new byte[in.readInt()];
+			in.readFully(encodedLine);
+			TransitLine line = decodeLine(encodedLine, stopFacilities, factory);
+			lines.put(line.getId(), line);
+		}
+		return iteration;
+	}
+	
+	private static TransitLine decodeLine(byte[] encodedLine, TransitSchedule stopFacilities, TransitScheduleFactory factory) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(encodedLine));
+		
+		TransitLine line = factory.createTransitLine(Id.create(in.readUTF(), TransitLine.class));
+		int numberOfRoutes = in.readInt();
+		for (int i = 0; i < numberOfRoutes; i++) {
+			Id<TransitRoute> routeId = Id.create(in.readUTF(), TransitRoute.class);
+			String transportMode = in.readUTF();
+			
+			NetworkRoute networkRoute = null;
+			if (in.readBoolean()) {
+				Id<Link> startLinkId = Id.create(in.readUTF(), Link.class);
+				int numberOfLinks = in.readInt();
+				List<Id<Link>> linkIds = new ArrayList<>(numberOfLinks);
+				for (int j = 0; j < numberOfLinks; j++) {
+					linkIds.add(Id.create(in.readUTF(), Link.class));
+				}
+				Id<Link> endLinkId = Id.create(in.readUTF(), Link.class);
+				networkRoute = RouteUtils.createLinkNetworkRouteImpl(startLinkId, linkIds, endLinkId);
+			}
+			
+			int numberOfStops = in.readInt();
+			List<TransitRouteStop> stops = new ArrayList<>(numberOfStops);
+			for (int j = 0; j < numberOfStops; j++) {
+				Id<TransitStopFacility> stopId = Id.create(in.readUTF(), TransitStopFacility.class);
+				TransitStopFacility stopFacility = stopFacilities.getFacilities().get(stopId);
+				if (stopFacility == null) {
+					throw new RuntimeException("Stop facility " + stopId + " of route " + routeId + " not found in the base schedule");
+				}
+				TransitRouteStop stop = factory.createTransitRouteStop(stopFacility, in.readDouble(), in.readDouble());
+				stop.setAwaitDepartureTime(in.readBoolean());
+				stops.add(stop);
+			}
+			
+			TransitRoute route = factory.createTransitRoute(routeId, networkRoute, stops, transportMode);
+			int numberOfDepartures = in.readInt();
+			for (int j = 0; j < numberOfDepartures; j++) {
+				Departure departure = factory.createDeparture(Id.create(in.readUTF(), Departure.class), in.readDouble());
+				if (in.readBoolean()) {
+					departure.setVehicleId(Id.create(in.readUTF(), Vehicle.class));
+				}
+				route.addDeparture(departure);
+			}
+			line.addRoute(route);
+		}
+		return line;
+	}
+}
@@ -0,0 +1,326 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.hook;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.minibus.stats.PPhaseStats;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.io.UncheckedIOException;
+import org.matsim.pt.transitSchedule.TransitScheduleFactoryImpl;
+import org.matsim.pt.transitSchedule.TransitScheduleWriterV1;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.VehicleWriterV1;
+import org.matsim.vehicles.Vehicles;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the transit schedules and vehicles on a background thread. Depending on the output mode, either
+ * <ul>
+ * <li>the full schedule and vehicles each iteration (as before),</li>
+ * <li>the base schedule and vehicles once and only the paratransit part each iteration, or</li>
+ * <li>the base schedule and vehicles once and a binary delta of the paratransit lines each iteration.</li>
+ * </ul>
+ * The full files of any iteration can be rebuilt with {@link PScheduleRebuilder}.
+ * <p>
+ * Only snapshots are handed over to the background thread. Lines and routes are copied, since operators keep handing out the same line
+ * while it does not change and update the descriptions of its routes when scoring. Stops, network routes and departures are shared,
+ * they are not altered once created.
+ * <p>
+ * At most {@value #MAX_PENDING_WRITES} writes are pending at a time. Further ones wait for a write to finish, they are not run on the calling thread, since this would break the order of the deltas.
+ * 
+ * @author manserpa
+ *
+ */
+final class PScheduleOutputWriter {
+	
+	private final static Logger log = Logger.getLogger(PScheduleOutputWriter.class);
+	
+	static final String MODE_FULL = "full";
+	static final String MODE_PARATRANSIT_ONLY = "paratransitOnly";
+	static final String MODE_DELTA = "delta";
+	
+	static final String FULL_SCHEDULE_FILE = "transitSchedule.xml.gz";
+	static final String FULL_VEHICLES_FILE = "vehicles.xml.gz";
+	static final String BASE_SCHEDULE_FILE = "transitScheduleBase.xml.gz";
+	static final String BASE_VEHICLES_FILE = "vehiclesBase.xml.gz";
+	static final String P_SCHEDULE_FILE = "pTransitSchedule.xml.gz";
+	static final String P_VEHICLES_FILE = "pVehicles.xml.gz";
+	static final String P_SCHEDULE_DELTA_FILE = "pTransitScheduleDelta.bin.gz";
+	
+	// number of pending writes before the controler has to wait
+	static final int MAX_PENDING_WRITES = 5;
+	
+	private final String mode;
+	private final OutputDirectoryHierarchy controlerIO;
+	private final PPhaseStats phaseStats;
+	private final ThreadPoolExecutor executor;
+	private final Semaphore writeSlots = new Semaphore(MAX_PENDING_WRITES);
+	private final LinkedList<Future<?>> pendingWrites = new LinkedList<>();
+	
+	// only accessed by the background thread
+	private Map<Id<TransitLine>, byte[]> encodedLinesLastIteration = new LinkedHashMap<>();
+	
+	PScheduleOutputWriter(String mode, OutputDirectoryHierarchy controlerIO, PPhaseStats phaseStats) {
+		if (!MODE_FULL.equals(mode) && !MODE_PARATRANSIT_ONLY.equals(mode) && !MODE_DELTA.equals(mode)) {
+			throw new RuntimeException("Unknown schedule output mode " + mode + ". Use " + MODE_FULL + ", " + MODE_PARATRANSIT_ONLY + " or " + MODE_DELTA);
+		}
+		this.mode = mode;
+		this.controlerIO = controlerIO;
+		this.phaseStats = phaseStats;
+		this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PScheduleOutputWriter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		log.info("Schedule output mode: " + this.mode);
+	}
+	
+	/**
+	 * Writes the base schedule and vehicles, i.e. the ones without any paratransit lines. Has to be called before the paratransit lines are added to the scenario.
+	 * All potential paratransit stops are added to the base schedule, so that the paratransit lines of every iteration can be resolved later on.
+	 * Does nothing in mode {@value #MODE_FULL}.
+	 * 
+	 * @param baseSchedule
+	 * @param baseVehicles
+	 * @param pStopsOnly
+	 */
+	void writeBase(TransitSchedule baseSchedule, Vehicles baseVehicles, TransitSchedule pStopsOnly) {
+		if (MODE_FULL.equals(this.mode)) {
+			return;
+		}
+		final TransitSchedule scheduleSnapshot = copySchedule(baseSchedule);
+		for (TransitStopFacility pStop : pStopsOnly.getFacilities().values()) {
+			if (!scheduleSnapshot.getFacilities().containsKey(pStop.getId())) {
+				scheduleSnapshot.addStopFacility(pStop);
+			}
+		}
+		this.submitScheduleAndVehicles(scheduleSnapshot, this.controlerIO.getOutputFilename(BASE_SCHEDULE_FILE), copyVehicles(baseVehicles), this.controlerIO.getOutputFilename(BASE_VEHICLES_FILE));
+	}
+	
+	/**
+	 * Writes the schedule and vehicles of the given iteration according to the output mode.
+	 * 
+	 * @param iteration
+	 * @param schedule the scenario schedule including the paratransit lines
+	 * @param vehicles the scenario vehicles including the paratransit vehicles
+	 * @param pSchedule the paratransit lines and stops
+	 * @param pVehicles the paratransit vehicles
+	 */
+	void writeIteration(final int iteration, TransitSchedule schedule, Vehicles vehicles, TransitSchedule pSchedule, Vehicles pVehicles) {
+		if (MODE_FULL.equals(this.mode)) {
+			this.submitScheduleAndVehicles(copySchedule(schedule), this.controlerIO.getIterationFilename(iteration, FULL_SCHEDULE_FILE), copyVehicles(vehicles), this.controlerIO.getIterationFilename(iteration, FULL_VEHICLES_FILE));
+		
+		} else if (MODE_PARATRANSIT_ONLY.equals(this.mode)) {
+			this.submitScheduleAndVehicles(copyServedStopsAndLines(pSchedule), this.controlerIO.getIterationFilename(iteration, P_SCHEDULE_FILE), copyVehicles(pVehicles), this.controlerIO.getIterationFilename(iteration, P_VEHICLES_FILE));
+		
+		} else {
+			final TransitSchedule scheduleSnapshot = copySchedule(pSchedule);
+			final String filename = this.controlerIO.getIterationFilename(iteration, P_SCHEDULE_DELTA_FILE);
+			this.submit(new Runnable() {
+				@Override
+				public void run() {
+					writeDelta(iteration, scheduleSnapshot, filename);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Writes the given schedule as it is.
+	 * 
+	 * @param schedule
+	 * @param filename
+	 */
+	void writeSchedule(TransitSchedule schedule, String filename) {
+		this.submitScheduleAndVehicles(copySchedule(schedule), filename, null, null);
+	}
+	
+	/**
+	 * Waits for all pending writes to finish.
+	 */
+	void close() {
+		this.executor.shutdown();
+		try {
+			while (!this.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.info("Waiting for the schedule output to be written...");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		this.checkPendingWrites(true);
+	}
+	
+	private void writeDelta(int iteration, TransitSchedule pSchedule, String filename) {
+		Map<Id<TransitLine>, byte[]> encodedLines = new LinkedHashMap<>();
+		for (TransitLine line : pSchedule.getTransitLines().values()) {
+			encodedLines.put(line.getId(), PScheduleDeltaCodec.encodeLine(line));
+		}
+		
+		try (DataOutputStream out = new DataOutputStream(IOUtils.getOutputStream(filename))) {
+			int linesWritten = PScheduleDeltaCodec.writeDelta(out, iteration, this.encodedLinesLastIteration, encodedLines);
+			log.info("Wrote " + linesWritten + " new or changed of " + encodedLines.size() + " paratransit lines to " + filename);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.encodedLinesLastIteration = encodedLines;
+	}
+	
+	private void submitScheduleAndVehicles(final TransitSchedule schedule, final String scheduleFilename, final Vehicles vehicles, final String vehiclesFilename) {
+		this.submit(new Runnable() {
+			@Override
+			public void run() {
+				new TransitScheduleWriterV1(schedule).write(scheduleFilename);
+				if (vehicles != null) {
+					new VehicleWriterV1(vehicles).writeFile(vehiclesFilename);
+				}
+			}
+		});
+	}
+	
+	private void submit(final Runnable task) {
+		this.checkPendingWrites(false);
+		// wait for a free slot instead of running the task in the calling thread, which would break the order of the deltas
+		try {
+			this.writeSlots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		try {
+			this.pendingWrites.add(this.executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						PPhaseStats.Phase phase = PScheduleOutputWriter.this.phaseStats.startPhase("scheduleWriting");
+						task.run();
+						phase.end();
+					} finally {
+						PScheduleOutputWriter.this.writeSlots.release();
+					}
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			// the writer was closed already
+			this.writeSlots.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Removes finished writes and rethrows their failures.
+	 * 
+	 * @param all
+	 */
+	private void checkPendingWrites(boolean all) {
+		while (!this.pendingWrites.isEmpty() && (all || this.pendingWrites.getFirst().isDone())) {
+			Future<?> write = this.pendingWrites.removeFirst();
+			try {
+				write.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Writing the transit schedule failed", e.getCause());
+			}
+		}
+	}
+	
+	private static TransitSchedule copySchedule(TransitSchedule schedule) {
+		TransitSchedule copy = new TransitScheduleFactoryImpl().createTransitSchedule();
+		for (TransitStopFacility stop : schedule.getFacilities().values()) {
+			copy.addStopFacility(stop);
+		}
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			copy.addTransitLine(copyLine(copy.getFactory(), line));
+		}
+		return copy;
+	}
+	
+	/**
+	 * Only the stops served are needed to read the lines again. All other stops are part of the base schedule.
+	 */
+	private static TransitSchedule copyServedStopsAndLines(TransitSchedule schedule) {
+		TransitSchedule copy = new TransitScheduleFactoryImpl().createTransitSchedule();
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+				for (TransitRouteStop stop : route.getStops()) {
+					if (!copy.getFacilities().containsKey(stop.getStopFacility().getId())) {
+						copy.addStopFacility(stop.getStopFacility());
+					}
+				}
+			}
+			copy.addTransitLine(copyLine(copy.getFactory(), line));
+		}
+		return copy;
+	}
+	
+	private static TransitLine copyLine(TransitScheduleFactory factory, TransitLine line) {
+		TransitLine copy = factory.createTransitLine(line.getId());
+		copy.setName(line.getName());
+		for (TransitRoute route : line.getRoutes().values()) {
+			TransitRoute routeCopy = factory.createTransitRoute(route.getId(), route.getRoute(), route.getStops(), route.getTransportMode());
+			routeCopy.setDescription(route.getDescription());
+			for (Departure departure : route.getDepartures().values()) {
+				routeCopy.addDeparture(departure);
+			}
+			copy.addRoute(routeCopy);
+		}
+		return copy;
+	}
+	
+	private static Vehicles copyVehicles(Vehicles vehicles) {
+		Vehicles copy = VehicleUtils.createVehiclesContainer();
+		for (VehicleType type : vehicles.getVehicleTypes().values()) {
+			copy.addVehicleType(type);
+		}
+		for (Vehicle vehicle : vehicles.getVehicles().values()) {
+			copy.addVehicle(vehicle);
+		}
+		return copy;
+	}
+}
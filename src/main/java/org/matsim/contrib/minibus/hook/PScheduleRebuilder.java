@@ -0,0 +1,157 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.hook;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.contrib.minibus.PConfigGroup;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.io.UncheckedIOException;
+import org.matsim.pt.transitSchedule.TransitScheduleWriterV1;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleReader;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleReaderV1;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleWriterV1;
+import org.matsim.vehicles.Vehicles;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds the full transit schedule and vehicles of one iteration from the output written in mode
+ * {@value PScheduleOutputWriter#MODE_PARATRANSIT_ONLY} or {@value PScheduleOutputWriter#MODE_DELTA}.
+ * <p>
+ * Arguments: config file, iteration, and optionally the output files for schedule and vehicles.
+ * Defaults to transitSchedule.xml.gz and vehicles.xml.gz in the folder of the iteration.
+ * The output directory and run id are taken from the config.
+ * 
+ * @author manserpa
+ *
+ */
+public final class PScheduleRebuilder {
+	
+	private final static Logger log = Logger.getLogger(PScheduleRebuilder.class);
+	
+	private final Config config;
+	private final String outputDir;
+	private final String runIdPrefix;
+	
+	public PScheduleRebuilder(Config config) {
+		this.config = config;
+		this.outputDir = config.controler().getOutputDirectory();
+		this.runIdPrefix = config.controler().getRunId() == null ? "" : config.controler().getRunId() + ".";
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 2 && args.length != 4) {
+			log.error("Arguments: config file, iteration [, schedule output file, vehicles output file]");
+			return;
+		}
+		Config config = ConfigUtils.loadConfig(args[0], new PConfigGroup());
+		PScheduleRebuilder rebuilder = new PScheduleRebuilder(config);
+		int iteration = Integer.parseInt(args[1]);
+		
+		String scheduleFile = args.length == 4 ? args[2] : rebuilder.getIterationFilename(iteration, PScheduleOutputWriter.FULL_SCHEDULE_FILE);
+		String vehiclesFile = args.length == 4 ? args[3] : rebuilder.getIterationFilename(iteration, PScheduleOutputWriter.FULL_VEHICLES_FILE);
+		rebuilder.rebuild(iteration, scheduleFile, vehiclesFile);
+	}
+	
+	public void rebuild(int iteration, String scheduleFile, String vehiclesFile) {
+		Scenario scenario = ScenarioUtils.createScenario(this.config);
+		new TransitScheduleReader(scenario).readFile(this.getOutputFilename(PScheduleOutputWriter.BASE_SCHEDULE_FILE));
+		new VehicleReaderV1(scenario.getTransitVehicles()).readFile(this.getOutputFilename(PScheduleOutputWriter.BASE_VEHICLES_FILE));
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		Vehicles vehicles = scenario.getTransitVehicles();
+		
+		TransitSchedule pSchedule;
+		Vehicles pVehicles;
+		if (new File(this.getIterationFilename(iteration, PScheduleOutputWriter.P_SCHEDULE_FILE)).exists()) {
+			log.info("Reading paratransit schedule of iteration " + iteration);
+			Scenario pScenario = ScenarioUtils.createScenario(this.config);
+			new TransitScheduleReader(pScenario).readFile(this.getIterationFilename(iteration, PScheduleOutputWriter.P_SCHEDULE_FILE));
+			new VehicleReaderV1(pScenario.getTransitVehicles()).readFile(this.getIterationFilename(iteration, PScheduleOutputWriter.P_VEHICLES_FILE));
+			pSchedule = pScenario.getTransitSchedule();
+			pVehicles = pScenario.getTransitVehicles();
+		} else {
+			log.info("Replaying paratransit schedule deltas up to iteration " + iteration);
+			pSchedule = ScenarioUtils.createScenario(this.config).getTransitSchedule();
+			for (TransitLine line : this.replayDeltas(iteration, schedule).values()) {
+				pSchedule.addTransitLine(line);
+			}
+			pVehicles = new PVehiclesFactory(ConfigUtils.addOrGetModule(this.config, PConfigGroup.class)).createVehicles(pSchedule);
+		}
+		
+		for (TransitStopFacility stop : pSchedule.getFacilities().values()) {
+			if (!schedule.getFacilities().containsKey(stop.getId())) {
+				schedule.addStopFacility(stop);
+			}
+		}
+		for (TransitLine line : pSchedule.getTransitLines().values()) {
+			schedule.addTransitLine(line);
+		}
+		for (VehicleType type : pVehicles.getVehicleTypes().values()) {
+			if (!vehicles.getVehicleTypes().containsKey(type.getId())) {
+				vehicles.addVehicleType(type);
+			}
+		}
+		for (Vehicle vehicle : pVehicles.getVehicles().values()) {
+			if (!vehicles.getVehicles().containsKey(vehicle.getId())) {
+				// vehicle types are matched by id, the ones of the base take precedence
+				vehicles.addVehicle(vehicles.getFactory().createVehicle(vehicle.getId(), vehicles.getVehicleTypes().get(vehicle.getType().getId())));
+			}
+		}
+		
+		new TransitScheduleWriterV1(schedule).write(scheduleFile);
+		new VehicleWriterV1(vehicles).writeFile(vehiclesFile);
+		log.info("Wrote " + pSchedule.getTransitLines().size() + " paratransit lines of iteration " + iteration + " to " + scheduleFile + " and " + vehiclesFile);
+	}
+	
+	private Map<Id<TransitLine>, TransitLine> replayDeltas(int iteration, TransitSchedule stopFacilities) {
+		Map<Id<TransitLine>, TransitLine> lines = new LinkedHashMap<>();
+		for (int i = this.config.controler().getFirstIteration(); i <= iteration; i++) {
+			String filename = this.getIterationFilename(i, PScheduleOutputWriter.P_SCHEDULE_DELTA_FILE);
+			try (DataInputStream in = new DataInputStream(IOUtils.getInputStream(filename))) {
+				PScheduleDeltaCodec.readDelta(in, lines, stopFacilities, stopFacilities.getFactory());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return lines;
+	}
+	
+	private String getOutputFilename(String filename) {
+		return this.outputDir + "/" + this.runIdPrefix + filename;
+	}
+	
+	private String getIterationFilename(int iteration, String filename) {
+		return this.outputDir + "/ITERS/it." + iteration + "/" + this.runIdPrefix + iteration + "." + filename;
+	}
+}
@@ -25,6 +25,7 @@ import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptor;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
 import org.apache.log4j.Logger;
 import org.matsim.contrib.minibus.PConfigGroup;
+import org.matsim.contrib.minibus.stats.PPhaseStats;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.pt.router.TransitRouter;
@@ -56,6 +57,7 @@ class PTransitRouterFactory implements Provider<TransitRouter> {
 	private Provider<TransitRouter> routerFactory = null;
 	@Inject private TransitSchedule schedule;
 	private SwissRailRaptorData raptorParams;
+	private PPhaseStats phaseStats = null;
 
 	public PTransitRouterFactory(Config config){
 		this.config = config;
@@ -65,6 +67,15 @@ class PTransitRouterFactory implements Provider<TransitRouter> {
 		this.createTransitRouterConfig(config);
 	}
 
+	/**
+	 * Tracks the time needed to build the raptor data from now on.
+	 * 
+	 * @param phaseStats
+	 */
+	void setPhaseStats(PPhaseStats phaseStats) {
+		this.phaseStats = phaseStats;
+	}
+
 	private void createTransitRouterConfig(Config config) {
 		this.transitRouterConfig = new TransitRouterConfig(config.planCalcScore(), config.plansCalcRoute(), config.transitRouter(), config.vspExperimental());
 	}
@@ -72,8 +83,12 @@ class PTransitRouterFactory implements Provider<TransitRouter> {
 	void updateTransitSchedule() {
 		this.needToUpdateRouter = true;
 
+		PPhaseStats.Phase phase = this.phaseStats == null ? null : this.phaseStats.startPhase("raptorRebuild");
 		RaptorConfig raptorConfig = RaptorUtils.createRaptorConfig(this.config);
 		this.raptorParams = SwissRailRaptorData.create(this.schedule, raptorConfig);
+		if (phase != null) {
+			phase.end();
+		}
 
 	}
 
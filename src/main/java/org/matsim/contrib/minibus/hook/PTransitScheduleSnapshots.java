@@ -0,0 +1,137 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.hook;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.minibus.operator.Operator;
+import org.matsim.pt.transitSchedule.TransitScheduleFactoryImpl;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides the current paratransit schedule, i.e. the lines of all operators and the stops. A new snapshot is created only if
+ * at least one operator changed its line since the last snapshot, otherwise the same instance is handed out again.
+ * An operator is considered changed, if it hands out a different line instance or if it is new or gone. Operators keep their line instance
+ * as long as its routes do not change, see AbstractOperator.
+ * <p>
+ * Snapshots are shared with the scenario's schedule, the router and the schedule writer. Only this class adds stops and lines to a snapshot,
+ * all others must not alter its stops or lines. The only exception are the descriptions of the routes, which the operators update when scored.
+ * 
+ * @author manserpa
+ *
+ */
+final class PTransitScheduleSnapshots {
+	
+	private final static Logger log = Logger.getLogger(PTransitScheduleSnapshots.class);
+	
+	private final TransitSchedule pStopsOnly;
+	private final boolean addOnlyServedPStops;
+	
+	private Map<Id<Operator>, TransitLine> linesOfLastSnapshot = new LinkedHashMap<>();
+	// number of routes serving each stop, only used if only served stops are added
+	private final Map<TransitStopFacility, Integer> stop2NumberOfRoutes = new LinkedHashMap<>();
+	private TransitSchedule snapshot = null;
+	private int version = 0;
+	
+	PTransitScheduleSnapshots(TransitSchedule pStopsOnly, boolean addOnlyServedPStops) {
+		this.pStopsOnly = pStopsOnly;
+		this.addOnlyServedPStops = addOnlyServedPStops;
+	}
+	
+	/**
+	 * @param operators
+	 * @return the paratransit schedule for the given operators. Equals the last snapshot, if no operator changed in between.
+	 */
+	TransitSchedule getSnapshot(List<Operator> operators) {
+		Map<Id<Operator>, TransitLine> lines = new LinkedHashMap<>();
+		int linesChanged = 0;
+		for (Operator operator : operators) {
+			TransitLine line = operator.getCurrentTransitLine();
+			TransitLine lineOfLastSnapshot = this.linesOfLastSnapshot.remove(operator.getId());
+			if (line != lineOfLastSnapshot) {
+				linesChanged++;
+				if (lineOfLastSnapshot != null) {
+					this.updateServedStops(lineOfLastSnapshot, -1);
+				}
+				this.updateServedStops(line, 1);
+			}
+			lines.put(operator.getId(), line);
+		}
+		
+		// operators gone
+		for (TransitLine line : this.linesOfLastSnapshot.values()) {
+			this.updateServedStops(line, -1);
+			linesChanged++;
+		}
+		this.linesOfLastSnapshot = lines;
+		
+		if (this.snapshot != null && linesChanged == 0) {
+			return this.snapshot;
+		}
+		
+		TransitSchedule schedule = new TransitScheduleFactoryImpl().createTransitSchedule();
+		if (this.addOnlyServedPStops) {
+			for (TransitStopFacility stop : this.stop2NumberOfRoutes.keySet()) {
+				schedule.addStopFacility(stop);
+			}
+		} else {
+			for (TransitStopFacility stop : this.pStopsOnly.getFacilities().values()) {
+				schedule.addStopFacility(stop);
+			}
+		}
+		for (TransitLine line : lines.values()) {
+			schedule.addTransitLine(line);
+		}
+		
+		this.snapshot = schedule;
+		this.version++;
+		log.info("Paratransit schedule version " + this.version + ": " + linesChanged + " of " + lines.size() + " lines changed");
+		return this.snapshot;
+	}
+	
+	int getVersion() {
+		return this.version;
+	}
+	
+	private void updateServedStops(TransitLine line, int delta) {
+		if (!this.addOnlyServedPStops) {
+			return;
+		}
+		for (TransitRoute route : line.getRoutes().values()) {
+			for (TransitRouteStop stop : route.getStops()) {
+				Integer numberOfRoutes = this.stop2NumberOfRoutes.get(stop.getStopFacility());
+				int newNumberOfRoutes = (numberOfRoutes == null ? 0 : numberOfRoutes) + delta;
+				if (newNumberOfRoutes > 0) {
+					this.stop2NumberOfRoutes.put(stop.getStopFacility(), newNumberOfRoutes);
+				} else {
+					this.stop2NumberOfRoutes.remove(stop.getStopFacility());
+				}
+			}
+		}
+	}
+}
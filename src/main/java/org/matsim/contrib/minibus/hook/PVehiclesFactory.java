@@ -22,17 +22,24 @@ package org.matsim.contrib.minibus.hook;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
-import org.matsim.contrib.minibus.PConfigGroup.PStrategySettings;
 import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
-import org.matsim.contrib.minibus.replanning.PStrategy;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
 import org.matsim.pt.transitSchedule.api.Departure;
 import org.matsim.pt.transitSchedule.api.TransitLine;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
 import org.matsim.vehicles.*;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
 /**
- * Generates vehicles for a whole transit schedule
+ * Generates vehicles for a whole transit schedule. Either from scratch or, for the scenario, as a pool which is kept from iteration to iteration.
+ * The vehicle type is taken from the vehicle id, see {@link PVehicleTypeRegistry#parseIndex(Id)}. Vehicles of the pool are registered with their type.
  * 
  * @author aneumann
  *
@@ -42,10 +49,35 @@ class PVehiclesFactory {
 
 	private final static Logger log = Logger.getLogger(PVehiclesFactory.class);
 	
-	private final PConfigGroup pConfig;
+	private final Map<String, VehicleType> vehicleTypes = new LinkedHashMap<>();
+	private final PVehicleTypeRegistry pVehicleTypes;
+	
+	// the pool - vehicles of the previous iteration, and the ones added to the scenario by this factory
+	private Vehicles pVehicles = null;
+	private final Set<Id<VehicleType>> vehicleTypesAddedToScenario = new HashSet<>();
+	private final Set<Id<Vehicle>> vehiclesAddedToScenario = new HashSet<>();
+	private int unknownVehicleTypeWarnCounter = 10;
 
 	public PVehiclesFactory(PConfigGroup pConfig) {
-		this.pConfig = pConfig;
+		this.pVehicleTypes = pConfig.getPVehicleTypeRegistry();
+		// create different vehicle types
+		VehiclesFactory vehFactory = VehicleUtils.createVehiclesContainer().getFactory();
+		for (PVehicleSettings settings : pConfig.getPVehicleSettings()) {
+			String type = settings.getPVehicleName();
+			VehicleType vehType = vehFactory.createVehicleType(Id.create(type, VehicleType.class));
+			
+			VehicleCapacity capacity = new VehicleCapacityImpl();
+			capacity.setSeats(settings.getCapacityPerVehicle() + 1); // july 2011 the driver takes one seat
+			capacity.setStandingRoom(0);
+			vehType.setCapacity(capacity);
+
+			vehType.setPcuEquivalents(pConfig.getPassengerCarEquivalents());
+			vehType.setMaximumVelocity(pConfig.getVehicleMaximumVelocity());
+			vehType.setAccessTime(pConfig.getDelayPerBoardingPassenger());
+			vehType.setEgressTime(pConfig.getDelayPerAlightingPassenger());
+			vehType.setDoorOperationMode(pConfig.getDoorOperationMode());
+			this.vehicleTypes.put(type, vehType);
+		}
 	}
 
 	/**
@@ -56,44 +88,105 @@ class PVehiclesFactory {
 
 	public Vehicles createVehicles(TransitSchedule pTransitSchedule){		
 		Vehicles vehicles = VehicleUtils.createVehiclesContainer();		
-		VehiclesFactory vehFactory = vehicles.getFactory();
-
-		// create different vehicle types
-		for (PVehicleSettings settings : pConfig.getPVehicleSettings()) {
-			String type = settings.getPVehicleName();
-			VehicleType vehType = vehFactory.createVehicleType(Id.create(type, VehicleType.class));
-			
-			VehicleCapacity capacity = new VehicleCapacityImpl();
-			capacity.setSeats(settings.getCapacityPerVehicle() + 1); // july 2011 the driver takes one seat
-			capacity.setStandingRoom(0);
-			vehType.setCapacity(capacity);
+		for (VehicleType vehType : this.vehicleTypes.values()) {
+			vehicles.addVehicleType(vehType);
+		}
 
-			vehType.setPcuEquivalents(this.pConfig.getPassengerCarEquivalents());
-			vehType.setMaximumVelocity(this.pConfig.getVehicleMaximumVelocity());
-			vehType.setAccessTime(this.pConfig.getDelayPerBoardingPassenger());
-			vehType.setEgressTime(this.pConfig.getDelayPerAlightingPassenger());
-			vehType.setDoorOperationMode(this.pConfig.getDoorOperationMode());
-			vehicles.addVehicleType( vehType);
+		for (Id<Vehicle> vehicleId : getVehicleIds(pTransitSchedule)) {
+			VehicleType vehType = this.getVehicleType(vehicleId, this.pVehicleTypes.parseIndex(vehicleId));
+			if (vehType != null) {
+				vehicles.addVehicle(vehicles.getFactory().createVehicle(vehicleId, vehType));
+			}
+		}
+		return vehicles;
+	}
+	
+	/**
+	 * Updates the pool of paratransit vehicles to the departures of the given transit schedule. Only vehicles no longer used are removed and only new ones are created.
+	 * The changes are applied to the scenario vehicles as well. Vehicles and vehicle types which already were part of the scenario before are left untouched.
+	 * 
+	 * @param pTransitSchedule
+	 * @param scenarioVehicles
+	 * @return The vehicles used by paratransit lines. The container is reused in the next call.
+	 */
+	public Vehicles updateVehicles(TransitSchedule pTransitSchedule, Vehicles scenarioVehicles) {
+		if (this.pVehicles == null) {
+			this.pVehicles = VehicleUtils.createVehiclesContainer();
+			for (VehicleType vehType : this.vehicleTypes.values()) {
+				this.pVehicles.addVehicleType(vehType);
+				if (!scenarioVehicles.getVehicleTypes().containsKey(vehType.getId())) {
+					scenarioVehicles.addVehicleType(vehType);
+					this.vehicleTypesAddedToScenario.add(vehType.getId());
+				}
+			}
 		}
 		
-
+		Set<Id<Vehicle>> vehicleIdsInUse = getVehicleIds(pTransitSchedule);
+		
+		int vehiclesRemoved = 0;
+		for (Id<Vehicle> vehicleId : new ArrayList<>(this.pVehicles.getVehicles().keySet())) {
+			if (!vehicleIdsInUse.contains(vehicleId)) {
+				this.pVehicles.removeVehicle(vehicleId);
+				this.pVehicleTypes.unregisterVehicle(vehicleId);
+				if (this.vehiclesAddedToScenario.remove(vehicleId)) {
+					scenarioVehicles.removeVehicle(vehicleId);
+				}
+				vehiclesRemoved++;
+			}
+		}
+		
+		int vehiclesAdded = 0;
+		for (Id<Vehicle> vehicleId : vehicleIdsInUse) {
+			if (!this.pVehicles.getVehicles().containsKey(vehicleId)) {
+				int typeIndex = this.pVehicleTypes.parseIndex(vehicleId);
+				VehicleType vehType = this.getVehicleType(vehicleId, typeIndex);
+				if (vehType == null) {
+					continue;
+				}
+				this.pVehicleTypes.registerVehicle(vehicleId, typeIndex);
+				Vehicle vehicle = this.pVehicles.getFactory().createVehicle(vehicleId, vehType);
+				this.pVehicles.addVehicle(vehicle);
+				if (!scenarioVehicles.getVehicles().containsKey(vehicleId)) {
+					scenarioVehicles.addVehicle(vehicle);
+					this.vehiclesAddedToScenario.add(vehicleId);
+				}
+				vehiclesAdded++;
+			}
+		}
+		
+		log.info("Paratransit vehicles: " + this.pVehicles.getVehicles().size() + " (added: " + vehiclesAdded + ", removed: " + vehiclesRemoved + ")");
+		return this.pVehicles;
+	}
+	
+	private static Set<Id<Vehicle>> getVehicleIds(TransitSchedule pTransitSchedule) {
+		Set<Id<Vehicle>> vehicleIds = new LinkedHashSet<>();
 		for (TransitLine line : pTransitSchedule.getTransitLines().values()) {
 			for (TransitRoute route : line.getRoutes().values()) {
 				for (Departure departure : route.getDepartures().values()) {
-					if (!vehicles.getVehicles().keySet().contains(departure.getVehicleId())) {
-						for (PVehicleSettings settings : this.pConfig.getPVehicleSettings()) {
-							String type = settings.getPVehicleName();
-							if(departure.getVehicleId().toString().contains(type))	{
-								Vehicle vehicle = vehFactory.createVehicle(departure.getVehicleId(), 
-										vehicles.getVehicleTypes().get(Id.create(type, VehicleType.class)));
-								vehicles.addVehicle( vehicle);
-							}
-						}
-						
-					}
+					vehicleIds.add(departure.getVehicleId());
 				}
 			}
 		}
-		return vehicles;
+		return vehicleIds;
+	}
+	
+	/**
+	 * @param vehicleId
+	 * @param typeIndex
+	 * @return The vehicle type of the given index or null if there is none
+	 */
+	private VehicleType getVehicleType(Id<Vehicle> vehicleId, int typeIndex) {
+		if (typeIndex != PVehicleTypeRegistry.UNKNOWN) {
+			return this.vehicleTypes.get(this.pVehicleTypes.getName(typeIndex));
+		}
+		
+		if (this.unknownVehicleTypeWarnCounter > 0) {
+			log.warn("Could not find the vehicle type of vehicle " + vehicleId + ". Will not create it.");
+			this.unknownVehicleTypeWarnCounter--;
+			if (this.unknownVehicleTypeWarnCounter == 0) {
+				log.warn("Future occurences of this logging statement are suppressed.");
+			}
+		}
+		return null;
 	}
 }
@@ -19,7 +19,11 @@
 
 package org.matsim.contrib.minibus.operator;
 
-import java.util.Collection;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -27,16 +31,19 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
 import org.matsim.contrib.minibus.PConstants.OperatorState;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
 import org.matsim.contrib.minibus.performance.PTransitLineMerger;
 import org.matsim.contrib.minibus.replanning.PStrategy;
 import org.matsim.contrib.minibus.replanning.PStrategyManager;
 import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
-import org.matsim.contrib.minibus.scoring.PScoreContainer;
+import org.matsim.contrib.minibus.scoring.PScorePlansHandler;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.pt.transitSchedule.api.Departure;
 import org.matsim.pt.transitSchedule.api.TransitLine;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
-import org.matsim.vehicles.Vehicle;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 
 /**
  * Common implementation for all operators, except for replanning
@@ -63,6 +70,7 @@ abstract class AbstractOperator implements Operator{
 	PPlan testPlan;
 
 	private TransitLine currentTransitLine;
+	private TransitLine mergedTransitLine;
 	private int numberOfIterationsForProspecting;
 	
 	double budget;
@@ -72,14 +80,14 @@ abstract class AbstractOperator implements Operator{
 	
 	PRouteProvider routeProvider;
 	int currentIteration;
-
-	private Collection<PVehicleSettings> pVehicleSettings;
+	
+	final PVehicleTypeRegistry pVehicleTypes;
 
 
 	AbstractOperator(Id<Operator> id, PConfigGroup pConfig, PFranchise franchise, PRouteOverlap pRouteOverlap){
 		this.id = id;
 		this.numberOfIterationsForProspecting = pConfig.getNumberOfIterationsForProspecting();
-		this.pVehicleSettings = pConfig.getPVehicleSettings();
+		this.pVehicleTypes = pConfig.getPVehicleTypeRegistry();
 		this.minOperationTime = pConfig.getMinOperationTime();
 		this.mergeTransitLine = pConfig.getMergeTransitLine();
 		this.franchise = franchise;
@@ -98,6 +106,7 @@ abstract class AbstractOperator implements Operator{
 			// failed to provide a plan, abort intitialization
 			return false;
 		}
+		this.franchise.planAdopted(this.bestPlan);
 		
 		this.testPlan = null;
 		this.numberOfPlansTried = 0;
@@ -108,7 +117,7 @@ abstract class AbstractOperator implements Operator{
 	}
 
 	@Override
-	public void score(Map<Id<Vehicle>, PScoreContainer> driverId2ScoreMap) {
+	public void score(PScorePlansHandler scorePlansHandler) {
 		this.scoreLastIteration = this.score;
 		this.score = 0;
 		
@@ -117,18 +126,24 @@ abstract class AbstractOperator implements Operator{
 		
 		// score all plans
 		for (PPlan plan : this.getAllPlans()) {
-			scorePlan(driverId2ScoreMap, plan);
+			scorePlan(scorePlansHandler, plan);
 			this.score += plan.getScore();
+			String description = plan.toString(this.budget + this.score);
 			for (TransitRoute route : plan.getLine().getRoutes().values()) {
-				route.setDescription(plan.toString(this.budget + this.score));
+				route.setDescription(description);
+				// the current line keeps its routes while they do not change, see updateCurrentTransitLine
+				TransitRoute routeOfCurrentLine = this.currentTransitLine == null ? null : this.currentTransitLine.getRoutes().get(route.getId());
+				if (routeOfCurrentLine != null) {
+					routeOfCurrentLine.setDescription(description);
+				}
+				// merging copies the routes it merges departures into
+				TransitRoute routeOfMergedLine = this.mergedTransitLine == null ? null : this.mergedTransitLine.getRoutes().get(route.getId());
+				if (routeOfMergedLine != null) {
+					routeOfMergedLine.setDescription(description);
+				}
 			}
 			
-			int capacity = 0;
-			for (PVehicleSettings pVS : this.pVehicleSettings) {
-	            if (plan.getPVehicleType().equals(pVS.getPVehicleName())) {
-	            	capacity = pVS.getCapacityPerVehicle();
-	            }
-	        }
+			int capacity = this.pVehicleTypes.getCapacityPerVehicle(this.pVehicleTypes.getIndex(plan.getPVehicleType()));
 			
 			if(plan.getNVehicles() * capacity >= seats)	{
 				pVehicleType = plan.getPVehicleType();
@@ -141,8 +156,6 @@ abstract class AbstractOperator implements Operator{
 	
 	protected void processScore(String pVehicleType) {
 		// score all vehicles not associated with plans
-		double costPerVehicleDay = 0;
-		double costPerVehicleSell = 0;
 		String vehicleType = null;
 		
 		// I think this happens if the operator has no more plan
@@ -154,13 +167,9 @@ abstract class AbstractOperator implements Operator{
 		if (vehicleType == null)
 			vehicleType = "Gelenkbus";
 		
-			
-		for (PVehicleSettings pVS : this.pVehicleSettings) {
-            if (vehicleType.equals(pVS.getPVehicleName())) {
-            	costPerVehicleDay = pVS.getCostPerVehicleAndDay();
-            	costPerVehicleSell = pVS.getCostPerVehicleSold();
-            }
-        }
+		int typeIndex = this.pVehicleTypes.getIndex(vehicleType);
+		double costPerVehicleDay = this.pVehicleTypes.getCostPerVehicleAndDay(typeIndex);
+		double costPerVehicleSell = this.pVehicleTypes.getCostPerVehicleSold(typeIndex);
 		
 		score -= this.numberOfVehiclesInReserve * costPerVehicleDay;
 		
@@ -232,7 +241,11 @@ abstract class AbstractOperator implements Operator{
 		}
 		
 		if (this.mergeTransitLine) {
-			this.currentTransitLine = PTransitLineMerger.mergeTransitLine(this.currentTransitLine);
+			// merge once per update of the line, so the merged line stays the same instance while the line does not change
+			if (this.mergedTransitLine == null) {
+				this.mergedTransitLine = PTransitLineMerger.mergeTransitLine(this.currentTransitLine);
+			}
+			return this.mergedTransitLine;
 		}
 		
 		return this.currentTransitLine;		
@@ -290,40 +303,178 @@ abstract class AbstractOperator implements Operator{
 		this.budget = budget;
 	}
 	
+	/**
+	 * Writes the state of the operator including all its plans.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeCheckpoint(DataOutputStream out) throws IOException {
+		out.writeUTF(this.operatorState.name());
+		out.writeDouble(this.budget);
+		out.writeDouble(this.score);
+		out.writeDouble(this.scoreLastIteration);
+		out.writeInt(this.numberOfVehiclesInReserve);
+		out.writeInt(this.numberOfPlansTried);
+		out.writeInt(this.numberOfIterationsForProspecting);
+		out.writeInt(this.currentIteration);
+		
+		// best and test plan may or may not be part of all plans, depending on the operator
+		List<PPlan> allPlans = this.getAllPlans();
+		List<PPlan> plans = new ArrayList<>(allPlans);
+		for (PPlan plan : new PPlan[]{this.bestPlan, this.testPlan}) {
+			if (plan != null && !plans.contains(plan)) {
+				plans.add(plan);
+			}
+		}
+		out.writeInt(plans.size());
+		for (PPlan plan : plans) {
+			plan.writeCheckpoint(out);
+		}
+		out.writeInt(allPlans.size());
+		out.writeInt(plans.indexOf(this.bestPlan));
+		out.writeInt(plans.indexOf(this.testPlan));
+	}
+
+	/**
+	 * Restores the state written by {@link #writeCheckpoint}. The lines of the plans are recreated by the route provider.
+	 * 
+	 * @param in
+	 * @param pRouteProvider
+	 * @param stops all stops the plans may serve
+	 * @throws IOException
+	 */
+	void readCheckpoint(DataInputStream in, PRouteProvider pRouteProvider, Map<Id<TransitStopFacility>, TransitStopFacility> stops) throws IOException {
+		this.routeProvider = pRouteProvider;
+		this.operatorState = OperatorState.valueOf(in.readUTF());
+		this.budget = in.readDouble();
+		this.score = in.readDouble();
+		this.scoreLastIteration = in.readDouble();
+		this.numberOfVehiclesInReserve = in.readInt();
+		this.numberOfPlansTried = in.readInt();
+		this.numberOfIterationsForProspecting = in.readInt();
+		this.currentIteration = in.readInt();
+		
+		int numberOfPlans = in.readInt();
+		List<PPlan> plans = new ArrayList<>(numberOfPlans);
+		for (int i = 0; i < numberOfPlans; i++) {
+			PPlan plan = PPlan.readCheckpoint(in, stops);
+			// created when collecting the lines, number of vehicles and headway of the checkpoint are kept
+			plan.setLineProvider(this.routeProvider, this.id);
+			plans.add(plan);
+		}
+		int numberOfAllPlans = in.readInt();
+		int bestPlanIndex = in.readInt();
+		int testPlanIndex = in.readInt();
+		
+		this.restorePlans(new ArrayList<>(plans.subList(0, numberOfAllPlans)));
+		this.bestPlan = bestPlanIndex < 0 ? null : plans.get(bestPlanIndex);
+		this.testPlan = testPlanIndex < 0 ? null : plans.get(testPlanIndex);
+		for (PPlan plan : this.getAllPlans()) {
+			this.franchise.planAdopted(plan);
+		}
+		this.updateCurrentTransitLine();
+	}
+
+	/**
+	 * Operators keeping plans in addition to the best and the test plan restore them here.
+	 * 
+	 * @param allPlans
+	 */
+	void restorePlans(List<PPlan> allPlans) {
+		// only best and test plan
+	}
+
+	/**
+	 * Collects the routes of all plans. The line handed out so far is kept, if the routes did not change, e.g. because neither the plans
+	 * nor the travel times the route provider took from the last iteration changed. Thus, a different line instance means the line changed.
+	 */
 	void updateCurrentTransitLine(){
-		this.currentTransitLine = this.routeProvider.createEmptyLineFromOperator(id);
+		TransitLine line = this.routeProvider.createEmptyLineFromOperator(id);
 		for (PPlan plan : this.getAllPlans()) {
 			for (TransitRoute route : plan.getLine().getRoutes().values()) {
-				this.currentTransitLine.addRoute(route);
+				line.addRoute(route);
 			}
 		}
+		
+		if (this.currentTransitLine != null && isSameLine(this.currentTransitLine, line)) {
+			return;
+		}
+		this.mergedTransitLine = null;
+		this.currentTransitLine = line;
 	}
-
-	protected final void scorePlan(Map<Id<Vehicle>, PScoreContainer> driverId2ScoreMap, PPlan plan) {
-		double totalLineScore = 0.0;
-		int totalTripsServed = 0;
-		int totalSubsidizedTrips = 0;
-		double totalAmountOfSubsidies = 0;
-		double totalMeterDriven = 0.0;
-		double totalTimeDriven = 0.0;
-		double totalPassengerKilometer = 0.0;
+	
+	/**
+	 * @return true, if both lines have the same routes in the same order, i.e. the same stops, offsets, links and departures
+	 */
+	private static boolean isSameLine(TransitLine line, TransitLine otherLine) {
+		if (!line.getId().equals(otherLine.getId()) || line.getRoutes().size() != otherLine.getRoutes().size()) {
+			return false;
+		}
 		
-		for (Id<Vehicle> vehId : plan.getVehicleIds()) {
-			totalLineScore += driverId2ScoreMap.get(vehId).getTotalRevenue();
-			totalTripsServed += driverId2ScoreMap.get(vehId).getTripsServed();
-			totalMeterDriven += driverId2ScoreMap.get(vehId).getTotalMeterDriven();
-			totalTimeDriven += driverId2ScoreMap.get(vehId).getTotalTimeDriven();
-			totalPassengerKilometer += driverId2ScoreMap.get(vehId).getTotalPassengerKilometer();
-			totalSubsidizedTrips += driverId2ScoreMap.get(vehId).getNumberOfSubsidizedTrips();
-			totalAmountOfSubsidies += driverId2ScoreMap.get(vehId).getAmountOfSubsidies();
+		Iterator<TransitRoute> otherRoutes = otherLine.getRoutes().values().iterator();
+		for (TransitRoute route : line.getRoutes().values()) {
+			if (!isSameRoute(route, otherRoutes.next())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean isSameRoute(TransitRoute route, TransitRoute otherRoute) {
+		if (!route.getId().equals(otherRoute.getId())
+				|| route.getStops().size() != otherRoute.getStops().size()
+				|| route.getDepartures().size() != otherRoute.getDepartures().size()) {
+			return false;
 		}
 		
-		double costPerVehicleDay = 0;
-		for (PVehicleSettings pVS : this.pVehicleSettings) {
-            if (plan.getPVehicleType().equals(pVS.getPVehicleName())) {
-            	costPerVehicleDay = pVS.getCostPerVehicleAndDay();
-            }
-        }
+		for (int i = 0; i < route.getStops().size(); i++) {
+			TransitRouteStop stop = route.getStops().get(i);
+			TransitRouteStop otherStop = otherRoute.getStops().get(i);
+			if (stop.getStopFacility() != otherStop.getStopFacility()
+					|| stop.getArrivalOffset() != otherStop.getArrivalOffset()
+					|| stop.getDepartureOffset() != otherStop.getDepartureOffset()
+					|| stop.isAwaitDepartureTime() != otherStop.isAwaitDepartureTime()) {
+				return false;
+			}
+		}
+		
+		NetworkRoute networkRoute = route.getRoute();
+		NetworkRoute otherNetworkRoute = otherRoute.getRoute();
+		if (networkRoute == null || otherNetworkRoute == null) {
+			if (networkRoute != otherNetworkRoute) {
+				return false;
+			}
+		} else if (!networkRoute.getStartLinkId().equals(otherNetworkRoute.getStartLinkId())
+				|| !networkRoute.getEndLinkId().equals(otherNetworkRoute.getEndLinkId())
+				|| !networkRoute.getLinkIds().equals(otherNetworkRoute.getLinkIds())) {
+			return false;
+		}
+		
+		Iterator<Departure> otherDepartures = otherRoute.getDepartures().values().iterator();
+		for (Departure departure : route.getDepartures().values()) {
+			Departure otherDeparture = otherDepartures.next();
+			if (!departure.getId().equals(otherDeparture.getId())
+					|| departure.getDepartureTime() != otherDeparture.getDepartureTime()
+					|| !departure.getVehicleId().equals(otherDeparture.getVehicleId())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected final void scorePlan(PScorePlansHandler scorePlansHandler, PPlan plan) {
+		// collected for all vehicles of the plan while handling the events
+		int slot = scorePlansHandler.getSlot(plan);
+		double totalLineScore = scorePlansHandler.getTotalRevenue(slot);
+		int totalTripsServed = scorePlansHandler.getTripsServed(slot);
+		int totalSubsidizedTrips = scorePlansHandler.getNumberOfSubsidizedTrips(slot);
+		double totalAmountOfSubsidies = scorePlansHandler.getAmountOfSubsidies(slot);
+		double totalMeterDriven = scorePlansHandler.getTotalMeterDriven(slot);
+		double totalTimeDriven = scorePlansHandler.getTotalTimeDriven(slot);
+		double totalPassengerKilometer = scorePlansHandler.getTotalPassengerKilometer(slot);
+		
+		double costPerVehicleDay = this.pVehicleTypes.getCostPerVehicleAndDay(this.pVehicleTypes.getIndex(plan.getPVehicleType()));
 		totalLineScore = totalLineScore - plan.getNVehicles() * costPerVehicleDay;
 		
 		plan.setScore(totalLineScore);
@@ -21,7 +21,6 @@ package org.matsim.contrib.minibus.operator;
 
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
 import org.matsim.contrib.minibus.PConstants.OperatorState;
 import org.matsim.contrib.minibus.replanning.PStrategy;
 import org.matsim.contrib.minibus.replanning.PStrategyManager;
@@ -36,11 +35,8 @@ public final class BasicOperator extends AbstractOperator{
 	
 	public static final String OPERATOR_NAME = "BasicOperator"; 
 	
-	private final PConfigGroup pConfig;
-
 	public BasicOperator(Id<Operator> id, PConfigGroup pConfig, PFranchise franchise, PRouteOverlap pRouteOverlap){
 		super(id, pConfig, franchise, pRouteOverlap);
-		this.pConfig = pConfig;
 	}
 
 	@Override
@@ -53,21 +49,18 @@ public final class BasicOperator extends AbstractOperator{
 				// testPlan improves the plan, apply its modification to bestPlan, transfer the vehicle from the testPlan to the bestPlan
 				// changed to get a more useful output in the pOperatorLogger /dr
 				this.testPlan.setNVehicles(this.testPlan.getNVehicles() + this.bestPlan.getNVehicles());
+				this.getFranchise().planDropped(this.bestPlan);
 				this.bestPlan = this.testPlan;
 			}else{
 				this.bestPlan.setNVehicles(this.bestPlan.getNVehicles() + this.testPlan.getNVehicles());
+				this.getFranchise().planDropped(this.testPlan);
 			}
 			this.testPlan = null;
 		}
 		
-		double costPerVehicleSell = 0;
-		double costPerVehicleBought = 0;
-		for (PVehicleSettings pVS : this.pConfig.getPVehicleSettings()) {
-            if (this.bestPlan.getPVehicleType().equals(pVS.getPVehicleName())) {
-            	costPerVehicleBought = pVS.getCostPerVehicleBought();
-            	costPerVehicleSell = pVS.getCostPerVehicleSold();
-            }
-        }
+		int typeIndex = this.pVehicleTypes.getIndex(this.bestPlan.getPVehicleType());
+		double costPerVehicleSell = this.pVehicleTypes.getCostPerVehicleSold(typeIndex);
+		double costPerVehicleBought = this.pVehicleTypes.getCostPerVehicleBought(typeIndex);
 		
 		// balance the budget
 		if(this.budget < 0){
@@ -112,9 +105,10 @@ public final class BasicOperator extends AbstractOperator{
 		
 		plan.setNVehicles(vehicleBought);
 		
-		plan.setLine(this.getRouteProvider().createTransitLineFromOperatorPlan(this.getId(), plan));
+		plan.setLineProvider(this.getRouteProvider(), this.getId());
 		
 		this.testPlan = plan;
+		this.getFranchise().planAdopted(plan);
 		// END OF COPY
 		
 		
@@ -122,17 +116,33 @@ public final class BasicOperator extends AbstractOperator{
 		if (this.testPlan == null) {
 			PStrategy strategy = pStrategyManager.chooseStrategy();
 			if (strategy != null) {
-				this.testPlan = strategy.run(this);
+				this.testPlan = pStrategyManager.runStrategy(strategy, this);
 				if (this.testPlan != null) {
+					this.getFranchise().planAdopted(this.testPlan);
 					this.bestPlan.setNVehicles(this.bestPlan.getNVehicles() - 1);
 				}
 			}
 		}
 		
-		// reinitialize the plan
-		this.bestPlan.setLine(this.routeProvider.createTransitLineFromOperatorPlan(this.id, this.bestPlan));
+		// reinitialize the plans
+		for (PPlan plan : this.getAllPlans()) {
+			plan.updateLine();
+		}
 		
 		this.updateCurrentTransitLine();
 	}
 	
+	@Override
+	public boolean dropNewPlan(PPlan plan) {
+		if (plan != this.testPlan) {
+			return false;
+		}
+		// as if the test plan did not improve
+		this.bestPlan.setNVehicles(this.bestPlan.getNVehicles() + this.testPlan.getNVehicles());
+		this.testPlan = null;
+		this.bestPlan.updateLine();
+		this.updateCurrentTransitLine();
+		return true;
+	}
+	
 }
@@ -22,12 +22,11 @@ package org.matsim.contrib.minibus.operator;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
 import org.matsim.contrib.minibus.replanning.PStrategy;
 import org.matsim.contrib.minibus.replanning.PStrategyManager;
 import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
 import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
-import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
 
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -55,11 +54,8 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 
     private List<PPlan> plans;
 
-	private final PConfigGroup pConfig;
-    
 	public CarefulMultiPlanOperator(Id<Operator> id, PConfigGroup pConfig, PFranchise franchise, PRouteOverlap pRouteOverlap){
 		super(id, pConfig, franchise, pRouteOverlap);
-		this.pConfig = pConfig;
 		this.plans = new LinkedList<>();
 	}
 	
@@ -79,6 +75,11 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 	public List<PPlan> getAllPlans(){
 		return this.plans;		
 	}
+	
+	@Override
+	void restorePlans(List<PPlan> allPlans) {
+		this.plans = new LinkedList<>(allPlans);
+	}
 		
 	@Override
 	public PPlan getBestPlan() {
@@ -94,13 +95,7 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 			
 			for (PPlan plan : this.plans) {
 				
-				capacityPerVehicle = 0.0;
-				
-				for (PVehicleSettings pVS : this.pConfig.getPVehicleSettings()) {
-		            if (plan.getPVehicleType().equals(pVS.getPVehicleName())) {
-		            	capacityPerVehicle = pVS.getCapacityPerVehicle();
-		            }
-		        }
+				capacityPerVehicle = this.pVehicleTypes.getCapacityPerVehicle(this.pVehicleTypes.getIndex(plan.getPVehicleType()));
 				
 				double weight = capacityPerVehicle * plan.getNVehicles();
 				weights.put(plan.getId(), weight);
@@ -110,7 +105,7 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 			}
 			
 			double accumulatedWeight = 0.0;
-			double rndTreshold = MatsimRandom.getRandom().nextDouble() * totalCapacity;
+			double rndTreshold = PRandom.getRandom().nextDouble() * totalCapacity;
 			for (PPlan pPlan : this.plans) {
 				accumulatedWeight += weights.get(pPlan.getId());
 				if (rndTreshold <= accumulatedWeight) {
@@ -127,7 +122,7 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 			}
 
 			double accumulatedWeight = 0.0;
-			double rndTreshold = MatsimRandom.getRandom().nextDouble() * numberOfVehicles;
+			double rndTreshold = PRandom.getRandom().nextDouble() * numberOfVehicles;
 			for (PPlan pPlan : this.plans) {
 				accumulatedWeight += pPlan.getNVehicles();
 				if (rndTreshold <= accumulatedWeight) {
@@ -149,12 +144,7 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 		this.numberOfVehiclesInReserve += this.removeVehiclesFromAllPlansWithNegativeScore(this.plans);
 		
 		
-		double costPerVehicleSell = 0;
-		for (PVehicleSettings pVS : this.pConfig.getPVehicleSettings()) {
-            if (getBestPlan().getPVehicleType().equals(pVS.getPVehicleName())) {
-            	costPerVehicleSell = pVS.getCostPerVehicleSold();
-            }
-        }
+		double costPerVehicleSell = this.pVehicleTypes.getCostPerVehicleSold(this.pVehicleTypes.getIndex(getBestPlan().getPVehicleType()));
 		
 		// Second, balance the budget
 		if(this.budget < 0){
@@ -203,12 +193,17 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 			PStrategy strategy = pStrategyManager.chooseStrategy();
 			
 			if (strategy != null) {
-				PPlan newPlan = strategy.run(this);
+				PPlan newPlan = pStrategyManager.runStrategy(strategy, this);
 				if (newPlan != null) {
-					if(this.getFranchise().planRejected(newPlan) || this.getPRouteOverlap().planRejected(newPlan, this.id)){
+					if(this.getFranchise().planRejected(newPlan)){
 						// plan is rejected by franchise system
+						pStrategyManager.planRejected(strategy, "Franchise");
 						newPlan = null;
-					}	
+					} else if (this.getPRouteOverlap().planRejected(newPlan, this.id)){
+						// plan is rejected, as it overlaps too much with the routes of other operators
+						pStrategyManager.planRejected(strategy, "RouteOverlap");
+						newPlan = null;
+					}
 					
 					if (newPlan != null && newPlan.getNVehicles() > 0) {
 						// get one vehicle from the reserve
@@ -217,6 +212,7 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 							maxVehiclesToDistribute--;
 						}
 						this.plans.add(newPlan);
+						this.getFranchise().planAdopted(newPlan);
 					}
 				}
 				
@@ -228,12 +224,22 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 		
 		// Fifth, reinitialize all plans
 		for (PPlan plan : this.plans) {
-			plan.setLine(this.routeProvider.createTransitLineFromOperatorPlan(this.id, plan));
+			plan.updateLine();
 		}
 		
 		this.updateCurrentTransitLine();
 	}
 
+	@Override
+	public boolean dropNewPlan(PPlan plan) {
+		if (this.plans.size() < 2 || !this.plans.remove(plan)) {
+			return false;
+		}
+		this.numberOfVehiclesInReserve += plan.getNVehicles();
+		this.updateCurrentTransitLine();
+		return true;
+	}
+
 	private void addVehiclesToPlansWithAPositiveScore() {
 		List<PPlan> plansWithAPositiveScore = new LinkedList<>();
 		
@@ -256,7 +262,7 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 		if (k == 0)	
 			probabilityToNotInnovate = -1;
 		
-		double rndTreshold = MatsimRandom.getRandom().nextDouble();
+		double rndTreshold = PRandom.getRandom().nextDouble();
 		
 		// now do this for-loop again, if the number of routes is high
 		if(probabilityToNotInnovate > rndTreshold)	{
@@ -306,17 +312,17 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 			// Rerun removing plans - not all plans may got a vehicle
 			this.removeAllPlansWithZeroVehicles();
 		} else {
+			for (PPlan plan : this.plans) {
+				if (plan.getNVehicles() == 0) {
+					this.getFranchise().planDropped(plan);
+				}
+			}
 			this.plans = plansToKeep;
 		}
 	}
 
 	private void buyAsManyVehiclesAsPossible() {
-		double costPerVehicleBuy = 0;
-		for (PVehicleSettings pVS : this.pConfig.getPVehicleSettings()) {
-            if (this.bestPlan.getPVehicleType().equals(pVS.getPVehicleName())) {
-            	costPerVehicleBuy = pVS.getCostPerVehicleBought();
-            }
-        }
+		double costPerVehicleBuy = this.pVehicleTypes.getCostPerVehicleBought(this.pVehicleTypes.getIndex(this.bestPlan.getPVehicleType()));
 		while (this.getBudget() > costPerVehicleBuy) {
 			this.setBudget(this.getBudget() - costPerVehicleBuy);
 			this.numberOfVehiclesInReserve++;
@@ -337,12 +343,7 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 				double score = Math.abs(pPlan.getScore());
 				// remove as many vehicles as necessary to compensate the impact on the budget plus one to hopefully get that plan positively scored in the next iteration
 				
-				double costPerVehicleSell = 0;
-				for (PVehicleSettings pVS : this.pConfig.getPVehicleSettings()) {
-		            if (pPlan.getPVehicleType().equals(pVS.getPVehicleName())) {
-		            	costPerVehicleSell = pVS.getCostPerVehicleSold();
-		            }
-		        }
+				double costPerVehicleSell = this.pVehicleTypes.getCostPerVehicleSold(this.pVehicleTypes.getIndex(pPlan.getPVehicleType()));
 				int vehiclesToRemove = (int) (score / costPerVehicleSell) + 1;
 				if(pPlan.getNVehicles() < vehiclesToRemove) {
 					// this plan cannot compensate - remove all vehicles;
@@ -381,6 +382,7 @@ public final class CarefulMultiPlanOperator extends AbstractOperator{
 		// remove plan, if not served anymore
 		if (worstPlan.getNVehicles() == 0) {
 			this.plans.remove(worstPlan);
+			this.getFranchise().planDropped(worstPlan);
 		}
 	}
 }
\ No newline at end of file
@@ -20,21 +20,21 @@
 package org.matsim.contrib.minibus.operator;
 
 import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.contrib.minibus.PConstants;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
+import org.matsim.contrib.minibus.genericUtils.PTaskRunner;
 import org.matsim.contrib.minibus.replanning.PStrategy;
 import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
-import org.matsim.core.config.ConfigUtils;
-import org.matsim.core.scenario.MutableScenario;
-import org.matsim.core.scenario.ScenarioUtils;
-import org.matsim.pt.transitSchedule.TransitScheduleReaderV1;
+import org.matsim.core.utils.io.MatsimXmlParser;
+import org.matsim.core.utils.misc.Time;
 import org.matsim.pt.transitSchedule.api.*;
-import org.matsim.vehicles.Vehicle;
+import org.xml.sax.Attributes;
 
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 /**
  * 
@@ -52,13 +52,22 @@ public final class CreateOperatorFromTransitSchedule implements PStrategy {
 	private final PRouteProvider routeProvider;
 	private final PConfigGroup pConfig;
 	private final LinkedHashMap<String, TransitStopFacility> originalStops;
+	private final int numberOfThreads;
 	
 	private LinkedHashMap<Id<Operator>, PPlan> operatorId2PlanMap = new LinkedHashMap<>();
 
 	public CreateOperatorFromTransitSchedule(OperatorFactory operatorFactory, PRouteProvider routeProvider, PConfigGroup pConfig, TransitSchedule originalSchedule) {
+		this(operatorFactory, routeProvider, pConfig, originalSchedule, 1);
+	}
+
+	/**
+	 * @param numberOfThreads the plans and their lines are created concurrently if larger than one
+	 */
+	public CreateOperatorFromTransitSchedule(OperatorFactory operatorFactory, PRouteProvider routeProvider, PConfigGroup pConfig, TransitSchedule originalSchedule, int numberOfThreads) {
 		this.operatorFactory = operatorFactory;
 		this.routeProvider = routeProvider;
 		this.pConfig = pConfig;
+		this.numberOfThreads = numberOfThreads;
 		
 		this.originalStops = new LinkedHashMap<>();
 		for (TransitStopFacility stop : originalSchedule.getFacilities().values()) {
@@ -66,24 +75,51 @@ public final class CreateOperatorFromTransitSchedule implements PStrategy {
 		}
 	}
 
+	/**
+	 * Creates one operator for each line of the transit schedule to start with. The schedule is streamed, only the routes and departures needed for the plans are kept.
+	 * The plans and their lines are created concurrently. The operators are created and initialized afterwards in the order of the line ids, thus ids and budgets do not depend on the thread scheduling.
+	 * 
+	 * @return The operators created
+	 */
 	public LinkedList<Operator> run() {
 		LinkedList<Operator> operatorsToReturn = new LinkedList<>();
 		
 		if (pConfig.getTransitScheduleToStartWith() != null) {
-			TransitSchedule tS = readTransitSchedule(pConfig.getTransitScheduleToStartWith());
+			final List<SeedLine> seedLines = readSeedLines(pConfig.getTransitScheduleToStartWith());
+			final List<Id<Operator>> operatorIds = new ArrayList<>(seedLines.size());
+			final PPlan[] plans = new PPlan[seedLines.size()];
+			
+			List<Callable<Void>> tasks = new ArrayList<>(seedLines.size());
+			for (int i = 0; i < seedLines.size(); i++) {
+				final int index = i;
+				final Id<Operator> operatorId = Id.create(this.pConfig.getPIdentifier() + seedLines.get(i).lineId, Operator.class);
+				operatorIds.add(operatorId);
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						PPlan plan = CreateOperatorFromTransitSchedule.this.createPlan(seedLines.get(index));
+						// the line is created along with the plan, the operator is initialized with the same provider
+						plan.setLineProvider(CreateOperatorFromTransitSchedule.this.routeProvider, operatorId);
+						plan.updateLine();
+						plans[index] = plan;
+						return null;
+					}
+				});
+			}
+			PTaskRunner.runTasks(tasks, this.numberOfThreads);
 
-			for (Entry<Id<TransitLine>, TransitLine> lineEntry : tS.getTransitLines().entrySet()) {
-				Operator operator = this.operatorFactory.createNewOperator(Id.create(this.pConfig.getPIdentifier() + lineEntry.getKey(), Operator.class));
+			PVehicleTypeRegistry pVehicleTypes = this.pConfig.getPVehicleTypeRegistry();
+			for (int i = 0; i < plans.length; i++) {
+				Operator operator = this.operatorFactory.createNewOperator(operatorIds.get(i));
 
-				PPlan plan = createPlan(lineEntry.getValue());
+				PPlan plan = plans[i];
 				this.operatorId2PlanMap.put(operator.getId(), plan);			
 				
-				double pricePerVehicle = 0;
-				for (PVehicleSettings pVS : pConfig.getPVehicleSettings()) {
-		            if (plan.getPVehicleType().equals(pVS.getPVehicleName())) {
-		            	pricePerVehicle = pVS.getCostPerVehicleBought();
-		            }
-		        }
+				int typeIndex = pVehicleTypes.getIndex(plan.getPVehicleType());
+				if (typeIndex == PVehicleTypeRegistry.UNKNOWN) {
+					throw new RuntimeException("Vehicle type " + plan.getPVehicleType() + " of operator " + operator.getId() + " is not defined in the config. Aborting...");
+				}
+				double pricePerVehicle = pVehicleTypes.getCostPerVehicleBought(typeIndex);
 
 				double initialBudget = this.pConfig.getInitialBudget() % pricePerVehicle;			
 				operator.init(this.routeProvider, this, 0, initialBudget);
@@ -96,58 +132,26 @@ public final class CreateOperatorFromTransitSchedule implements PStrategy {
 		return operatorsToReturn;
 	}
 
-	private PPlan createPlan(TransitLine line) {
+	private PPlan createPlan(SeedLine line) {
 		Id<PPlan> id = Id.create(0, PPlan.class);
-		TransitRoute longestRouteH = null;
-		TransitRoute longestRouteR = null;
-		
-		double startTime = Double.MAX_VALUE;
-		double endTime = Double.MIN_VALUE;
-		Set<Id<Vehicle>> vehicleIds = new TreeSet<>();
-		
-		for (TransitRoute route : line.getRoutes().values()) {
-			if(route.getId().toString().endsWith(".H")){
-				if (longestRouteH == null) {
-					longestRouteH = route;
-				} else if (longestRouteH.getStops().size() < route.getStops().size()) {
-					longestRouteH = route;
-				}				
-			} else if (route.getId().toString().endsWith(".R")) {
-				if (longestRouteR == null) {
-					longestRouteR = route;
-				} else if (longestRouteR.getStops().size() < route.getStops().size()) {
-					longestRouteR = route;
-				}
-			}			
-			
-			for (Departure departure : route.getDepartures().values()) {
-				if (startTime > departure.getDepartureTime()) {
-					startTime = departure.getDepartureTime();
-				}
-				
-				if (endTime < departure.getDepartureTime()) {
-					endTime = departure.getDepartureTime();
-				}
-				
-				vehicleIds.add(departure.getVehicleId());
-			}
-		}
+		SeedRoute longestRouteH = line.longestRouteH;
+		SeedRoute longestRouteR = line.longestRouteR;
 		
 		// limit parameters to reasonable ones		
-		startTime = Math.max(startTime, 0.0);
-		endTime = Math.min(endTime, 24 * 3600.0);
+		double startTime = Math.max(line.startTime, 0.0);
+		double endTime = Math.min(line.endTime, 24 * 3600.0);
 		
 		// current planned headway in case number of vehicles is not changed
 		double departureOffset = 0.0;
 		if (longestRouteH != null) {
-			departureOffset += longestRouteH.getStops().get(longestRouteH.getStops().size() - 1).getDepartureOffset();
+			departureOffset += longestRouteH.lastDepartureOffset;
 		}
 		
 		if (longestRouteR != null) {
-			departureOffset += longestRouteR.getStops().get(longestRouteR.getStops().size() - 1).getDepartureOffset();
+			departureOffset += longestRouteR.lastDepartureOffset;
 		}
 		
-		double headway = departureOffset / vehicleIds.size(); 
+		double headway = departureOffset / line.vehicleIds.size(); 
 		// set headway to a minimum of 3min
 		headway = Math.max(3*60, headway);
 		// resulting number of vehicles with the new headway
@@ -155,19 +159,13 @@ public final class CreateOperatorFromTransitSchedule implements PStrategy {
 		
 		ArrayList<TransitStopFacility> stopsToBeServed = new ArrayList<>();
 		if (longestRouteH != null) {
-			for (TransitRouteStop routeStop : longestRouteH.getStops()) {
-				if (this.checkStopInServiceArea(routeStop.getStopFacility(), this.pConfig)) {
-					TransitStopFacility originalStopFacility = this.originalStops.get(routeStop.getStopFacility().getId().toString());
-					stopsToBeServed.add(originalStopFacility);
-				}
+			for (String stopId : longestRouteH.stopIdsInServiceArea) {
+				stopsToBeServed.add(this.originalStops.get(stopId));
 			}
 		}
 		if (longestRouteR != null) {
-			for (TransitRouteStop routeStop : longestRouteR.getStops()) {
-				if (this.checkStopInServiceArea(routeStop.getStopFacility(), this.pConfig)) {
-					TransitStopFacility originalStopFacility = this.originalStops.get(routeStop.getStopFacility().getId().toString());
-					stopsToBeServed.add(originalStopFacility);
-				}
+			for (String stopId : longestRouteR.stopIdsInServiceArea) {
+				stopsToBeServed.add(this.originalStops.get(stopId));
 			}
 		}
 		
@@ -180,22 +178,22 @@ public final class CreateOperatorFromTransitSchedule implements PStrategy {
 	}
 
 
-	private TransitSchedule readTransitSchedule(String transitScheduleToStartWith) {
-		MutableScenario sc = (MutableScenario) ScenarioUtils.createScenario(ConfigUtils.createConfig());
-		sc.getConfig().transit().setUseTransit(true);
+	private List<SeedLine> readSeedLines(String transitScheduleToStartWith) {
 		log.info("Reading " + transitScheduleToStartWith);
-		new TransitScheduleReaderV1(sc).readFile(transitScheduleToStartWith);
-		return sc.getTransitSchedule();
+		SeedLinesReader reader = new SeedLinesReader(this.pConfig);
+		reader.readFile(transitScheduleToStartWith);
+		// same order as the lines of a transit schedule read from the file
+		return new ArrayList<>(reader.lineId2SeedLine.values());
 	}
 
-	private boolean checkStopInServiceArea(TransitStopFacility stop, PConfigGroup pC){
+	private static boolean checkStopInServiceArea(Coord coord, PConfigGroup pC){
 		boolean isInServiceArea = true;
 		
-		if(stop.getCoord().getX() < pC.getMinX()){isInServiceArea = false;}
-		if(stop.getCoord().getX() > pC.getMaxX()){isInServiceArea = false;}
+		if(coord.getX() < pC.getMinX()){isInServiceArea = false;}
+		if(coord.getX() > pC.getMaxX()){isInServiceArea = false;}
 		
-		if(stop.getCoord().getY() < pC.getMinY()){isInServiceArea = false;}
-		if(stop.getCoord().getY() > pC.getMaxY()){isInServiceArea = false;}
+		if(coord.getY() < pC.getMinY()){isInServiceArea = false;}
+		if(coord.getY() > pC.getMaxY()){isInServiceArea = false;}
 		
 		return isInServiceArea;
 	}
@@ -203,13 +201,122 @@ public final class CreateOperatorFromTransitSchedule implements PStrategy {
 
 	@Override
 	public PPlan run(Operator operator) {
-		PPlan newPlan = this.operatorId2PlanMap.get(operator.getId());		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
-		return newPlan;
+		// the line was created in parallel while reading the seed schedule
+		return this.operatorId2PlanMap.get(operator.getId());
 	}
 
 	@Override
 	public String getStrategyName() {
 		return CreateOperatorFromTransitSchedule.STRATEGY_NAME;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The longest route of a seed line in one direction, reduced to the stops within the service area and the departure offset at its last stop.
+	 */
+	private static final class SeedRoute {
+		private final List<String> stopIdsInServiceArea;
+		private final int numberOfStops;
+		private final double lastDepartureOffset;
+		
+		private SeedRoute(List<String> stopIdsInServiceArea, int numberOfStops, double lastDepartureOffset) {
+			this.stopIdsInServiceArea = stopIdsInServiceArea;
+			this.numberOfStops = numberOfStops;
+			this.lastDepartureOffset = lastDepartureOffset;
+		}
+	}
+	
+	/**
+	 * Everything of a line of the schedule to start with needed to create the plan of its operator.
+	 */
+	private static final class SeedLine {
+		private final Id<TransitLine> lineId;
+		private SeedRoute longestRouteH = null;
+		private SeedRoute longestRouteR = null;
+		private double startTime = Double.MAX_VALUE;
+		private double endTime = Double.MIN_VALUE;
+		private final Set<String> vehicleIds = new HashSet<>();
+		
+		private SeedLine(Id<TransitLine> lineId) {
+			this.lineId = lineId;
+		}
+	}
+	
+	/**
+	 * Streams a transit schedule and keeps one {@link SeedLine} per line instead of the whole schedule.
+	 */
+	private static final class SeedLinesReader extends MatsimXmlParser {
+		
+		private final PConfigGroup pConfig;
+		private final Map<String, Boolean> stopId2InServiceArea = new HashMap<>();
+		// the lines of a transit schedule are sorted by their id
+		private final Map<Id<TransitLine>, SeedLine> lineId2SeedLine = new TreeMap<>();
+		
+		private SeedLine currentLine = null;
+		private String currentRouteId = null;
+		private List<String> currentStopIds = null;
+		private int currentNumberOfStops;
+		private double currentLastDepartureOffset;
+		
+		private SeedLinesReader(PConfigGroup pConfig) {
+			this.pConfig = pConfig;
+			this.setValidating(false);
+		}
+
+		@Override
+		public void startTag(String name, Attributes atts, Stack<String> context) {
+			if (name.equals("stopFacility")) {
+				Coord coord = new Coord(Double.parseDouble(atts.getValue("x")), Double.parseDouble(atts.getValue("y")));
+				this.stopId2InServiceArea.put(atts.getValue("id"), checkStopInServiceArea(coord, this.pConfig));
+			} else if (name.equals("transitLine")) {
+				this.currentLine = new SeedLine(Id.create(atts.getValue("id"), TransitLine.class));
+			} else if (name.equals("transitRoute")) {
+				this.currentRouteId = atts.getValue("id");
+				this.currentStopIds = new ArrayList<>();
+				this.currentNumberOfStops = 0;
+				this.currentLastDepartureOffset = Time.UNDEFINED_TIME;
+			} else if (name.equals("stop") && this.currentRouteId != null) {
+				String stopId = atts.getValue("refId");
+				Boolean inServiceArea = this.stopId2InServiceArea.get(stopId);
+				if (inServiceArea == null) {
+					throw new RuntimeException("Stop facility " + stopId + " of route " + this.currentRouteId + " is not defined in " + this.pConfig.getTransitScheduleToStartWith() + ". Aborting...");
+				}
+				if (inServiceArea) {
+					this.currentStopIds.add(stopId);
+				}
+				this.currentNumberOfStops++;
+				String departureOffset = atts.getValue("departureOffset");
+				this.currentLastDepartureOffset = departureOffset == null ? Time.UNDEFINED_TIME : Time.parseTime(departureOffset);
+			} else if (name.equals("departure") && this.currentLine != null) {
+				double departureTime = Time.parseTime(atts.getValue("departureTime"));
+				if (this.currentLine.startTime > departureTime) {
+					this.currentLine.startTime = departureTime;
+				}
+				if (this.currentLine.endTime < departureTime) {
+					this.currentLine.endTime = departureTime;
+				}
+				this.currentLine.vehicleIds.add(atts.getValue("vehicleRefId"));
+			}
+		}
+
+		@Override
+		public void endTag(String name, String content, Stack<String> context) {
+			if (name.equals("transitRoute")) {
+				SeedRoute route = new SeedRoute(this.currentStopIds, this.currentNumberOfStops, this.currentLastDepartureOffset);
+				if (this.currentRouteId.endsWith(".H")) {
+					if (this.currentLine.longestRouteH == null || this.currentLine.longestRouteH.numberOfStops < route.numberOfStops) {
+						this.currentLine.longestRouteH = route;
+					}
+				} else if (this.currentRouteId.endsWith(".R")) {
+					if (this.currentLine.longestRouteR == null || this.currentLine.longestRouteR.numberOfStops < route.numberOfStops) {
+						this.currentLine.longestRouteR = route;
+					}
+				}
+				this.currentRouteId = null;
+				this.currentStopIds = null;
+			} else if (name.equals("transitLine")) {
+				this.lineId2SeedLine.put(this.currentLine.lineId, this.currentLine);
+				this.currentLine = null;
+			}
+		}
+	}
+}
@@ -20,16 +20,14 @@
 package org.matsim.contrib.minibus.operator;
 
 import java.util.List;
-import java.util.Map;
 
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConstants.OperatorState;
 import org.matsim.contrib.minibus.replanning.PStrategy;
 import org.matsim.contrib.minibus.replanning.PStrategyManager;
 import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
-import org.matsim.contrib.minibus.scoring.PScoreContainer;
+import org.matsim.contrib.minibus.scoring.PScorePlansHandler;
 import org.matsim.pt.transitSchedule.api.TransitLine;
-import org.matsim.vehicles.Vehicle;
 
 /**
  * 
@@ -40,9 +38,17 @@ public interface Operator {
 	
 	public boolean init(PRouteProvider pRouteProvider, PStrategy initialStrategy, int iteration, double initialBudget);
 	
-	public void score(Map<Id<Vehicle>, PScoreContainer> driverId2ScoreMap);
+	public void score(PScorePlansHandler scorePlansHandler);
 	
 	public void replan(PStrategyManager pStrategyManager, int iteration);
+	
+	/**
+	 * Drops a plan adopted in the last replanning, since the franchise rejects its route afterwards. The vehicles of the plan are kept.
+	 * 
+	 * @param plan
+	 * @return false, if the plan is kept, e.g. since it is the only plan of the operator
+	 */
+	public boolean dropNewPlan(PPlan plan);
 
 	public TransitLine getCurrentTransitLine();
 
@@ -22,6 +22,8 @@ package org.matsim.contrib.minibus.operator;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
+import org.matsim.contrib.minibus.genericUtils.PTaskRunner;
 import org.matsim.contrib.minibus.replanning.CreateNew24hPlan;
 import org.matsim.contrib.minibus.replanning.CreateNewPlan;
 import org.matsim.contrib.minibus.replanning.PStrategy;
@@ -30,9 +32,16 @@ import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
 import org.matsim.contrib.minibus.routeProvider.PRouteProviderFactory;
 import org.matsim.core.controler.MatsimServices;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * 
@@ -46,12 +55,24 @@ public final class OperatorInitializer {
 	private final OperatorFactory operatorFactory;
 	private final PRouteProvider routeProvider;
 	private final PStrategy initialStrategy;
+	private final PFranchise franchise;
+	private final int numberOfThreads;
 	private int counter;
 
 
 	public OperatorInitializer(PConfigGroup pConfig, PFranchise franchise, TransitSchedule pStopsOnly, MatsimServices controler, 
 			TimeProvider timeProvider, PRouteOverlap pRouteOverlap) {
+		this(pConfig, franchise, pStopsOnly, controler, timeProvider, pRouteOverlap, 1);
+	}
+
+	/**
+	 * @param numberOfThreads new operators are initialized concurrently if larger than one
+	 */
+	public OperatorInitializer(PConfigGroup pConfig, PFranchise franchise, TransitSchedule pStopsOnly, MatsimServices controler, 
+			TimeProvider timeProvider, PRouteOverlap pRouteOverlap, int numberOfThreads) {
 		this.pConfig = pConfig;
+		this.franchise = franchise;
+		this.numberOfThreads = numberOfThreads;
 		this.operatorFactory = new OperatorFactory(this.pConfig, franchise, pRouteOverlap);
 
 		this.routeProvider = PRouteProviderFactory.createRouteProvider(controler.getConfig(), controler.getScenario().getPopulation(), this.pConfig, pStopsOnly, controler.getControlerIO().getOutputPath(), controler.getEvents());
@@ -74,31 +95,73 @@ public final class OperatorInitializer {
 	 * @return A list containing the operators created
 	 */
 	public LinkedList<Operator> createOperatorsFromSchedule(TransitSchedule originalSchedule){
-		return new CreateOperatorFromTransitSchedule(this.operatorFactory, this.routeProvider, this.pConfig, originalSchedule).run();
+		return new CreateOperatorFromTransitSchedule(this.operatorFactory, this.routeProvider, this.pConfig, originalSchedule, this.numberOfThreads).run();
 	}
 
 	/**
-	 * Create the number of additional operators
+	 * Create the number of additional operators. If more than one thread is available, the operators are initialized concurrently.
+	 * Ids and the seeds of the random number generators are assigned in a fixed order beforehand, thus the outcome does not depend on the thread scheduling.
+	 * Operators initialized concurrently do not see each other's routes. Afterwards, an operator offering a route of an operator with a lower id is dropped,
+	 * whereas one after the other it would have been initialized with another route.
 	 * 
 	 * @param pStrategyManager
 	 * @param iteration
 	 * @param numberOfNewOperators
 	 * @return
 	 */
-	public LinkedList<Operator> createAdditionalOperators(PStrategyManager pStrategyManager, int iteration, int numberOfNewOperators) {
-		LinkedList<Operator> emptyOperators = new LinkedList<>();
+	public LinkedList<Operator> createAdditionalOperators(final PStrategyManager pStrategyManager, final int iteration, int numberOfNewOperators) {
+		List<Operator> emptyOperators = new ArrayList<>();
 		for (int i = 0; i < numberOfNewOperators; i++) {
 			Operator operator = this.operatorFactory.createNewOperator(this.createNewIdForOperator(iteration));
 			emptyOperators.add(operator);
 		}
 
+		final boolean[] initComplete = new boolean[emptyOperators.size()];
+		if (this.numberOfThreads < 2 || emptyOperators.size() < 2) {
+			for (int i = 0; i < emptyOperators.size(); i++) {
+				initComplete[i] = this.initOperator(emptyOperators.get(i), pStrategyManager, iteration);
+			}
+		} else {
+			List<Callable<Void>> tasks = new ArrayList<>(emptyOperators.size());
+			for (int i = 0; i < emptyOperators.size(); i++) {
+				final int index = i;
+				final Operator operator = emptyOperators.get(i);
+				final long seed = PRandom.getRandom().nextLong();
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						PRandom.bindLocalRandom(seed);
+						OperatorInitializer.this.franchise.beginLocalScope(operator.getId());
+						try {
+							initComplete[index] = OperatorInitializer.this.initOperator(operator, pStrategyManager, iteration);
+						} finally {
+							OperatorInitializer.this.franchise.endLocalScope();
+							PRandom.unbindLocalRandom();
+						}
+						return null;
+					}
+				});
+			}
+			PTaskRunner.runTasks(tasks, this.numberOfThreads);
+			
+			// the operators did not see each other's routes - reject duplicates in the order of the ids
+			int numberOfDuplicates = 0;
+			for (int i = 0; i < emptyOperators.size(); i++) {
+				if (initComplete[i] && !this.franchise.addRoutesOfNewOperator(emptyOperators.get(i))) {
+					initComplete[i] = false;
+					numberOfDuplicates++;
+				}
+			}
+			if (numberOfDuplicates > 0) {
+				log.info(numberOfDuplicates + " new operators were dropped, since they offer a route of another new operator created in parallel.");
+			}
+		}
+
 		LinkedList<Operator> initializedOperator = new LinkedList<>();
 		int numberOfOperatorsFailedToBeInitialized = 0;
-		for (Operator operator : emptyOperators) {
-			boolean initComplete = operator.init(this.routeProvider, this.initialStrategy, iteration, this.pConfig.getInitialBudget());
-			if (initComplete) {
-				operator.replan(pStrategyManager, iteration);
-				initializedOperator.add(operator);
+		for (int i = 0; i < emptyOperators.size(); i++) {
+			if (initComplete[i]) {
+				initializedOperator.add(emptyOperators.get(i));
 			} else {
 				numberOfOperatorsFailedToBeInitialized++;
 				log.info(numberOfOperatorsFailedToBeInitialized);
@@ -112,6 +175,53 @@ public final class OperatorInitializer {
 		return initializedOperator;
 	}
 
+	/**
+	 * Writes the state of the route provider, the operators and the counter used for the ids of new operators.
+	 * 
+	 * @param out
+	 * @param operators
+	 * @throws IOException
+	 */
+	public void writeCheckpoint(DataOutputStream out, List<Operator> operators) throws IOException {
+		this.routeProvider.writeCheckpoint(out);
+		out.writeInt(this.counter);
+		out.writeInt(operators.size());
+		for (Operator operator : operators) {
+			out.writeUTF(operator.getId().toString());
+			((AbstractOperator) operator).writeCheckpoint(out);
+		}
+	}
+
+	/**
+	 * Restores the operators written by {@link #writeCheckpoint}. The operators are created by the operator factory, i.e. the operator type of the config has to match the one of the checkpoint.
+	 * 
+	 * @param in
+	 * @param stops all stops the plans of the operators may serve
+	 * @return The operators restored
+	 * @throws IOException
+	 */
+	public LinkedList<Operator> readCheckpoint(DataInputStream in, Map<Id<TransitStopFacility>, TransitStopFacility> stops) throws IOException {
+		this.routeProvider.readCheckpoint(in);
+		this.counter = in.readInt();
+		int numberOfOperators = in.readInt();
+		LinkedList<Operator> operators = new LinkedList<>();
+		for (int i = 0; i < numberOfOperators; i++) {
+			AbstractOperator operator = (AbstractOperator) this.operatorFactory.createNewOperator(Id.create(in.readUTF(), Operator.class));
+			operator.readCheckpoint(in, this.routeProvider, stops);
+			operators.add(operator);
+		}
+		log.info("Restored " + operators.size() + " operators from checkpoint");
+		return operators;
+	}
+
+	private boolean initOperator(Operator operator, PStrategyManager pStrategyManager, int iteration) {
+		boolean initComplete = operator.init(this.routeProvider, this.initialStrategy, iteration, this.pConfig.getInitialBudget());
+		if (initComplete) {
+			operator.replan(pStrategyManager, iteration);
+		}
+		return initComplete;
+	}
+
 	private Id<Operator> createNewIdForOperator(int iteration){
 		this.counter++;
 		return Id.create(this.pConfig.getPIdentifier() + iteration + "_" + this.counter, Operator.class);
@@ -20,16 +20,20 @@
 package org.matsim.contrib.minibus.operator;
 
 import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.genericUtils.GridNode;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Simple Franchise system rejecting all routes already operated with respect to stops served and time of operation
+ * <p>
+ * A route is identified by a 128 bit signature of its operation time, vehicle type and the stops served. Stops and vehicle types enter the signature by an index assigned on first use.
  * 
  * @author aneumann
  *
@@ -40,7 +44,17 @@ public final class PFranchise {
 	
 	private final boolean activated;
 	private final double gridSize;
-	private TreeSet<String> routeHashes = new TreeSet<>();
+	/*
+	 * The routes offered by all operators. Operators tell whenever they adopt or drop a plan. Thread-safe, yet operators replanned
+	 * in local scopes keep their changes in the scope, thus the routes offered do not change while they are replanned in parallel.
+	 */
+	private final PRouteSignatureSet routeSignatures = new PRouteSignatureSet(1024);
+	private final ThreadLocal<LocalScope> localScope = new ThreadLocal<>();
+	private final ConcurrentMap<Id<Operator>, LocalScope> closedLocalScopes = new ConcurrentHashMap<>();
+	
+	private final ConcurrentMap<Id<TransitStopFacility>, Integer> stopIndices = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Integer> vehicleTypeIndices = new ConcurrentHashMap<>();
+	private final AtomicInteger nextIndex = new AtomicInteger();
 
 	
 	public PFranchise(boolean useFranchise, double gridSize) {
@@ -53,47 +67,205 @@ public final class PFranchise {
 		}
 	}
 
+	/**
+	 * @return true, if the route of the plan is offered already
+	 */
 	public boolean planRejected(PPlan plan) {
 		
 		if(!this.activated){
 			return false;
 		}
 		
-		String routeHash = generateRouteHash(plan);
-		boolean reject = this.routeHashes.contains(routeHash);
-		this.routeHashes.add(routeHash);
+		long high = this.getSignatureHigh(plan);
+		long low = this.getSignatureLow(plan);
 		
-		return reject;
+		LocalScope scope = this.localScope.get();
+		if (scope != null && scope.adoptedSignatures.contains(high, low)) {
+			return true;
+		}
+		return this.routeSignatures.contains(high, low);
 	}
-
+	
 	/**
-	 * Reset all route hashes to the routes currently in use
+	 * To be called by an operator starting to offer the route of a plan.
 	 * 
-	 * @param operators
+	 * @param plan
 	 */
-	public void reset(LinkedList<Operator> operators) {
+	public void planAdopted(PPlan plan) {
+		if (!this.activated) {
+			return;
+		}
 		
-		if(this.activated){
-			this.routeHashes = new TreeSet<>();
+		LocalScope scope = this.localScope.get();
+		if (scope != null) {
+			scope.adopted.add(plan);
+			scope.adoptedSignatures.add(this.getSignatureHigh(plan), this.getSignatureLow(plan));
+			return;
+		}
+		this.routeSignatures.add(this.getSignatureHigh(plan), this.getSignatureLow(plan));
+	}
+	
+	/**
+	 * To be called by an operator no longer offering the route of a plan, including all plans of an operator going bankrupt.
+	 * 
+	 * @param plan
+	 */
+	public void planDropped(PPlan plan) {
+		if (!this.activated) {
+			return;
+		}
+		
+		LocalScope scope = this.localScope.get();
+		if (scope != null) {
+			if (scope.adopted.remove(plan)) {
+				// adopted in the same scope, never offered to others
+				scope.adoptedSignatures.remove(this.getSignatureHigh(plan), this.getSignatureLow(plan));
+			} else {
+				scope.dropped.add(plan);
+			}
+			return;
+		}
+		this.routeSignatures.remove(this.getSignatureHigh(plan), this.getSignatureLow(plan));
+	}
+	
+	/**
+	 * Plans adopted and dropped by the current thread are kept in a scope of the given operator until its routes are admitted,
+	 * see {@link #admitRoutesOfLocalScopes(List)} and {@link #addRoutesOfNewOperator(Operator)}. Used to replan operators in parallel.
+	 * 
+	 * @param operatorId the operator replanned by the current thread
+	 */
+	public void beginLocalScope(Id<Operator> operatorId) {
+		this.localScope.set(new LocalScope(operatorId));
+	}
+	
+	public void endLocalScope() {
+		LocalScope scope = this.localScope.get();
+		this.localScope.remove();
+		if (scope != null && (!scope.adopted.isEmpty() || !scope.dropped.isEmpty())) {
+			this.closedLocalScopes.put(scope.operatorId, scope);
+		}
+	}
 
-			for (Operator operator : operators) {
-				Set<String> routesHashesOfOperator = new TreeSet<>();
-				for (PPlan plan : operator.getAllPlans()) {
-					String routeHash = generateRouteHash(plan);				
-					if (this.routeHashes.contains(routeHash)) {
-						if (routesHashesOfOperator.contains(routeHash)) {
-							// This route is already served by the same operator
-							log.warn("Operator " + operator.getId() + " offers the same plan twice. Plan: " + plan.getId() + " managed to circumvent the franchise system with route " + routeHash);
-						} else {
-							// This route is already served by another operator
-							log.warn("Operator " + operator.getId() + " with plan " + plan.getId() + " managed to circumvent the franchise system with route " + routeHash);
-						}
+	/**
+	 * Adds the routes of an operator created in a local scope, unless one of them is offered already. Operators created in parallel are added in the order of their ids,
+	 * thus a later operator duplicating a route of an earlier one is rejected as it would have been when created one after the other.
+	 * 
+	 * @param operator
+	 * @return false, if the operator offers a route already known and has to be dropped
+	 */
+	public boolean addRoutesOfNewOperator(Operator operator) {
+		LocalScope scope = this.closedLocalScopes.remove(operator.getId());
+		if (!this.activated || scope == null) {
+			return true;
+		}
+		
+		for (PPlan plan : scope.adopted) {
+			if (this.routeSignatures.contains(this.getSignatureHigh(plan), this.getSignatureLow(plan))) {
+				return false;
+			}
+		}
+		for (PPlan plan : scope.dropped) {
+			this.routeSignatures.remove(this.getSignatureHigh(plan), this.getSignatureLow(plan));
+		}
+		for (PPlan plan : scope.adopted) {
+			this.routeSignatures.add(this.getSignatureHigh(plan), this.getSignatureLow(plan));
+		}
+		return true;
+	}
+	
+	/**
+	 * Applies the plans adopted and dropped by operators replanned in local scopes. The routes dropped are removed first, then the routes
+	 * adopted are added in the order of the operators given. A plan adopting a route of an operator earlier in order is dropped again,
+	 * as it would have been rejected when replanned one after the other.
+	 * 
+	 * @param operators all operators replanned in local scopes, in the order they are replanned one after the other
+	 */
+	public void admitRoutesOfLocalScopes(List<Operator> operators) {
+		if (!this.activated) {
+			return;
+		}
+		
+		for (Operator operator : operators) {
+			LocalScope scope = this.closedLocalScopes.get(operator.getId());
+			if (scope != null) {
+				for (PPlan plan : scope.dropped) {
+					this.routeSignatures.remove(this.getSignatureHigh(plan), this.getSignatureLow(plan));
+				}
+			}
+		}
+		
+		int numberOfPlansDropped = 0;
+		for (Operator operator : operators) {
+			LocalScope scope = this.closedLocalScopes.remove(operator.getId());
+			if (scope != null) {
+				for (PPlan plan : scope.adopted) {
+					long high = this.getSignatureHigh(plan);
+					long low = this.getSignatureLow(plan);
+					if (!this.routeSignatures.contains(high, low)) {
+						this.routeSignatures.add(high, low);
+					} else if (operator.dropNewPlan(plan)) {
+						// This route was adopted by another operator replanned in parallel
+						numberOfPlansDropped++;
+					} else {
+						this.routeSignatures.add(high, low);
+						log.warn("Operator " + operator.getId() + " keeps its only plan " + plan.getId() + " offering the route of another operator " + generateRouteHash(plan));
 					}
-					this.routeHashes.add(routeHash);
-					routesHashesOfOperator.add(routeHash);
 				}
 			}
 		}
+		if (numberOfPlansDropped > 0) {
+			log.info(numberOfPlansDropped + " new plans were dropped, since they offer a route of another operator replanned in parallel.");
+		}
+	}
+	
+	private long getSignatureHigh(PPlan plan) {
+		return getSignature(plan, 0x6A09E667F3BCC909L, 0x9E3779B97F4A7C15L);
+	}
+	
+	private long getSignatureLow(PPlan plan) {
+		return getSignature(plan, 0xBB67AE8584CAA73BL, 0xC2B2AE3D27D4EB4FL);
+	}
+	
+	/**
+	 * Hashes operation time, vehicle type and the stops served. Called twice with different seeds and multipliers to get the two halves of a signature.
+	 */
+	private long getSignature(PPlan plan, long seed, long multiplier) {
+		long h = seed;
+		h = mix(h, Double.doubleToLongBits(plan.getStartTime()), multiplier);
+		h = mix(h, Double.doubleToLongBits(plan.getEndTime()), multiplier);
+		h = mix(h, getIndex(this.vehicleTypeIndices, plan.getPVehicleType()), multiplier);
+		ArrayList<TransitStopFacility> stopsToBeServed = plan.getStopsToBeServed();
+		for (int i = 0; i < stopsToBeServed.size(); i++) {
+			h = mix(h, getIndex(this.stopIndices, stopsToBeServed.get(i).getId()), multiplier);
+		}
+		h = mix(h, stopsToBeServed.size(), multiplier);
+		
+		// finalizer of MurmurHash3
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	private static long mix(long h, long value, long multiplier) {
+		return Long.rotateLeft((h ^ value) * multiplier, 31);
+	}
+	
+	private <T> int getIndex(ConcurrentMap<T, Integer> indices, T key) {
+		if (key == null) {
+			return -1;
+		}
+		Integer index = indices.get(key);
+		if (index == null) {
+			Integer newIndex = this.nextIndex.getAndIncrement();
+			index = indices.putIfAbsent(key, newIndex);
+			if (index == null) {
+				index = newIndex;
+			}
+		}
+		return index;
 	}
 	
 	private String generateRouteHash(PPlan plan) {
@@ -162,4 +334,18 @@ public final class PFranchise {
 
 		return sB.toString();
 	}
+	
+	/**
+	 * The plans adopted and dropped by one operator while replanned in a local scope.
+	 */
+	private static final class LocalScope {
+		private final Id<Operator> operatorId;
+		private final List<PPlan> adopted = new ArrayList<>();
+		private final PRouteSignatureSet adoptedSignatures = new PRouteSignatureSet(16);
+		private final List<PPlan> dropped = new ArrayList<>();
+		
+		private LocalScope(Id<Operator> operatorId) {
+			this.operatorId = operatorId;
+		}
+	}
 }
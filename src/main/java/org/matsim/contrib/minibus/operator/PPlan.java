@@ -21,6 +21,7 @@ package org.matsim.contrib.minibus.operator;
 
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
 import org.matsim.core.utils.misc.Time;
 import org.matsim.pt.transitSchedule.api.Departure;
 import org.matsim.pt.transitSchedule.api.TransitLine;
@@ -28,9 +29,16 @@ import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 import org.matsim.vehicles.Vehicle;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * The operator's plan
@@ -47,7 +55,12 @@ public final class PPlan implements Comparable<PPlan>{
 	private final String creator;
 	private Id<PPlan> parentId;
 
+	// the line is created on demand by the provider, see getLine
+	private PRouteProvider lineProvider;
+	private Id<Operator> operatorId;
 	private TransitLine line;
+	// the definition the line was created from
+	private LineDefinition lineDefinition;
 	private double score = Double.NaN;
 	private int tripsServed = 0;
 
@@ -62,7 +75,12 @@ public final class PPlan implements Comparable<PPlan>{
 	
 	private ArrayList<TransitStopFacility> stopsToBeServed;
 
-	private Set<Id<Vehicle>> vehicleIds;
+	private List<Id<Vehicle>> vehicleIds = Collections.emptyList();
+	
+	// departures of the line
+	private Departures departures = new Departures(null);
+	// recorded by the route provider while creating a line, see beginDepartures
+	private Departures recordedDepartures = null;
 
 	private int subsidizedTrips;
 
@@ -119,23 +137,149 @@ public final class PPlan implements Comparable<PPlan>{
 		return this.parentId;
 	}
 
+	/**
+	 * Sets the route provider creating the line of this plan. Nothing is created until the line is requested.
+	 * 
+	 * @param lineProvider
+	 * @param operatorId the operator the line is created for
+	 */
+	public void setLineProvider(PRouteProvider lineProvider, Id<Operator> operatorId) {
+		this.lineProvider = lineProvider;
+		this.operatorId = operatorId;
+	}
+
+	/**
+	 * The line is created from the definition of the plan, i.e. its operation time, number of vehicles, vehicle type and stops,
+	 * and kept until the definition changes. A plan without vehicles keeps its last line. Neither the number of vehicles nor
+	 * the headway of the plan are changed, see {@link #updateLine()}.
+	 * 
+	 * @return The line of the current definition
+	 */
 	public TransitLine getLine(){
+		if (this.lineProvider != null && (this.line == null || (this.nVehicles > 0 && !this.lineDefinition.isDefinitionOf(this)))) {
+			this.setLine(this.lineProvider.createTransitLineFromOperatorPlan(this.operatorId, this, null));
+		}
 		return this.line;
 	}
 
-	public void setLine(TransitLine line) {
+	/**
+	 * Recreates the line with the travel times the route provider collected in the last iteration. The current line is reused
+	 * if neither these nor the definition of the plan changed. Afterwards, the plan takes the number of vehicles and the headway
+	 * of the line, i.e. vehicles not fitting into the operation time are dropped. To be called by the operator when collecting
+	 * the lines of its plans after replanning.
+	 */
+	public void updateLine() {
+		TransitLine lineToReuse = this.line != null && this.lineDefinition.isDefinitionOf(this) ? this.line : null;
+		this.setLine(this.lineProvider.createTransitLineFromOperatorPlan(this.operatorId, this, lineToReuse));
+		this.nVehicles = this.lineDefinition.nVehiclesOfLine;
+		if (!Double.isNaN(this.departures.headway)) {
+			this.headway = this.departures.headway;
+		}
+	}
+
+	/**
+	 * Sets the line created for the current definition. If the route provider recorded the departures of this very line, see {@link #beginDepartures(TransitLine)}, these are used.
+	 * Otherwise the departures are collected from the line and the vehicle slot is parsed from the vehicle id, which has to end with "-" + slot.
+	 * 
+	 * @param line
+	 */
+	private void setLine(TransitLine line) {
+		if (line == this.line) {
+			// reused by the provider, so are its departures
+			this.recordedDepartures = null;
+			return;
+		}
+		
+		if (this.recordedDepartures == null || this.recordedDepartures.line != line) {
+			// not recorded or recorded for some other line
+			this.beginDepartures(line);
+			Map<Id<Vehicle>, Integer> vehicleIndices = new HashMap<>();
+			for (TransitRoute route : line.getRoutes().values()) {
+				for (Departure departure : route.getDepartures().values()) {
+					Integer vehicleIndex = vehicleIndices.get(departure.getVehicleId());
+					if (vehicleIndex == null) {
+						vehicleIndex = this.addVehicle(departure.getVehicleId());
+						vehicleIndices.put(departure.getVehicleId(), vehicleIndex);
+					}
+					String vehicleId = departure.getVehicleId().toString();
+					int vehicleSlot = Integer.parseInt(vehicleId.substring(vehicleId.lastIndexOf('-') + 1));
+					this.addDeparture(departure.getDepartureTime(), vehicleSlot, vehicleIndex);
+				}
+			}
+		}
 		this.line = line;
-		this.vehicleIds = new TreeSet<>();
+		this.departures = this.recordedDepartures;
+		this.recordedDepartures = null;
+		
 		int nbVeh = 0;
-		for (TransitRoute route : this.line.getRoutes().values()) {
-			for (Departure departure : route.getDepartures().values()) {
-				this.vehicleIds.add(departure.getVehicleId());
-				String[] vehId = departure.getVehicleId().toString().split("-");
-				if(Integer.parseInt(vehId[vehId.length - 1]) > nbVeh)
-					nbVeh = Integer.parseInt(vehId[vehId.length - 1]);
+		for (int i = 0; i < this.departures.number; i++) {
+			if (this.departures.vehicleSlots[i] > nbVeh) {
+				nbVeh = this.departures.vehicleSlots[i];
 			}
 		}
-		this.nVehicles = nbVeh + 1;
+		this.lineDefinition = new LineDefinition(this, nbVeh + 1);
+		this.vehicleIds = Collections.unmodifiableList(this.departures.vehicleIds);
+	}
+	
+	/**
+	 * Starts recording the departures of a line created for this plan. To be called by the route provider, followed by {@link #addVehicle(Id)} and {@link #addDeparture(double, int, int)} for each vehicle and departure of the line.
+	 * The recorded departures are used, if the same line instance is returned to the plan. The departures of the current line are kept until then.
+	 * 
+	 * @param line the line the departures are added to
+	 */
+	public void beginDepartures(TransitLine line) {
+		this.recordedDepartures = new Departures(line);
+	}
+	
+	/**
+	 * @param vehicleId
+	 * @return The index of the vehicle to be used for its departures
+	 */
+	public int addVehicle(Id<Vehicle> vehicleId) {
+		this.recordedDepartures.vehicleIds.add(vehicleId);
+		return this.recordedDepartures.vehicleIds.size() - 1;
+	}
+	
+	/**
+	 * @param headway The headway between the vehicles of the line, taken by the plan in {@link #updateLine()}
+	 */
+	public void recordHeadway(double headway) {
+		this.recordedDepartures.headway = headway;
+	}
+	
+	/**
+	 * @param departureTime
+	 * @param vehicleSlot The number of the vehicle of the plan serving the departure, starting with 0
+	 * @param vehicleIndex The index returned by {@link #addVehicle(Id)}
+	 */
+	public void addDeparture(double departureTime, int vehicleSlot, int vehicleIndex) {
+		Departures recorded = this.recordedDepartures;
+		if (recorded.number == recorded.times.length) {
+			int capacity = Math.max(16, 2 * recorded.number);
+			recorded.times = Arrays.copyOf(recorded.times, capacity);
+			recorded.vehicleSlots = Arrays.copyOf(recorded.vehicleSlots, capacity);
+			recorded.vehicles = Arrays.copyOf(recorded.vehicles, capacity);
+		}
+		recorded.times[recorded.number] = departureTime;
+		recorded.vehicleSlots[recorded.number] = vehicleSlot;
+		recorded.vehicles[recorded.number] = vehicleIndex;
+		recorded.number++;
+	}
+	
+	public int getNumberOfDepartures() {
+		return this.departures.number;
+	}
+	
+	public double getDepartureTime(int departure) {
+		return this.departures.times[departure];
+	}
+	
+	public int getDepartureVehicleSlot(int departure) {
+		return this.departures.vehicleSlots[departure];
+	}
+	
+	public Id<Vehicle> getDepartureVehicleId(int departure) {
+		return this.departures.vehicleIds.get(this.departures.vehicles[departure]);
 	}
 	
 	public double getStartTime() {
@@ -254,7 +398,10 @@ public final class PPlan implements Comparable<PPlan>{
 		}
 	}
 
-	public Set<Id<Vehicle>> getVehicleIds() {
+	/**
+	 * @return The distinct vehicles of the line in the order they were added
+	 */
+	public List<Id<Vehicle>> getVehicleIds() {
 		return vehicleIds;
 	}
 
@@ -303,6 +450,80 @@ public final class PPlan implements Comparable<PPlan>{
 		return true;
 	}
 
+	/**
+	 * Writes everything but the line, which is recreated from the plan on restore.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeCheckpoint(DataOutputStream out) throws IOException {
+		out.writeUTF(this.planId.toString());
+		out.writeUTF(this.creator);
+		out.writeBoolean(this.parentId != null);
+		if (this.parentId != null) {
+			out.writeUTF(this.parentId.toString());
+		}
+		out.writeDouble(this.score);
+		out.writeInt(this.tripsServed);
+		out.writeDouble(this.startTime);
+		out.writeDouble(this.endTime);
+		out.writeInt(this.nVehicles);
+		out.writeBoolean(this.pVehicleType != null);
+		if (this.pVehicleType != null) {
+			out.writeUTF(this.pVehicleType);
+		}
+		out.writeDouble(this.totalHoursDrivenPerVehicle);
+		out.writeDouble(this.totalKilometersDrivenPerVehicle);
+		out.writeDouble(this.totalPassengerKilometerPerVehicle);
+		out.writeDouble(this.totalPassengerKilometer);
+		out.writeInt(this.subsidizedTrips);
+		out.writeDouble(this.amountOfSubsidies);
+		out.writeDouble(this.headway);
+		out.writeInt(this.stopsToBeServed.size());
+		for (TransitStopFacility stop : this.stopsToBeServed) {
+			out.writeUTF(stop.getId().toString());
+		}
+	}
+
+	/**
+	 * Reads a plan written by {@link #writeCheckpoint}. The line is created on demand, once the line provider is set.
+	 * 
+	 * @param in
+	 * @param stops all stops the plan may serve
+	 * @return
+	 * @throws IOException
+	 */
+	static PPlan readCheckpoint(DataInputStream in, Map<Id<TransitStopFacility>, TransitStopFacility> stops) throws IOException {
+		Id<PPlan> planId = Id.create(in.readUTF(), PPlan.class);
+		String creator = in.readUTF();
+		Id<PPlan> parentId = in.readBoolean() ? Id.create(in.readUTF(), PPlan.class) : null;
+		PPlan plan = new PPlan(planId, creator, parentId);
+		plan.score = in.readDouble();
+		plan.tripsServed = in.readInt();
+		plan.startTime = in.readDouble();
+		plan.endTime = in.readDouble();
+		plan.nVehicles = in.readInt();
+		plan.pVehicleType = in.readBoolean() ? in.readUTF() : null;
+		plan.totalHoursDrivenPerVehicle = in.readDouble();
+		plan.totalKilometersDrivenPerVehicle = in.readDouble();
+		plan.totalPassengerKilometerPerVehicle = in.readDouble();
+		plan.totalPassengerKilometer = in.readDouble();
+		plan.subsidizedTrips = in.readInt();
+		plan.amountOfSubsidies = in.readDouble();
+		plan.headway = in.readDouble();
+		int numberOfStops = in.readInt();
+		plan.stopsToBeServed = new ArrayList<>(numberOfStops);
+		for (int i = 0; i < numberOfStops; i++) {
+			Id<TransitStopFacility> stopId = Id.create(in.readUTF(), TransitStopFacility.class);
+			TransitStopFacility stop = stops.get(stopId);
+			if (stop == null) {
+				throw new RuntimeException("Stop " + stopId + " of plan " + planId + " is unknown. The checkpoint does not match the scenario. Aborting...");
+			}
+			plan.stopsToBeServed.add(stop);
+		}
+		return plan;
+	}
+
 	@Override
 	public int compareTo(PPlan plan) {
 	    if (plan.getScorePerVehicle() > this.getScorePerVehicle()) {
@@ -315,4 +536,51 @@ public final class PPlan implements Comparable<PPlan>{
 		      return 0;
 //	    }
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * The departures of one line, the vehicles referenced by their index in the list of vehicle ids.
+	 */
+	private static final class Departures {
+		private final TransitLine line;
+		private int number = 0;
+		private double[] times = new double[0];
+		private int[] vehicleSlots = new int[0];
+		private int[] vehicles = new int[0];
+		private final ArrayList<Id<Vehicle>> vehicleIds = new ArrayList<>();
+		private double headway = Double.NaN;
+		
+		private Departures(TransitLine line) {
+			this.line = line;
+		}
+	}
+	
+	/**
+	 * The definition of the plan a line was created from. The number of vehicles of the line may be lower than requested,
+	 * if not all vehicles fit into the operation time. Both numbers match the line.
+	 */
+	private static final class LineDefinition {
+		private final double startTime;
+		private final double endTime;
+		private final int nVehicles;
+		private final int nVehiclesOfLine;
+		private final String pVehicleType;
+		private final List<TransitStopFacility> stopsToBeServed;
+		
+		private LineDefinition(PPlan plan, int nVehiclesOfLine) {
+			this.startTime = plan.startTime;
+			this.endTime = plan.endTime;
+			this.nVehicles = plan.nVehicles;
+			this.nVehiclesOfLine = nVehiclesOfLine;
+			this.pVehicleType = plan.pVehicleType;
+			this.stopsToBeServed = new ArrayList<>(plan.stopsToBeServed);
+		}
+		
+		private boolean isDefinitionOf(PPlan plan) {
+			return this.startTime == plan.startTime
+					&& this.endTime == plan.endTime
+					&& (this.nVehicles == plan.nVehicles || this.nVehiclesOfLine == plan.nVehicles)
+					&& Objects.equals(this.pVehicleType, plan.pVehicleType)
+					&& this.stopsToBeServed.equals(plan.stopsToBeServed);
+		}
+	}
+}
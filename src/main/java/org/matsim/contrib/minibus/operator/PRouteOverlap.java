@@ -25,14 +25,17 @@ import org.matsim.contrib.minibus.genericUtils.GridNode;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
-import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Simple Franchise system rejecting all intended plan that do not overlap with existing plans
+ * <p>
+ * A route is represented by the sorted keys of the grid cells its stops are located in, see {@link GridNode#getGridNodeKeyForCoord}.
+ * A plan is rejected if it does not share a single grid cell with one of the routes of its operator.
  * 
  * @author manserpa
  *
@@ -42,7 +45,8 @@ public final class PRouteOverlap {
 	private final static Logger log = Logger.getLogger(PFranchise.class);
 	
 	private final boolean activated;
-	private HashMap<Id<Operator>, List<String>> stopsToBeServedHashes = new HashMap<Id<Operator>,  List<String>>();
+	// concurrent, since operators may be replanned in parallel. Each operator only alters its own entry
+	private Map<Id<Operator>, Map<PPlan, long[]>> operatorRoutes = new ConcurrentHashMap<>();
 	private double gridSize;
 
 	
@@ -61,40 +65,27 @@ public final class PRouteOverlap {
 		if(!this.activated){
 			return false;
 		}
-
-		boolean reject = false;
-		
-		String routeHash = generateRouteHash(plan);
-		String[] desiredStops = routeHash.split("===");
 		
-		List<String> getRouteHashes = new ArrayList<String>();
-		if(this.stopsToBeServedHashes.containsKey(operatorId))
-			getRouteHashes = this.stopsToBeServedHashes.get(operatorId);
+		long[] desiredCells = this.getGridCells(plan.getStopsToBeServed());
 		
-		for(String getAllExistingRoutes: getRouteHashes)	{
-			int k = 0;
-			
-			for(String e: desiredStops)	{
-				if(getAllExistingRoutes.contains(e))
-					k++;
-			}
-			
-			if(k < 2)	{
-				reject = true;
-				return reject;
-			}
+		Map<PPlan, long[]> routes = this.operatorRoutes.get(operatorId);
+		if (routes == null) {
+			routes = new IdentityHashMap<>();
+			this.operatorRoutes.put(operatorId, routes);
 		}
 		
-		if(!reject)	{
-			getRouteHashes.add(routeHash);
-			this.stopsToBeServedHashes.put(operatorId, getRouteHashes);
+		for (long[] existingCells : routes.values()) {
+			if (getNumberOfSharedCells(desiredCells, existingCells) < 1) {
+				return true;
+			}
 		}
 		
-		return reject;
+		routes.put(plan, desiredCells);
+		return false;
 	}
 
 	/**
-	 * Reset all route hashes to the routes currently in use
+	 * Reset all routes to the routes currently in use. The grid cells of plans already known are kept.
 	 * 
 	 * @param operators
 	 */
@@ -102,54 +93,69 @@ public final class PRouteOverlap {
 		
 		if(this.activated){
 			
-			this.stopsToBeServedHashes = new HashMap<>();
+			Map<Id<Operator>, Map<PPlan, long[]>> oldOperatorRoutes = this.operatorRoutes;
+			this.operatorRoutes = new ConcurrentHashMap<>();
 			
 			for (Operator operator : operators) {
 				
-				List<String> routePlanList = new ArrayList<String>();
+				Map<PPlan, long[]> oldRoutes = oldOperatorRoutes.get(operator.getId());
+				Map<PPlan, long[]> routes = new IdentityHashMap<>();
 				
 				for (PPlan plan : operator.getAllPlans()) {
-					String routeHash = generateRouteHash(plan);				
-					routePlanList.add(routeHash);
+					long[] cells = oldRoutes == null ? null : oldRoutes.get(plan);
+					if (cells == null) {
+						cells = this.getGridCells(plan.getStopsToBeServed());
+					}
+					routes.put(plan, cells);
 				}
 				
-				this.stopsToBeServedHashes.put(operator.getId(), routePlanList);
+				this.operatorRoutes.put(operator.getId(), routes);
 			}
 		}
 	}
 	
-	private String generateRouteHash(PPlan plan) {
-		return generateRoute(plan.getStopsToBeServed());
+	/**
+	 * @param cells sorted, without duplicates
+	 * @param otherCells sorted, without duplicates
+	 * @return The number of grid cells contained in both
+	 */
+	private static int getNumberOfSharedCells(long[] cells, long[] otherCells) {
+		int shared = 0;
+		int i = 0;
+		int j = 0;
+		while (i < cells.length && j < otherCells.length) {
+			if (cells[i] < otherCells[j]) {
+				i++;
+			} else if (cells[i] > otherCells[j]) {
+				j++;
+			} else {
+				shared++;
+				i++;
+				j++;
+			}
+		}
+		return shared;
 	}
 
 	/**
-	 * Generates a unique String from the stops given
+	 * Collects the grid cells of the stops given
 	 * 
 	 * @param stopsToBeServed
-	 * @return
+	 * @return The keys of the grid cells, sorted and without duplicates
 	 */
-	
-	private String generateRoute(ArrayList<TransitStopFacility> stopsToBeServed) {
-		StringBuffer sB = new StringBuffer();
+	private long[] getGridCells(ArrayList<TransitStopFacility> stopsToBeServed) {
+		long[] cells = new long[stopsToBeServed.size()];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = GridNode.getGridNodeKeyForCoord(stopsToBeServed.get(i).getCoord(), this.gridSize);
+		}
+		Arrays.sort(cells);
 		
-		String lastGridNodeId = null;
-		for (TransitStopFacility transitStopFacility : stopsToBeServed) {
-			String gridNodeId = GridNode.getGridNodeIdForCoord(transitStopFacility.getCoord(), this.gridSize);
-			
-			if (lastGridNodeId == null) {
-				lastGridNodeId = gridNodeId;
-			} else {
-				if (gridNodeId.equalsIgnoreCase(lastGridNodeId)) {
-					// still in same gridSquare
-					continue;
-				}
-				lastGridNodeId = gridNodeId;
+		int n = 0;
+		for (int i = 0; i < cells.length; i++) {
+			if (n == 0 || cells[i] != cells[n - 1]) {
+				cells[n++] = cells[i];
 			}
-
-			sB.append("===");
-			sB.append(lastGridNodeId); 
 		}
-
-		return sB.toString();
+		return n == cells.length ? cells : Arrays.copyOf(cells, n);
 	}
 }
@@ -0,0 +1,172 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.operator;
+
+/**
+ * Hash set of 128 bit route signatures, each stored as two longs along with the number of times it was added. A signature is contained until removed as often as added.
+ * <p>
+ * Thread-safe, the signatures are spread over several segments, each an open addressing table locked on its own.
+ * 
+ * @author manserpa
+ *
+ */
+final class PRouteSignatureSet {
+	
+	private static final int NUMBER_OF_SEGMENTS = 16;
+	
+	private final Segment[] segments = new Segment[NUMBER_OF_SEGMENTS];
+	
+	PRouteSignatureSet(int expectedSize) {
+		for (int i = 0; i < NUMBER_OF_SEGMENTS; i++) {
+			this.segments[i] = new Segment(Math.max(1, expectedSize / NUMBER_OF_SEGMENTS));
+		}
+	}
+	
+	boolean contains(long high, long low) {
+		Segment segment = this.getSegment(high);
+		synchronized (segment) {
+			return segment.counts[segment.slot(high, low)] > 0;
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the signature was not contained before
+	 */
+	boolean add(long high, long low) {
+		Segment segment = this.getSegment(high);
+		synchronized (segment) {
+			return segment.add(high, low) == 1;
+		}
+	}
+	
+	/**
+	 * Removes the signature once.
+	 * 
+	 * @return <code>true</code> if the signature was contained before
+	 */
+	boolean remove(long high, long low) {
+		Segment segment = this.getSegment(high);
+		synchronized (segment) {
+			return segment.remove(high, low);
+		}
+	}
+	
+	private Segment getSegment(long high) {
+		// the signatures are well mixed, the top bits select the segment
+		return this.segments[(int) (high >>> 60) & (NUMBER_OF_SEGMENTS - 1)];
+	}
+	
+	/**
+	 * Linear probing, removed signatures are not marked but the following ones shifted back. Thus, a slot is empty if its count is 0.
+	 */
+	private static final class Segment {
+		
+		private long[] slots;
+		private int[] counts;
+		private int mask;
+		private int size = 0;
+		
+		private Segment(int expectedSize) {
+			int capacity = 16;
+			while (capacity < 2 * expectedSize) {
+				capacity <<= 1;
+			}
+			this.slots = new long[2 * capacity];
+			this.counts = new int[capacity];
+			this.mask = capacity - 1;
+		}
+		
+		/**
+		 * @return The slot of the signature or the empty slot it would be put into
+		 */
+		private int slot(long high, long low) {
+			for (int i = index(high, low); ; i = (i + 1) & this.mask) {
+				if (this.counts[i] == 0 || (this.slots[2 * i] == high && this.slots[2 * i + 1] == low)) {
+					return i;
+				}
+			}
+		}
+		
+		/**
+		 * @return The number of times the signature is contained now
+		 */
+		private int add(long high, long low) {
+			if (2 * (this.size + 1) > this.mask + 1) {
+				this.grow();
+			}
+			int i = this.slot(high, low);
+			if (this.counts[i] == 0) {
+				this.slots[2 * i] = high;
+				this.slots[2 * i + 1] = low;
+				this.size++;
+			}
+			return ++this.counts[i];
+		}
+		
+		private boolean remove(long high, long low) {
+			int i = this.slot(high, low);
+			if (this.counts[i] == 0) {
+				return false;
+			}
+			if (--this.counts[i] > 0) {
+				return true;
+			}
+			
+			// shift back the following signatures, unless they are at or behind their home slot already
+			for (int j = (i + 1) & this.mask; this.counts[j] != 0; j = (j + 1) & this.mask) {
+				int home = index(this.slots[2 * j], this.slots[2 * j + 1]);
+				boolean homeBetween = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+				if (!homeBetween) {
+					this.slots[2 * i] = this.slots[2 * j];
+					this.slots[2 * i + 1] = this.slots[2 * j + 1];
+					this.counts[i] = this.counts[j];
+					this.counts[j] = 0;
+					i = j;
+				}
+			}
+			this.slots[2 * i] = 0L;
+			this.slots[2 * i + 1] = 0L;
+			this.counts[i] = 0;
+			this.size--;
+			return true;
+		}
+		
+		private int index(long high, long low) {
+			long h = high ^ (low * 0x9E3779B97F4A7C15L);
+			return (int) (h ^ (h >>> 32)) & this.mask;
+		}
+		
+		private void grow() {
+			long[] oldSlots = this.slots;
+			int[] oldCounts = this.counts;
+			this.slots = new long[2 * oldSlots.length];
+			this.counts = new int[2 * oldCounts.length];
+			this.mask = 2 * this.mask + 1;
+			for (int i = 0; i < oldCounts.length; i++) {
+				if (oldCounts[i] > 0) {
+					int j = this.slot(oldSlots[2 * i], oldSlots[2 * i + 1]);
+					this.slots[2 * j] = oldSlots[2 * i];
+					this.slots[2 * j + 1] = oldSlots[2 * i + 1];
+					this.counts[j] = oldCounts[i];
+				}
+			}
+		}
+	}
+}
@@ -26,15 +26,21 @@ import org.matsim.api.core.v01.events.handler.ActivityEndEventHandler;
 import org.matsim.api.core.v01.events.handler.ActivityStartEventHandler;
 import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.contrib.minibus.PConstants;
-import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
 import org.matsim.core.utils.io.IOUtils;
 
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Will consider all activities up to 30 o'clock. All remaining activities are dropped.
+ * <p>
+ * Events are counted in striped counters, thus the provider works with a parallel events manager. Random times are drawn from an immutable snapshot of the counts,
+ * published by {@link #publish()} and {@link #reset(int)}. Replanning threads may draw concurrently while the events of the next iteration are counted.
  * 
  * @author aneumann
  *
@@ -44,7 +50,8 @@ public final class TimeProvider implements ActivityStartEventHandler, ActivityEn
 	private final static Logger log = Logger.getLogger(TimeProvider.class);
 
     private final double timeSlotSize;
-	private int[] weights = null;
+	private final LongAdder[] counts;
+	private volatile Snapshot snapshot;
 	private BufferedWriter writer = null;
 	
 	public TimeProvider(PConfigGroup pConfig, String outputDir){
@@ -57,13 +64,17 @@ public final class TimeProvider implements ActivityStartEventHandler, ActivityEn
 			numberOfSlots = 1;
 			log.warn("Number of slots is increased to " + numberOfSlots);
 		}
-		this.weights = new int[numberOfSlots];
+		this.counts = new LongAdder[numberOfSlots];
+		for (int i = 0; i < numberOfSlots; i++) {
+			this.counts[i] = new LongAdder();
+		}
+		this.snapshot = new Snapshot(new int[numberOfSlots]);
 		
 		new File(outputDir + PConstants.statsOutputFolder).mkdir();
 		this.writer = IOUtils.getBufferedWriter(outputDir + PConstants.statsOutputFolder + "timeSlots2weight.txt");
 		StringBuffer strB = new StringBuffer();
 		
-		for (int i = 0; i < weights.length; i++) {
+		for (int i = 0; i < this.counts.length; i++) {
 			strB.append("; " + i * timeSlotSize);
 		}
 		
@@ -78,8 +89,22 @@ public final class TimeProvider implements ActivityStartEventHandler, ActivityEn
 	@Override
 	public void reset(int iteration) {
 		// New Iteration - write the old weights to file and set the new ones as current
-		this.writeToFile(this.writer, this.weights, iteration);
-		this.weights = new int[this.weights.length];
+		this.publish();
+		this.writeToFile(this.writer, this.snapshot.weights, iteration);
+		for (LongAdder count : this.counts) {
+			count.reset();
+		}
+	}
+	
+	/**
+	 * Publishes the activities counted so far as the weights to draw from. To be called once the events of an iteration are processed.
+	 */
+	public void publish() {
+		int[] weights = new int[this.counts.length];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = this.counts[i].intValue();
+		}
+		this.snapshot = new Snapshot(weights);
 	}
 
 	@Override
@@ -95,30 +120,28 @@ public final class TimeProvider implements ActivityStartEventHandler, ActivityEn
 	}
 
 	public double getRandomTimeInInterval(double startTime, double endTime) {
+		Snapshot snapshot = this.snapshot;
 		int startSlot = TimeProvider.getSlotForTime(startTime, this.timeSlotSize);
 		int endSlot = TimeProvider.getSlotForTime(endTime, this.timeSlotSize);
 		
-		if (startSlot >= this.weights.length) {
-			log.info("Resetting start slot from " + startSlot + " to " + (this.weights.length - 1));
-			startSlot = this.weights.length -1;
+		if (startSlot >= snapshot.weights.length) {
+			log.info("Resetting start slot from " + startSlot + " to " + (snapshot.weights.length - 1));
+			startSlot = snapshot.weights.length -1;
 		}
 			
-		if (endSlot >= this.weights.length) {
-			log.info("Resetting end slot from " + endSlot + " to " + (this.weights.length - 1));
-			endSlot = this.weights.length - 1;
+		if (endSlot >= snapshot.weights.length) {
+			log.info("Resetting end slot from " + endSlot + " to " + (snapshot.weights.length - 1));
+			endSlot = snapshot.weights.length - 1;
 		}
 		
 		int numberOfValidSlots = endSlot - startSlot + 1;
 		
 		// get total weight of all valid time slots
-		int totalWeight = 0;
-		for (int i = startSlot; i <= endSlot; i++) {
-			totalWeight += this.weights[i];
-		}
+		long totalWeight = endSlot < startSlot ? 0 : snapshot.cumulativeWeights[endSlot + 1] - snapshot.cumulativeWeights[startSlot];
 		
 		if (totalWeight == 0.0) {
 			log.info("Total weight is zero. Probably first iteration. Will pick time slots randomly.");
-			double rnd = MatsimRandom.getRandom().nextDouble() * numberOfValidSlots;
+			double rnd = PRandom.getRandom().nextDouble() * numberOfValidSlots;
 			double accumulatedWeight = 0.0;
 			for (int i = startSlot; i <= endSlot; i++) {
 				accumulatedWeight += 1.0;
@@ -130,15 +153,19 @@ public final class TimeProvider implements ActivityStartEventHandler, ActivityEn
 			log.warn("Could not find a random time slot between: " + startSlot + " and " + endSlot);
 			
 		} else {
-			double rnd = MatsimRandom.getRandom().nextDouble() * totalWeight;
-			double accumulatedWeight = 0.0;
-			for (int i = startSlot; i <= endSlot; i++) {
-				accumulatedWeight += this.weights[i];
-				if (accumulatedWeight >= rnd) {
-					return i * this.timeSlotSize;
+			double rnd = PRandom.getRandom().nextDouble() * totalWeight;
+			// first slot with an accumulated weight of at least rnd
+			int low = startSlot;
+			int high = endSlot;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (snapshot.cumulativeWeights[mid + 1] - snapshot.cumulativeWeights[startSlot] >= rnd) {
+					high = mid;
+				} else {
+					low = mid + 1;
 				}
 			}
-			// TODO Double-check for null weights 
+			return low * this.timeSlotSize;
 		}
 		
 		log.warn("Could not find any time slot. This should not happen. Check time slot size in config. Will return the start slot time");
@@ -164,11 +191,48 @@ public final class TimeProvider implements ActivityStartEventHandler, ActivityEn
 	
 	private void addOneToTimeSlot(double time) {
 		int timeSlot = getSlotForTime(time, this.timeSlotSize);
-		if(timeSlot < this.weights.length) {
-			this.weights[timeSlot]++;
+		if(timeSlot < this.counts.length) {
+			this.counts[timeSlot].increment();
 		}
 	}
 	
+	/**
+	 * Writes the weights published last.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeCheckpoint(DataOutputStream out) throws IOException {
+		out.writeDouble(this.timeSlotSize);
+		int[] weights = this.snapshot.weights;
+		out.writeInt(weights.length);
+		for (int weight : weights) {
+			out.writeInt(weight);
+		}
+	}
+
+	/**
+	 * Replaces the current weights with the ones of the checkpoint and publishes them.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	public void readCheckpoint(DataInputStream in) throws IOException {
+		double timeSlotSizeOfCheckpoint = in.readDouble();
+		int[] weightsOfCheckpoint = new int[in.readInt()];
+		for (int i = 0; i < weightsOfCheckpoint.length; i++) {
+			weightsOfCheckpoint[i] = in.readInt();
+		}
+		if (timeSlotSizeOfCheckpoint != this.timeSlotSize || weightsOfCheckpoint.length != this.counts.length) {
+			throw new RuntimeException("The time slots of the checkpoint (size " + timeSlotSizeOfCheckpoint + ", " + weightsOfCheckpoint.length + " slots) do not match the ones of the config (size " + this.timeSlotSize + ", " + this.counts.length + " slots). Aborting...");
+		}
+		for (int i = 0; i < weightsOfCheckpoint.length; i++) {
+			this.counts[i].reset();
+			this.counts[i].add(weightsOfCheckpoint[i]);
+		}
+		this.snapshot = new Snapshot(weightsOfCheckpoint);
+	}
+	
 	public double getTimeSlotSize(){
 		return this.timeSlotSize;
 	}
@@ -176,4 +240,22 @@ public final class TimeProvider implements ActivityStartEventHandler, ActivityEn
 	public static int getSlotForTime(double time, double timeSlotSize){
 		return (int) (time / timeSlotSize);
 	}
+	
+	/**
+	 * Weights per time slot and their prefix sums, never altered once published.
+	 */
+	private static final class Snapshot {
+		
+		private final int[] weights;
+		// weight of all slots before the given one
+		private final long[] cumulativeWeights;
+		
+		private Snapshot(int[] weights) {
+			this.weights = weights;
+			this.cumulativeWeights = new long[weights.length + 1];
+			for (int i = 0; i < weights.length; i++) {
+				this.cumulativeWeights[i + 1] = this.cumulativeWeights[i] + weights[i];
+			}
+		}
+	}
 }
@@ -25,11 +25,16 @@ package org.matsim.contrib.minibus.operator;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
@@ -38,19 +43,20 @@ import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.population.Leg;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.PlanElement;
-import org.matsim.core.config.ConfigUtils;
+import org.matsim.contrib.minibus.genericUtils.PTaskRunner;
 import org.matsim.core.controler.events.ScoringEvent;
-import org.matsim.core.population.io.PopulationReader;
-import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.io.MatsimXmlParser;
 import org.matsim.pt.routes.ExperimentalTransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitLine;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.xml.sax.Attributes;
 
 /**
  * 
  * Computes the contribution of each transit line on the overall welfare changes.
  * Allocates the changes in user benefits to the transit lines which are used by the user.
+ * The selected plans are evaluated in parallel, using the number of threads of the global config. The results are merged in the order of the population.
  * 
  * 
  * @author ikaddoura
@@ -63,6 +69,8 @@ public class WelfareAnalyzer {
 	private Map<Id<PPlan>, Double> planId2welfareCorrection;
 	private Map<Id<Person>, Double> personId2benefits;
 	private Map<Id<Person>, Set<Id<PPlan>>> personId2usedPPlanIds;
+	// inverse of personId2usedPPlanIds
+	private Map<Id<PPlan>, Set<Id<Person>>> planId2userIds;
 	private Set<Id<PPlan>> currentPPlanIds;
 	
 	public WelfareAnalyzer(String initialScoresFile){
@@ -70,17 +78,10 @@ public class WelfareAnalyzer {
 		//get initial scores from the given file and store the values
 		this.personId2initialBenefits = new HashMap<>();
 		
-		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		// only the person ids and the scores of the selected plans are read, the plans are skipped
+		new InitialScoresReader(this.personId2initialBenefits).readFile(initialScoresFile);
 		
-		new PopulationReader(scenario).readFile(initialScoresFile);
-		
-		for(Person person : scenario.getPopulation().getPersons().values()){
-			
-			this.personId2initialBenefits.put(person.getId(), person.getSelectedPlan().getScore());
-			
-		}
-		
-		log.info("Initial scores for " + scenario.getPopulation().getPersons().size() + " persons have been successfully stored.");
+		log.info("Initial scores for " + this.personId2initialBenefits.size() + " persons have been successfully stored.");
 		
 	}
 	
@@ -88,43 +89,60 @@ public class WelfareAnalyzer {
 
 		// Initialize all maps.
 		this.personId2usedPPlanIds = new HashMap<>();
+		this.planId2userIds = new HashMap<>();
 		this.personId2benefits = new HashMap<>();
 		this.planId2welfareCorrection = new HashMap<>();
 		this.currentPPlanIds = new HashSet<Id<PPlan>>();
 		
 		setCurrentPPlanIds(scenario);
 		
+		// Get the PPlans used and the benefits of all persons - in parallel, each task handles a consecutive part of the population
+		final List<Person> persons = new ArrayList<>(scenario.getPopulation().getPersons().values());
+		final List<Set<Id<PPlan>>> usedPPlanIds = new ArrayList<>(persons.size());
+		final double[] benefits = new double[persons.size()];
+		for (int i = 0; i < persons.size(); i++) {
+			usedPPlanIds.add(null);
+		}
+		final double marginalUtilityOfMoney = scenario.getConfig().planCalcScore().getMarginalUtilityOfMoney();
+		
+		int numberOfThreads = Math.max(1, scenario.getConfig().global().getNumberOfThreads());
+		int numberOfTasks = Math.min(numberOfThreads, Math.max(1, persons.size()));
+		List<Callable<Void>> tasks = new ArrayList<>(numberOfTasks);
+		for (int i = 0; i < numberOfTasks; i++) {
+			final int firstPerson = i * persons.size() / numberOfTasks;
+			final int lastPerson = (i + 1) * persons.size() / numberOfTasks;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int j = firstPerson; j < lastPerson; j++) {
+						usedPPlanIds.set(j, getUsedPPlanIds(persons.get(j)));
+						benefits[j] = persons.get(j).getSelectedPlan().getScore() / marginalUtilityOfMoney;
+					}
+					return null;
+				}
+			});
+		}
+		PTaskRunner.runTasks(tasks, numberOfThreads);
+		
 		// Go through the entire population.
-		for (Person person : scenario.getPopulation().getPersons().values()){
+		for (int i = 0; i < persons.size(); i++){
 			
-			// Get the PPlan which is used by this person.
-			for (PlanElement pE : person.getSelectedPlan().getPlanElements()){
-				
-				if (pE instanceof Leg) {
-					
-					Leg leg = (Leg) pE;
-					
-					if (leg.getMode().equals(TransportMode.pt)) {
-
-						ExperimentalTransitRoute route = (ExperimentalTransitRoute) leg.getRoute();
-						String planIdString = route.getRouteId().toString();//.replace(route.getLineId().toString() + "-", "");
-						Id<PPlan> planId = Id.create(planIdString, PPlan.class);
-
-						if(!this.personId2usedPPlanIds.containsKey(person.getId())){
-							this.personId2usedPPlanIds.put(person.getId(), new HashSet<Id<PPlan>>());
-						}
-						
-						this.personId2usedPPlanIds.get(person.getId()).add(planId);
-						// yyyy this will in the end give the welfare benefit to the pplan that was _planned_ to be used. 
-						// Not necessarily to the one that _was_ actually used. kai, jan'17
-
+			Person person = persons.get(i);
+			
+			if (usedPPlanIds.get(i) != null) {
+				this.personId2usedPPlanIds.put(person.getId(), usedPPlanIds.get(i));
+				for (Id<PPlan> planId : usedPPlanIds.get(i)) {
+					Set<Id<Person>> userIds = this.planId2userIds.get(planId);
+					if (userIds == null) {
+						userIds = new LinkedHashSet<>();
+						this.planId2userIds.put(planId, userIds);
 					}
+					userIds.add(person.getId());
 				}
 			}
 						
 			// Compute the user benefits and the difference to the initial iteration.
-			double benefits = person.getSelectedPlan().getScore() / scenario.getConfig().planCalcScore().getMarginalUtilityOfMoney();
-			personId2benefits.put(person.getId(), benefits);
+			personId2benefits.put(person.getId(), benefits[i]);
 			
 			double benefitsInitialIteration = this.personId2initialBenefits.get(person.getId());
 			
@@ -135,7 +153,7 @@ public class WelfareAnalyzer {
 				
 			}
 				
-			double benefitDifference = benefits - benefitsInitialIteration;
+			double benefitDifference = benefits[i] - benefitsInitialIteration;
 			
 			if (benefitDifference != 0.) {
 				// allocate the difference in user benefits to the transit routes (PPlanIDs)
@@ -166,6 +184,40 @@ public class WelfareAnalyzer {
 			}
 		}		
 	}
+	
+	/**
+	 * @param person
+	 * @return The PPlans used by the selected plan of the person or null if there is none
+	 */
+	private static Set<Id<PPlan>> getUsedPPlanIds(Person person) {
+		Set<Id<PPlan>> usedPPlanIds = null;
+		
+		// Get the PPlan which is used by this person.
+		for (PlanElement pE : person.getSelectedPlan().getPlanElements()){
+			
+			if (pE instanceof Leg) {
+				
+				Leg leg = (Leg) pE;
+				
+				if (leg.getMode().equals(TransportMode.pt)) {
+
+					ExperimentalTransitRoute route = (ExperimentalTransitRoute) leg.getRoute();
+					String planIdString = route.getRouteId().toString();//.replace(route.getLineId().toString() + "-", "");
+					Id<PPlan> planId = Id.create(planIdString, PPlan.class);
+
+					if(usedPPlanIds == null){
+						usedPPlanIds = new HashSet<Id<PPlan>>();
+					}
+					
+					usedPPlanIds.add(planId);
+					// yyyy this will in the end give the welfare benefit to the pplan that was _planned_ to be used. 
+					// Not necessarily to the one that _was_ actually used. kai, jan'17
+
+				}
+			}
+		}
+		return usedPPlanIds;
+	}
 
 	private void setCurrentPPlanIds(Scenario scenario) {
 				
@@ -201,8 +253,6 @@ public class WelfareAnalyzer {
 		// agent stats (agent id, benefits of this iteration, pplan ids the agent used in this iteration)
 		BufferedWriter personStatsWriter = IOUtils.getBufferedWriter(event.getServices().getControlerIO().getIterationPath(event.getIteration()) + "/welfarePersonStats." + Integer.toString(event.getIteration()) + ".txt");
 		
-		Map<Id<PPlan>,Set<Id<Person>>> usedPlans = new HashMap<>();
-		
 		try {
 			
 			personStatsWriter.write("personId" + delimiter + "benefits" + delimiter + "used_pplans");
@@ -218,15 +268,6 @@ public class WelfareAnalyzer {
 				Set<Id<PPlan>> usedPPlanIds = this.personId2usedPPlanIds.get(benefitEntry.getKey());
 				if(usedPPlanIds != null){
 					for(Id<PPlan> planId : usedPPlanIds){
-						
-						if(!usedPlans.containsKey(planId)){
-							
-							usedPlans.put(planId, new HashSet<Id<Person>>());
-							
-						}
-						
-						usedPlans.get(planId).add(benefitEntry.getKey());
-						
 						stB.append(planId + ",");
 					}
 				}
@@ -260,19 +301,11 @@ public class WelfareAnalyzer {
 				
 				StringBuffer stB = new StringBuffer();
 				
-				for(Entry<Id<Person>,Set<Id<PPlan>>> usedPPlanEntry : this.personId2usedPPlanIds.entrySet()){
-					
-					for(Id<PPlan> planId : usedPPlanEntry.getValue()){
-						
-						if(planId.toString().equals(id)){
-							
-							stB.append(usedPPlanEntry.getKey().toString() + ",");
-							break;
-							
-						}
-						
+				Set<Id<Person>> userIds = this.planId2userIds.get(pplanId);
+				if (userIds != null) {
+					for (Id<Person> userId : userIds) {
+						stB.append(userId.toString() + ",");
 					}
-					
 				}
 				
 				planStatsWriter.write(id + delimiter + value + delimiter + stB.toString());
@@ -289,5 +322,41 @@ public class WelfareAnalyzer {
 		}
 				
 	}
+	
+	/**
+	 * Reads the score of the selected plan of each person, or of the first plan if none is marked as selected, from a population file.
+	 */
+	private static final class InitialScoresReader extends MatsimXmlParser {
+		
+		private final Map<Id<Person>, Double> personId2score;
+		private Id<Person> personId = null;
+		private boolean selectedPlanFound = false;
+		
+		private InitialScoresReader(Map<Id<Person>, Double> personId2score) {
+			this.personId2score = personId2score;
+			this.setValidating(false);
+		}
 
-}
\ No newline at end of file
+		@Override
+		public void startTag(String name, Attributes atts, Stack<String> context) {
+			if (name.equals("person")) {
+				this.personId = Id.create(atts.getValue("id"), Person.class);
+				this.selectedPlanFound = false;
+			} else if (name.equals("plan") && this.personId != null) {
+				boolean selected = "yes".equals(atts.getValue("selected"));
+				if (selected || (!this.selectedPlanFound && !this.personId2score.containsKey(this.personId))) {
+					String score = atts.getValue("score");
+					this.personId2score.put(this.personId, score == null ? null : Double.parseDouble(score));
+				}
+				this.selectedPlanFound |= selected;
+			}
+		}
+
+		@Override
+		public void endTag(String name, String content, Stack<String> context) {
+			if (name.equals("person")) {
+				this.personId = null;
+			}
+		}
+	}
+}
@@ -23,7 +23,6 @@
 package org.matsim.contrib.minibus.operator;
 
 import java.util.List;
-import java.util.Map;
 
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
@@ -31,10 +30,9 @@ import org.matsim.contrib.minibus.PConstants.OperatorState;
 import org.matsim.contrib.minibus.replanning.PStrategy;
 import org.matsim.contrib.minibus.replanning.PStrategyManager;
 import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
-import org.matsim.contrib.minibus.scoring.PScoreContainer;
+import org.matsim.contrib.minibus.scoring.PScorePlansHandler;
 import org.matsim.pt.transitSchedule.api.TransitLine;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
-import org.matsim.vehicles.Vehicle;
 
 /**
  * @author ikaddoura, dhosse
@@ -74,14 +72,19 @@ public final class WelfareCarefulMultiPlanOperator extends AbstractOperator {
 	}
 
 	@Override
-	public void score(Map<Id<Vehicle>, PScoreContainer> driverId2ScoreMap) {
+	public boolean dropNewPlan(PPlan plan) {
+		return delegate.dropNewPlan(plan);
+	}
+
+	@Override
+	public void score(PScorePlansHandler scorePlansHandler) {
 				
 		delegate.scoreLastIteration = delegate.score;
 		delegate.score = 0;
 		
 		// score all plans
 		for (PPlan plan : delegate.getAllPlans()) {
-			scorePlan(driverId2ScoreMap, plan);
+			scorePlan(scorePlansHandler, plan);
 			double welfareCorrection = getWelfareCorrection(plan);
 			plan.setScore(plan.getScore() + welfareCorrection);
 			
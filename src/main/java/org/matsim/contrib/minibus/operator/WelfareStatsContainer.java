@@ -2,14 +2,13 @@ package org.matsim.contrib.minibus.operator;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.LinkedList;
 
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.contrib.minibus.PConfigGroup;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
 import org.matsim.core.controler.events.ScoringEvent;
 import org.matsim.core.utils.io.IOUtils;
 
@@ -25,10 +24,10 @@ public class WelfareStatsContainer {
 	private final WelfareAnalyzer welfareAnalyzer;
 	
 	private boolean firstTime = true;
-	private Collection<PVehicleSettings> pVehicleSettings;
+	private final PVehicleTypeRegistry pVehicleTypes;
 	
 	public WelfareStatsContainer(PConfigGroup pConfig, WelfareAnalyzer welfareAnalyzer){
-		this.pVehicleSettings = pConfig.getPVehicleSettings();
+		this.pVehicleTypes = pConfig.getPVehicleTypeRegistry();
 		this.welfareMaximization = pConfig.getWelfareMaximization();
 		//this.earningsPerBoardingPassenger = pConfig.getEarningsPerBoardingPassenger();
 		this.welfareAnalyzer = welfareAnalyzer;
@@ -79,13 +78,7 @@ public class WelfareStatsContainer {
 				
 				for(PPlan pplan : operator.getAllPlans()){
 					
-					double earningsPerBoardingPassenger = 0.0;
-					
-					for (PVehicleSettings pVS : this.pVehicleSettings) {
-			            if (pplan.getPVehicleType().equals(pVS.getPVehicleName())) {
-			            	earningsPerBoardingPassenger = pVS.getEarningsPerBoardingPassenger();
-			            }
-			        }
+					double earningsPerBoardingPassenger = this.pVehicleTypes.getEarningsPerBoardingPassenger(this.pVehicleTypes.getIndex(pplan.getPVehicleType()));
 					earnings += pplan.getTripsServed() * earningsPerBoardingPassenger;
 					score += pplan.getScore();
 					
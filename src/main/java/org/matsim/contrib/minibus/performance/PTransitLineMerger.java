@@ -19,7 +19,9 @@
 
 package org.matsim.contrib.minibus.performance;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
@@ -70,8 +72,8 @@ public class PTransitLineMerger {
 	/**
 	 * Merges all routes of a transit line that have the same sequence of stops. Does not respect the time profile of the routes.
 	 * 
-	 * @param oldLine The transit line containing the routes to be merged.
-	 * @return A copy of the transit line with its transit routes merged.
+	 * @param oldLine The transit line containing the routes to be merged. Is not modified.
+	 * @return A copy of the transit line with its transit routes merged. Routes without any other route to merge with are shared with the old line.
 	 */
 	public static TransitLine mergeTransitLine(TransitLine oldLine) {
 		return mergeTransitLine(new TransitScheduleFactoryImpl(), oldLine);
@@ -80,18 +82,38 @@ public class PTransitLineMerger {
 	private static TransitLine mergeTransitLine(TransitScheduleFactory transitScheduleFactory, TransitLine oldLine) {
 		TransitLine newLine = transitScheduleFactory.createTransitLine(oldLine.getId());
 		
-		HashMap<String, TransitRoute> routeHash2TransitRoute = new HashMap<String, TransitRoute>();
+		// group the routes by their sequence of stops, keeping the order of their first occurrence
+		LinkedHashMap<String, List<TransitRoute>> routeHash2TransitRoutes = new LinkedHashMap<String, List<TransitRoute>>();
 		
 		for (TransitRoute transitRoute : oldLine.getRoutes().values()) {
 			String routeHash = getHashForRoute(transitRoute);
+			if (!routeHash2TransitRoutes.containsKey(routeHash)) {
+				routeHash2TransitRoutes.put(routeHash, new ArrayList<TransitRoute>());
+			}
+			routeHash2TransitRoutes.get(routeHash).add(transitRoute);
+		}
+		
+		for (List<TransitRoute> transitRoutes : routeHash2TransitRoutes.values()) {
+			TransitRoute firstRoute = transitRoutes.get(0);
+			if (transitRoutes.size() == 1) {
+				// nothing to merge - reuse the route
+				newLine.addRoute(firstRoute);
+				continue;
+			}
 			
-			if (routeHash2TransitRoute.keySet().contains(routeHash)) {
-				// route with same stop sequence exists - merge departures and drop the route
-				// Note that this ignores the exact time profile of this route.
-				// No severe impact for minibuses since the time profile varies by seconds only
-				
-				TransitRoute mergeDestination = routeHash2TransitRoute.get(routeHash);
-				
+			// route with same stop sequence exists - merge departures and drop the route
+			// Note that this ignores the exact time profile of this route.
+			// No severe impact for minibuses since the time profile varies by seconds only
+			// The departures are added to a copy, the routes of the old line may still be read elsewhere, e.g. by the schedule output
+			TransitRoute mergeDestination = transitScheduleFactory.createTransitRoute(firstRoute.getId(), firstRoute.getRoute(), firstRoute.getStops(), firstRoute.getTransportMode());
+			mergeDestination.setDescription(firstRoute.getDescription());
+			for (Departure oldDeparture : firstRoute.getDepartures().values()) {
+				Departure newDeparture = transitScheduleFactory.createDeparture(oldDeparture.getId(), oldDeparture.getDepartureTime());
+				newDeparture.setVehicleId(oldDeparture.getVehicleId());
+				mergeDestination.addDeparture(newDeparture);
+			}
+			
+			for (TransitRoute transitRoute : transitRoutes.subList(1, transitRoutes.size())) {
 				for (Departure oldDeparture : transitRoute.getDepartures().values()) {
 					// increase departure id
 					Id<Departure> newDepartureId = Id.create("new_" + mergeDestination.getDepartures().values().size(), Departure.class);
@@ -99,14 +121,8 @@ public class PTransitLineMerger {
 					newDeparture.setVehicleId(oldDeparture.getVehicleId());
 					mergeDestination.addDeparture(newDeparture);
 				}
-				
-				// drop the route by not adding it to the new transit line
-				
-			} else {
-				// new route - add it
-				routeHash2TransitRoute.put(routeHash, transitRoute);
-				newLine.addRoute(transitRoute);
 			}
+			newLine.addRoute(mergeDestination);
 		}
 		
 		return newLine;
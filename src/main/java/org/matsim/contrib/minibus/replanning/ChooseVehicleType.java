@@ -8,11 +8,11 @@ import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.contrib.minibus.PConstants;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
 import org.matsim.contrib.minibus.stats.operatorLogger.LogElement;
-import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
 import org.matsim.core.utils.io.IOUtils;
 import org.matsim.core.utils.io.UncheckedIOException;
 import org.matsim.pt.transitSchedule.api.TransitLine;
@@ -93,20 +93,21 @@ public final class ChooseVehicleType extends AbstractPStrategyModule {
 			// this is for the decision between old and new vehicle type
 			double nVehiclesOld = oldPlan.getNVehicles();
 			
-			for (PVehicleSettings pVS : this.pConfig.getPVehicleSettings()) {
-	            if (pVehicleTypeOld.equals(pVS.getPVehicleName())) {
-	            	costsOld = pVS.getCostPerKilometer() * oldPlan.getTotalKilometersDrivenPerVehicle() + 
-	            			pVS.getCostPerHour() * oldPlan.getTotalHoursDrivenPerVehicle();
-	            	earningsOld = pVS.getEarningsPerKilometerAndPassenger() * oldPlan.getTotalKilometersDrivenPerVehicle();
-	            	capacityOld = pVS.getCapacityPerVehicle();
-	            }
-	            if (pVehicleTypeNew.equals(pVS.getPVehicleName())) {
-	            	costsNew = pVS.getCostPerKilometer() * oldPlan.getTotalKilometersDrivenPerVehicle() + 
-	            			pVS.getCostPerHour() * oldPlan.getTotalHoursDrivenPerVehicle();
-	            	earningsNew = pVS.getEarningsPerKilometerAndPassenger() * oldPlan.getTotalKilometersDrivenPerVehicle();
-	            	capacityNew = pVS.getCapacityPerVehicle();
-	            }
-	        }
+			PVehicleTypeRegistry pVehicleTypes = this.pConfig.getPVehicleTypeRegistry();
+			int typeIndexOld = pVehicleTypes.getIndex(pVehicleTypeOld);
+			if (typeIndexOld != PVehicleTypeRegistry.UNKNOWN) {
+				costsOld = pVehicleTypes.getCostPerKilometer(typeIndexOld) * oldPlan.getTotalKilometersDrivenPerVehicle() + 
+						pVehicleTypes.getCostPerHour(typeIndexOld) * oldPlan.getTotalHoursDrivenPerVehicle();
+				earningsOld = pVehicleTypes.getEarningsPerKilometerAndPassenger(typeIndexOld) * oldPlan.getTotalKilometersDrivenPerVehicle();
+				capacityOld = pVehicleTypes.getCapacityPerVehicle(typeIndexOld);
+			}
+			int typeIndexNew = pVehicleTypes.getIndex(pVehicleTypeNew);
+			if (typeIndexNew != PVehicleTypeRegistry.UNKNOWN) {
+				costsNew = pVehicleTypes.getCostPerKilometer(typeIndexNew) * oldPlan.getTotalKilometersDrivenPerVehicle() + 
+						pVehicleTypes.getCostPerHour(typeIndexNew) * oldPlan.getTotalHoursDrivenPerVehicle();
+				earningsNew = pVehicleTypes.getEarningsPerKilometerAndPassenger(typeIndexNew) * oldPlan.getTotalKilometersDrivenPerVehicle();
+				capacityNew = pVehicleTypes.getCapacityPerVehicle(typeIndexNew);
+			}
 			
 			double totalCostsOld = costsOld * nVehiclesOld;
 			double totalCostsNew = 0.0;
@@ -214,7 +215,7 @@ public final class ChooseVehicleType extends AbstractPStrategyModule {
 					oldPlan.setNVehicles(0);
 					oldPlan.setScore(0.0);
 					
-					newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+					newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 					return newPlan;
 				}
 			}
@@ -226,7 +227,7 @@ public final class ChooseVehicleType extends AbstractPStrategyModule {
 					oldPlan.setNVehicles(0);
 					oldPlan.setScore(0.0);
 					
-					newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+					newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 					return newPlan;
 				}
 			}
@@ -248,7 +249,7 @@ public final class ChooseVehicleType extends AbstractPStrategyModule {
 		
 		//log.info("Probability to change: " + probabilityToChange);
 			
-		double rndTreshold = MatsimRandom.getRandom().nextDouble();
+		double rndTreshold = PRandom.getRandom().nextDouble();
 		//log.info("Treshold: " + rndTreshold);
 		if(probabilityToChange > rndTreshold)	{
 			writeLine(deltaOccupancy, isUpgrade);
@@ -258,12 +259,10 @@ public final class ChooseVehicleType extends AbstractPStrategyModule {
 		return false;
 	}	
 	
-	public void writeLine(final double deltaOccupancy, final boolean wasUpgrade) {
-		
-		this.outputDir = this.outputDir + PConstants.statsOutputFolder;
+	public synchronized void writeLine(final double deltaOccupancy, final boolean wasUpgrade) {
 		
 		if(this.writer == null){
-			this.writer = IOUtils.getBufferedWriter(this.outputDir + "pChooseVehicleTypeLogger.txt");
+			this.writer = IOUtils.getBufferedWriter(this.outputDir + PConstants.statsOutputFolder + "pChooseVehicleTypeLogger.txt");
 			try {
 				this.writer.write("DeltaOccupancy; IsUpgrade");
 			} catch (IOException e) {
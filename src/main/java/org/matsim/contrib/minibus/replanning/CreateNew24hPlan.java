@@ -74,7 +74,7 @@ public final class CreateNew24hPlan extends AbstractPStrategyModule {
 			String pVehicleType = operator.getRouteProvider().getRandomPVehicle();
 			newPlan.setPVehicleType(pVehicleType);
 			
-			newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+			newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		} while (operator.getFranchise().planRejected(newPlan));		
 
 		return newPlan;
@@ -32,7 +32,6 @@ import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
 import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
 import org.matsim.core.utils.geometry.CoordUtils;
-import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitRouteStop;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
@@ -106,7 +105,7 @@ public final class EndRouteExtension extends AbstractPStrategyModule {
 		newPlan.setStopsToBeServed(newStopsToBeServed);
 		newPlan.setHeadway(oldPlan.getHeadway());
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -155,11 +154,9 @@ public final class EndRouteExtension extends AbstractPStrategyModule {
 		List<TransitStopFacility> choiceSet = new LinkedList<>();
 		
 		// find choice-set
-		for (TransitStopFacility stop : pRouteProvider.getAllPStops()) {
+		for (TransitStopFacility stop : pRouteProvider.getPStopIndex().getStopsWithin(buffer)) {
 			if (!stopsUsed.contains(stop.getId())) {
-				if (buffer.contains(MGC.coord2Point(stop.getCoord()))) {
-					choiceSet.add(stop);
-				}
+				choiceSet.add(stop);
 			}
 		}
 		
@@ -176,16 +173,8 @@ public final class EndRouteExtension extends AbstractPStrategyModule {
 			bufferParameters.setEndCapStyle(BufferParameters.CAP_ROUND);
 		}
 		
-		Geometry union = null;
-		
-		for (Geometry lineString : lineStrings) {
-			Geometry buffer = BufferOp.bufferOp(lineString, bufferSize, bufferParameters);
-			if (union == null) {
-				union = buffer;
-			} else {
-				union = union.union(buffer);
-			}
-		}
+		// one buffer for all line strings instead of unioning the buffers of each
+		Geometry union = BufferOp.bufferOp(new GeometryFactory().buildGeometry(lineStrings), bufferSize, bufferParameters);
 		
 		return union;
 	}
@@ -32,14 +32,11 @@ import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
+import org.matsim.contrib.minibus.routeProvider.PNetworkRouter;
 import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
-import org.matsim.core.router.Dijkstra;
-import org.matsim.core.router.DijkstraFactory;
-import org.matsim.core.router.costcalculators.FreespeedTravelTimeAndDisutility;
-import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.contrib.minibus.schedule.PStopTwins;
 import org.matsim.core.router.util.LeastCostPathCalculator.Path;
 import org.matsim.core.utils.geometry.CoordUtils;
-import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitRouteStop;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
@@ -65,10 +62,11 @@ public final class EndRouteExtensionBF extends AbstractPStrategyModule {
 	private final double ratio;
 	private final double bufferSizeMin;
 	private Network network;
-	private LeastCostPathCalculator routingAlgo;
+	private final PNetworkRouter router;
+	private final PStopTwins stopTwins;
 	private TransitSchedule pStops;
 	
-	public EndRouteExtensionBF(ArrayList<String> parameter, Network pNetwork, TransitSchedule pStopsOnly) {
+	public EndRouteExtensionBF(ArrayList<String> parameter, Network pNetwork, PNetworkRouter router, PStopTwins stopTwins, TransitSchedule pStopsOnly) {
 		super();
 		if(parameter.size() != 3){
 			log.error("Parameter 1: Buffer size in meter");
@@ -81,8 +79,8 @@ public final class EndRouteExtensionBF extends AbstractPStrategyModule {
 		this.network = pNetwork;
 		this.pStops = pStopsOnly;
 		
-		FreespeedTravelTimeAndDisutility tC = new FreespeedTravelTimeAndDisutility(-6.0, 0.0, 0.0); // Here, it may make sense to use the variable cost parameters given in the config. Ihab/Daniel may'14
-		this.routingAlgo = new DijkstraFactory().createPathCalculator(this.network, tC, tC);
+		this.router = router;
+		this.stopTwins = stopTwins;
 	}
 
 	@Override
@@ -124,7 +122,7 @@ public final class EndRouteExtensionBF extends AbstractPStrategyModule {
 		newPlan.setStopsToBeServed(newStopsToBeServed);
 		newPlan.setHeadway(oldPlan.getHeadway());
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -135,49 +133,34 @@ public final class EndRouteExtensionBF extends AbstractPStrategyModule {
 		
 		if (CoordUtils.calcEuclideanDistance(baseStop.getCoord(), newStop.getCoord()) < CoordUtils.calcEuclideanDistance(remoteStop.getCoord(), newStop.getCoord())) {
 			double distanceBack = getShortestPath(newStop, baseStop);
-			double distanceForth = getShortestPath(this.pStops.getFacilities().get(reverseStopId(newStop.getId())), baseStop);
+			double distanceForth = getShortestPath(this.stopTwins.getTwin(newStop), baseStop);
 
 			if(distanceBack > distanceForth)
 				newStopsToBeServed.add(0, newStop);
 			else	
-				newStopsToBeServed.add(0, this.pStops.getFacilities().get(reverseStopId(newStop.getId())));
+				newStopsToBeServed.add(0, this.stopTwins.getTwin(newStop));
 		} 
 		else {
 			double distanceBack = getShortestPath(remoteStop, newStop);
-			double distanceForth = getShortestPath(remoteStop, this.pStops.getFacilities().get(reverseStopId(newStop.getId())));
+			double distanceForth = getShortestPath(remoteStop, this.stopTwins.getTwin(newStop));
 
 			if(distanceBack < distanceForth)	
 				newStopsToBeServed.add(newStopsToBeServed.indexOf(remoteStop) + 1, newStop);
 			else	
-				newStopsToBeServed.add(newStopsToBeServed.indexOf(remoteStop) + 1, this.pStops.getFacilities().get(reverseStopId(newStop.getId())));
+				newStopsToBeServed.add(newStopsToBeServed.indexOf(remoteStop) + 1, this.stopTwins.getTwin(newStop));
 		}
 		
 		return newStopsToBeServed;
 	}
 	
 	private double getShortestPath(TransitStopFacility fromStop, TransitStopFacility toStop)	{
-		Path path = this.routingAlgo.calcLeastCostPath(this.network.getLinks().get(fromStop.getLinkId()).getFromNode(), this.network.getLinks().get(toStop.getLinkId()).getFromNode(), 0.0, null, null);
+		Path path = this.router.calcLeastCostPath(this.network.getLinks().get(fromStop.getLinkId()).getFromNode(), this.network.getLinks().get(toStop.getLinkId()).getFromNode(), 0.0, null, null);
 		double distance = 0.0;
 		for (Link link : path.links) {
 			distance += link.getLength();
 		}
 		return distance;
 	}
-	
-	private Id<TransitStopFacility> reverseStopId(Id<TransitStopFacility> stopId)	{
-		String[] stopIdSplit = stopId.toString().split("_");
-		String reversedStop = "";
-		for(int i = 0; i < stopIdSplit.length - 1; i++)	{
-			reversedStop += stopIdSplit[i] + "_";
-		}
-		if(stopIdSplit[stopIdSplit.length - 1].equals("A"))
-			reversedStop += "B";
-		else
-			reversedStop += "A";
-		Id<TransitStopFacility> reversedStopId = Id.create(reversedStop, TransitStopFacility.class);
-		
-		return reversedStopId;
-	}
 
 	private Set<Id<TransitStopFacility>> getStopsUsed(Collection<TransitRoute> routes) {
 		Set<Id<TransitStopFacility>> stopsUsed = new TreeSet<>();
@@ -193,11 +176,10 @@ public final class EndRouteExtensionBF extends AbstractPStrategyModule {
 		List<TransitStopFacility> choiceSet = new LinkedList<>();
 		
 		// find choice-set
-		for (TransitStopFacility stop : pRouteProvider.getAllPStops()) {
-			if (!stopsUsed.contains(stop.getId()) && !stopsUsed.contains(reverseStopId(stop.getId()))) {
-				if (buffer.contains(MGC.coord2Point(stop.getCoord()))) {
-					choiceSet.add(stop);
-				}
+		for (TransitStopFacility stop : pRouteProvider.getPStopIndex().getStopsWithin(buffer)) {
+			Id<TransitStopFacility> twinId = this.stopTwins.getTwinId(stop.getId());
+			if (!stopsUsed.contains(stop.getId()) && (twinId == null || !stopsUsed.contains(twinId))) {
+				choiceSet.add(stop);
 			}
 		}
 		
@@ -214,16 +196,8 @@ public final class EndRouteExtensionBF extends AbstractPStrategyModule {
 			bufferParameters.setEndCapStyle(BufferParameters.CAP_ROUND);
 		}
 		
-		Geometry union = null;
-		
-		for (Geometry lineString : lineStrings) {
-			Geometry buffer = BufferOp.bufferOp(lineString, bufferSize, bufferParameters);
-			if (union == null) {
-				union = buffer;
-			} else {
-				union = union.union(buffer);
-			}
-		}
+		// one buffer for all line strings instead of unioning the buffers of each
+		Geometry union = BufferOp.bufferOp(new GeometryFactory().buildGeometry(lineStrings), bufferSize, bufferParameters);
 		
 		return union;
 	}
@@ -23,7 +23,7 @@ import org.apache.log4j.Logger;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
 import org.matsim.contrib.minibus.operator.TimeProvider;
-import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
 
 import java.util.ArrayList;
 
@@ -68,9 +68,9 @@ public final class MaxRandomEndTimeAllocator extends AbstractPStrategyModule {
 		// get a valid new end time
 		double timeMutation;
 		if (searchInBothDirections) {
-			timeMutation = (MatsimRandom.getRandom().nextDouble() - 0.5) * 2.0 * this.mutationRange;
+			timeMutation = (PRandom.getRandom().nextDouble() - 0.5) * 2.0 * this.mutationRange;
 		} else {
-			timeMutation = MatsimRandom.getRandom().nextDouble() * this.mutationRange;
+			timeMutation = PRandom.getRandom().nextDouble() * this.mutationRange;
 		}
 		
 		double newEndTime = Math.min(24 * 3600.0, operator.getBestPlan().getEndTime() + timeMutation);
@@ -90,7 +90,7 @@ public final class MaxRandomEndTimeAllocator extends AbstractPStrategyModule {
 			return null;
 		}
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -23,7 +23,7 @@ import org.apache.log4j.Logger;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
 import org.matsim.contrib.minibus.operator.TimeProvider;
-import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
 
 import java.util.ArrayList;
 
@@ -67,9 +67,9 @@ public final class MaxRandomStartTimeAllocator extends AbstractPStrategyModule {
 		// get a valid new start time
 		double timeMutation;
 		if (searchInBothDirections) {
-			timeMutation = (MatsimRandom.getRandom().nextDouble() - 0.5) * 2.0 * this.mutationRange;
+			timeMutation = (PRandom.getRandom().nextDouble() - 0.5) * 2.0 * this.mutationRange;
 		} else {
-			timeMutation = MatsimRandom.getRandom().nextDouble() * this.mutationRange;
+			timeMutation = PRandom.getRandom().nextDouble() * this.mutationRange;
 		}
 		
 		double newStartTime = Math.max(0.0, operator.getBestPlan().getStartTime() - timeMutation);
@@ -90,7 +90,7 @@ public final class MaxRandomStartTimeAllocator extends AbstractPStrategyModule {
 			return null;
 		}
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -25,14 +25,26 @@ import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.contrib.minibus.PConfigGroup.PStrategySettings;
 import org.matsim.contrib.minibus.fare.StageContainerCreator;
 import org.matsim.contrib.minibus.fare.TicketMachineI;
+import org.matsim.contrib.minibus.operator.Operator;
+import org.matsim.contrib.minibus.operator.PPlan;
 import org.matsim.contrib.minibus.operator.TimeProvider;
-import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
+import org.matsim.contrib.minibus.stats.PPhaseStats;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
  * Loads strategies from config and chooses strategies according to their weights.
+ * <p>
+ * With adaptive strategy weights, the outcome of each strategy run is tracked: no plan, plan rejected or the change of the score per vehicle compared to the plan it was derived from.
+ * After each scoring, the weights are shifted towards the strategies with the highest score improvement per CPU second, bounded by the minimal and maximal weight of each strategy.
  * 
  * @author aneumann
  *
@@ -46,10 +58,26 @@ public final class PStrategyManager {
 	private final ArrayList<PStrategy> strategies = new ArrayList<>();
 	private final ArrayList<Double> weights = new ArrayList<>();
 	private final ArrayList<Integer> disableInIteration = new ArrayList<>();
+	private final ArrayList<Double> configuredWeights = new ArrayList<>();
+	private final ArrayList<Double> minWeights = new ArrayList<>();
+	private final ArrayList<Double> maxWeights = new ArrayList<>();
+	private final ArrayList<StrategyOutcome> outcomes = new ArrayList<>();
+	// plans created, but not scored yet -> strategy index and score per vehicle of the parent plan
+	private final Map<PPlan, double[]> plansToBeScored = new IdentityHashMap<>();
+	private boolean useAdaptiveWeights = false;
+	private double learningRate;
 	private double totalWeights = 0.0;
 	private boolean allStrategiesAreDisabled = false;
+	private final PPhaseStats phaseStats;
+
+	public PStrategyManager(PPhaseStats phaseStats) {
+		this.phaseStats = phaseStats;
+	}
 
 	public void init(PConfigGroup pConfig, StageContainerCreator stageContainerCreator, TicketMachineI ticketMachine, TimeProvider timeProvider, String outputdir, TransitSchedule pStopsOnly) {
+		this.useAdaptiveWeights = pConfig.getUseAdaptiveStrategyWeights();
+		this.learningRate = pConfig.getAdaptiveStrategyWeightsLearningRate();
+		
 		for (PStrategySettings settings : pConfig.getStrategySettings()) {
 			String classname = settings.getModuleName();
 			double rate = settings.getProbability();
@@ -58,10 +86,13 @@ public final class PStrategyManager {
 				continue;
 			}
 			PStrategy strategy = loadStrategy(classname, settings, stageContainerCreator, ticketMachine, timeProvider, pConfig, pStopsOnly, outputdir);
-			this.addStrategy(strategy, rate, settings.getDisableInIteration());
+			this.addStrategy(strategy, rate, settings.getDisableInIteration(), settings.getMinWeight(), settings.getMaxWeight());
 		}
 		
 		log.info("enabled with " + this.strategies.size()  + " strategies");
+		if (this.useAdaptiveWeights) {
+			log.info("The weights of the strategies will be adapted after each scoring.");
+		}
 	}
 
 	private PStrategy loadStrategy(final String name, final PStrategySettings settings, StageContainerCreator stageContainerCreator, TicketMachineI ticketMachine, TimeProvider timeProvider, PConfigGroup pConfig, TransitSchedule pStopsOnly, String outputdir) {
@@ -74,11 +105,11 @@ public final class PStrategyManager {
 		} else if(name.equals(SidewaysRouteExtension.STRATEGY_NAME)){
 			strategy = new SidewaysRouteExtension(settings.getParametersAsArrayList());
 		} else if(name.equals(SidewaysRouteExtensionBF.STRATEGY_NAME)){
-			strategy = new SidewaysRouteExtensionBF(settings.getParametersAsArrayList(), pConfig.getPNetwork(), pStopsOnly);
+			strategy = new SidewaysRouteExtensionBF(settings.getParametersAsArrayList(), pConfig.getPNetwork(), pConfig.getPNetworkRouter(), pConfig.getPStopTwins(), pStopsOnly);
 		} else if(name.equals(EndRouteExtension.STRATEGY_NAME)){
 			strategy = new EndRouteExtension(settings.getParametersAsArrayList());
 		} else if(name.equals(EndRouteExtensionBF.STRATEGY_NAME)){
-			strategy = new EndRouteExtensionBF(settings.getParametersAsArrayList(), pConfig.getPNetwork(), pStopsOnly);
+			strategy = new EndRouteExtensionBF(settings.getParametersAsArrayList(), pConfig.getPNetwork(), pConfig.getPNetworkRouter(), pConfig.getPStopTwins(), pStopsOnly);
 		} else if(name.equals(ChooseVehicleType.STRATEGY_NAME)){
 			ChooseVehicleType strat = new ChooseVehicleType(settings.getParametersAsArrayList());
 			strat.setPConfig(pConfig);
@@ -95,7 +126,7 @@ public final class PStrategyManager {
 			stageContainerCreator.addStageContainerHandler(strat);
 			strategy = strat;
 		} else if (name.equals(ReduceStopsToBeServedRFareBF.STRATEGY_NAME)) {
-			ReduceStopsToBeServedRFareBF strat = new ReduceStopsToBeServedRFareBF(settings.getParametersAsArrayList());
+			ReduceStopsToBeServedRFareBF strat = new ReduceStopsToBeServedRFareBF(settings.getParametersAsArrayList(), pConfig.getPStopTwins());
 			strat.setTicketMachine(ticketMachine);
 			stageContainerCreator.addStageContainerHandler(strat);
 			strategy = strat;
@@ -116,10 +147,14 @@ public final class PStrategyManager {
 		return strategy;
 	}
 
-	private void addStrategy(final PStrategy strategy, final double weight, int disableInIteration) {
+	private void addStrategy(final PStrategy strategy, final double weight, int disableInIteration, double minWeight, double maxWeight) {
 		this.strategies.add(strategy);
 		this.weights.add(weight);
 		this.disableInIteration.add(disableInIteration);
+		this.configuredWeights.add(weight);
+		this.minWeights.add(minWeight);
+		this.maxWeights.add(maxWeight);
+		this.outcomes.add(new StrategyOutcome());
 		this.totalWeights += weight;
 	}
 
@@ -146,7 +181,7 @@ public final class PStrategyManager {
 	 */
 	public PStrategy chooseStrategy() {
 		if (!allStrategiesAreDisabled) {
-			double rnd = MatsimRandom.getRandom().nextDouble() * this.totalWeights;
+			double rnd = PRandom.getRandom().nextDouble() * this.totalWeights;
 			double accumulatedWeight = 0.0;
 			for (int i = 0; i < this.weights.size(); i++) {
 				accumulatedWeight += this.weights.get(i);
@@ -161,6 +196,215 @@ public final class PStrategyManager {
 		return null;
 	}
 
+	/**
+	 * Runs the strategy for the operator. The time needed and whether a plan was returned is tracked per strategy.
+	 * 
+	 * @param strategy
+	 * @param operator
+	 * @return The new plan or null if the strategy failed to provide one.
+	 */
+	public PPlan runStrategy(PStrategy strategy, Operator operator) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("replanning." + strategy.getStrategyName());
+		long cpuTimeAtStart = this.useAdaptiveWeights ? PPhaseStats.getCpuTimeOfCurrentThread() : 0;
+		PPlan newPlan = strategy.run(operator);
+		phase.end();
+		if (newPlan == null) {
+			this.phaseStats.increment("plansNull." + strategy.getStrategyName());
+		} else {
+			this.phaseStats.increment("plansCreated." + strategy.getStrategyName());
+		}
+		
+		if (this.useAdaptiveWeights) {
+			long cpuTime = PPhaseStats.getCpuTimeOfCurrentThread() - cpuTimeAtStart;
+			// the strategy derived the plan from the best plan, which is not drawn again at this point
+			double parentScorePerVehicle = newPlan == null ? 0.0 : operator.getBestPlan().getPlannedScorePerVehicle();
+			this.addRun(this.strategies.indexOf(strategy), cpuTime, newPlan, parentScorePerVehicle);
+		}
+		return newPlan;
+	}
+
+	/**
+	 * Tracks a plan of the strategy being rejected, e.g. by the franchise system.
+	 * 
+	 * @param strategy
+	 * @param rejectedBy
+	 */
+	public void planRejected(PStrategy strategy, String rejectedBy) {
+		this.phaseStats.increment("plansRejectedBy" + rejectedBy + "." + strategy.getStrategyName());
+		if (this.useAdaptiveWeights) {
+			this.addRejection(this.strategies.indexOf(strategy));
+		}
+	}
+	
+	private synchronized void addRun(int strategyIndex, long cpuTime, PPlan newPlan, double parentScorePerVehicle) {
+		StrategyOutcome outcome = this.outcomes.get(strategyIndex);
+		outcome.runs++;
+		outcome.cpuTime += cpuTime;
+		if (newPlan == null) {
+			outcome.plansNull++;
+		} else {
+			this.plansToBeScored.put(newPlan, new double[]{strategyIndex, parentScorePerVehicle});
+		}
+	}
+	
+	private synchronized void addRejection(int strategyIndex) {
+		this.outcomes.get(strategyIndex).plansRejected++;
+	}
+	
+	/**
+	 * Compares the scores of the plans created since the last call with the ones of their parent plans. Plans no longer kept by their operator count as no improvement.
+	 * Then shifts the weights towards the strategies with the highest improvement per CPU second and logs the outcome of each strategy.
+	 * Does nothing, unless adaptive strategy weights are switched on.
+	 * 
+	 * @param operators all operators after the scoring
+	 * @param iteration
+	 */
+	public synchronized void adaptWeights(Collection<Operator> operators, int iteration) {
+		if (!this.useAdaptiveWeights) {
+			return;
+		}
+		
+		for (Operator operator : operators) {
+			for (PPlan plan : operator.getAllPlans()) {
+				double[] strategyAndParentScore = this.plansToBeScored.get(plan);
+				if (strategyAndParentScore != null) {
+					StrategyOutcome outcome = this.outcomes.get((int) strategyAndParentScore[0]);
+					outcome.plansScored++;
+					if (plan.getScore() < 0.0) {
+						outcome.plansScoredNegative++;
+					}
+					outcome.scoreImprovement += plan.getPlannedScorePerVehicle() - strategyAndParentScore[1];
+				}
+			}
+		}
+		this.plansToBeScored.clear();
+		
+		double sumOfPositiveGains = 0.0;
+		double sumOfConfiguredWeights = 0.0;
+		for (int i = 0; i < this.strategies.size(); i++) {
+			if (this.strategies.get(i) == null) {
+				continue;
+			}
+			StrategyOutcome outcome = this.outcomes.get(i);
+			if (outcome.runs > 0) {
+				double gain = outcome.scoreImprovement / Math.max(outcome.cpuTime / 1.0e9, 1.0e-6);
+				outcome.smoothedGain = outcome.hasGain ? (1.0 - this.learningRate) * outcome.smoothedGain + this.learningRate * gain : gain;
+				outcome.hasGain = true;
+			}
+			sumOfPositiveGains += Math.max(outcome.smoothedGain, 0.0);
+			sumOfConfiguredWeights += this.configuredWeights.get(i);
+		}
+		
+		// nothing improved so far - keep the weights
+		if (sumOfPositiveGains > 0.0) {
+			this.shareConfiguredWeights(sumOfConfiguredWeights);
+			this.totalWeights = 0.0;
+			for (int i = 0; i < this.strategies.size(); i++) {
+				this.totalWeights += this.weights.get(i);
+			}
+		}
+		
+		for (int i = 0; i < this.strategies.size(); i++) {
+			if (this.strategies.get(i) == null) {
+				continue;
+			}
+			StrategyOutcome outcome = this.outcomes.get(i);
+			log.info("Iteration " + iteration + ": " + this.strategies.get(i).getStrategyName() + " - runs " + outcome.runs + ", no plan " + outcome.plansNull + ", rejected " + outcome.plansRejected
+					+ ", scored " + outcome.plansScored + ", scored negative " + outcome.plansScoredNegative + ", CPU s " + (outcome.cpuTime / 1.0e9) + ", score improvement " + outcome.scoreImprovement
+					+ ", smoothed improvement per CPU s " + outcome.smoothedGain + ", weight " + this.weights.get(i));
+			outcome.reset();
+		}
+	}
+
+	/**
+	 * Shares the sum of the configured weights among the strategies enabled in proportion to their positive smoothed gains, each weight clamped to its bounds.
+	 * If clamping leaves too little weight, the strategies at their maximum keep it and the rest is shared again among the others, and vice versa for too much weight at the minimum.
+	 * Thus, the sum stays that of the configured weights, unless the bounds do not allow for it.
+	 * 
+	 * @param sumOfConfiguredWeights
+	 */
+	private void shareConfiguredWeights(double sumOfConfiguredWeights) {
+		boolean[] isFixed = new boolean[this.strategies.size()];
+		boolean fixedWeightsChanged = true;
+		while (fixedWeightsChanged) {
+			double weightToShare = sumOfConfiguredWeights;
+			double gainsToShare = 0.0;
+			for (int i = 0; i < this.strategies.size(); i++) {
+				if (this.strategies.get(i) == null) {
+					continue;
+				}
+				if (isFixed[i]) {
+					weightToShare -= this.weights.get(i);
+				} else {
+					gainsToShare += Math.max(this.outcomes.get(i).smoothedGain, 0.0);
+				}
+			}
+			
+			double sumOfWeights = sumOfConfiguredWeights - weightToShare;
+			for (int i = 0; i < this.strategies.size(); i++) {
+				if (this.strategies.get(i) == null || isFixed[i]) {
+					continue;
+				}
+				double weight = gainsToShare > 0.0 ? Math.max(weightToShare, 0.0) * Math.max(this.outcomes.get(i).smoothedGain, 0.0) / gainsToShare : 0.0;
+				weight = Math.min(Math.max(weight, this.minWeights.get(i)), this.maxWeights.get(i));
+				this.weights.set(i, weight);
+				sumOfWeights += weight;
+			}
+			
+			fixedWeightsChanged = false;
+			if (Math.abs(sumOfWeights - sumOfConfiguredWeights) <= 1.0e-9 * sumOfConfiguredWeights) {
+				break;
+			}
+			boolean tooLittleWeight = sumOfWeights < sumOfConfiguredWeights;
+			for (int i = 0; i < this.strategies.size(); i++) {
+				if (this.strategies.get(i) == null || isFixed[i]) {
+					continue;
+				}
+				double bound = tooLittleWeight ? this.maxWeights.get(i) : this.minWeights.get(i);
+				if (this.weights.get(i) == bound) {
+					isFixed[i] = true;
+					fixedWeightsChanged = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the weights and the smoothed gains of the strategies, i.e. the state kept over the iterations if the weights are adapted.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeCheckpoint(DataOutputStream out) throws IOException {
+		out.writeInt(this.weights.size());
+		for (int i = 0; i < this.weights.size(); i++) {
+			out.writeDouble(this.weights.get(i));
+			out.writeDouble(this.outcomes.get(i).smoothedGain);
+			out.writeBoolean(this.outcomes.get(i).hasGain);
+		}
+	}
+
+	/**
+	 * Restores the state written by {@link #writeCheckpoint(DataOutputStream)}. Call after {@link #init} and before replaying the updates of the strategies missed.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	public void readCheckpoint(DataInputStream in) throws IOException {
+		int numberOfStrategies = in.readInt();
+		if (numberOfStrategies != this.weights.size()) {
+			throw new RuntimeException("The checkpoint was written with " + numberOfStrategies + " strategies, but " + this.weights.size() + " are configured. Aborting...");
+		}
+		this.totalWeights = 0.0;
+		for (int i = 0; i < numberOfStrategies; i++) {
+			double weight = in.readDouble();
+			this.weights.set(i, weight);
+			this.totalWeights += weight;
+			this.outcomes.get(i).smoothedGain = in.readDouble();
+			this.outcomes.get(i).hasGain = in.readBoolean();
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer strBuffer = new StringBuffer();
@@ -172,4 +416,29 @@ public final class PStrategyManager {
 		}
 		return strBuffer.toString();
 	}
+	
+	/**
+	 * Outcome of the runs of one strategy since the last adaption of the weights. Only the smoothed gain is kept over the iterations.
+	 */
+	private static final class StrategyOutcome {
+		private int runs = 0;
+		private long cpuTime = 0;
+		private int plansNull = 0;
+		private int plansRejected = 0;
+		private int plansScored = 0;
+		private int plansScoredNegative = 0;
+		private double scoreImprovement = 0.0;
+		private double smoothedGain = 0.0;
+		private boolean hasGain = false;
+		
+		private void reset() {
+			this.runs = 0;
+			this.cpuTime = 0;
+			this.plansNull = 0;
+			this.plansRejected = 0;
+			this.plansScored = 0;
+			this.plansScoredNegative = 0;
+			this.scoreImprovement = 0.0;
+		}
+	}
 }
\ No newline at end of file
@@ -96,7 +96,7 @@ public final class ReduceStopsToBeServedRFare extends AbstractPStrategyModule im
 		newPlan.setPVehicleType(operator.getBestPlan().getPVehicleType());
 		newPlan.setHeadway(operator.getBestPlan().getHeadway());
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -27,6 +27,7 @@ import org.matsim.contrib.minibus.fare.TicketMachineI;
 import org.matsim.contrib.minibus.genericUtils.RecursiveStatsContainer;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
+import org.matsim.contrib.minibus.schedule.PStopTwins;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitRouteStop;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
@@ -53,11 +54,12 @@ public final class ReduceStopsToBeServedRFareBF extends AbstractPStrategyModule
 	
 	private final double sigmaScale;
 	private final boolean useFareAsWeight;
+	private final PStopTwins stopTwins;
 
 	private TicketMachineI ticketMachine;
 	private LinkedHashMap<Id<TransitRoute>, LinkedHashMap<Id<TransitStopFacility>, LinkedHashMap<Id<TransitStopFacility>, Double>>> route2StartStop2EndStop2WeightMap = new LinkedHashMap<>();
 	
-	public ReduceStopsToBeServedRFareBF(ArrayList<String> parameter) {
+	public ReduceStopsToBeServedRFareBF(ArrayList<String> parameter, PStopTwins stopTwins) {
 		super();
 		if(parameter.size() != 2){
 			log.error("Too many parameter. Will ignore: " + parameter);
@@ -66,6 +68,7 @@ public final class ReduceStopsToBeServedRFareBF extends AbstractPStrategyModule
 		}
 		this.sigmaScale = Double.parseDouble(parameter.get(0));
 		this.useFareAsWeight = Boolean.parseBoolean(parameter.get(1));
+		this.stopTwins = stopTwins;
 		log.info("enabled");
 	}
 	
@@ -99,7 +102,7 @@ public final class ReduceStopsToBeServedRFareBF extends AbstractPStrategyModule
 		newPlan.setPVehicleType(operator.getBestPlan().getPVehicleType());
 		newPlan.setHeadway(operator.getBestPlan().getHeadway());
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -181,22 +184,6 @@ public final class ReduceStopsToBeServedRFareBF extends AbstractPStrategyModule
 		
 		return reversedRouteId;
 	}
-	
-	private Id<TransitStopFacility> reverseStopId(Id<TransitStopFacility> stopId)	{
-		String[] stopIdSplit = stopId.toString().split("_");
-		String reversedStop = "";
-		for(int i = 0; i < stopIdSplit.length - 1; i++)	{
-			reversedStop += stopIdSplit[i] + "_";
-		}
-		if(stopIdSplit[stopIdSplit.length - 1].equals("A"))
-			reversedStop += "B";
-		else
-			reversedStop += "A";
-		
-		Id<TransitStopFacility> reversedStopId = Id.create(reversedStop, TransitStopFacility.class);
-		
-		return reversedStopId;
-	}
 
 	@Override
 	public String getStrategyName() {
@@ -225,8 +212,8 @@ public final class ReduceStopsToBeServedRFareBF extends AbstractPStrategyModule
 		}
 		else if(routeTyp.equals("Forth")) {
 			routeId = reverseRouteId(stageContainer.getRouteId());
-			endStopId = reverseStopId(stageContainer.getStopEntered());
-			startStopId = reverseStopId(stageContainer.getStopLeft());
+			endStopId = this.stopTwins.getTwinId(stageContainer.getStopEntered());
+			startStopId = this.stopTwins.getTwinId(stageContainer.getStopLeft());
 		}
 		
 		if (this.route2StartStop2EndStop2WeightMap.get(routeId) == null) {
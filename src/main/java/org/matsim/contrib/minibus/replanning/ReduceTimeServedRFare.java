@@ -27,7 +27,7 @@ import org.matsim.contrib.minibus.fare.TicketMachineI;
 import org.matsim.contrib.minibus.genericUtils.RecursiveStatsContainer;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
-import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
 import org.matsim.core.utils.collections.Tuple;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
@@ -107,7 +107,7 @@ public final class ReduceTimeServedRFare extends AbstractPStrategyModule impleme
 		newPlan.setEndTime(timeToBeServed.getSecond());
 		newPlan.setHeadway(operator.getBestPlan().getHeadway());
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -207,7 +207,7 @@ public final class ReduceTimeServedRFare extends AbstractPStrategyModule impleme
 		
 		// Weighted random draw
 		double accumulatedWeight = 0.0;
-		double rndTreshold = MatsimRandom.getRandom().nextDouble() * totalWeight;
+		double rndTreshold = PRandom.getRandom().nextDouble() * totalWeight;
 		for (Tuple<Integer, Integer> tuple : timeSlotTuples) {
 			accumulatedWeight += tuple.getSecond() - tuple.getFirst();
 			if (rndTreshold <= accumulatedWeight) {
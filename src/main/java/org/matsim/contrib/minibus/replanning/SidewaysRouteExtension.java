@@ -32,7 +32,6 @@ import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
 import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
 import org.matsim.core.utils.geometry.CoordUtils;
-import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitRouteStop;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
@@ -107,7 +106,7 @@ public final class SidewaysRouteExtension extends AbstractPStrategyModule {
 		newPlan.setStopsToBeServed(newStopsToBeServed);
 		newPlan.setHeadway(operator.getBestPlan().getHeadway());
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -209,12 +208,10 @@ public final class SidewaysRouteExtension extends AbstractPStrategyModule {
 	private TransitStopFacility drawRandomStop(Geometry buffer, PRouteProvider pRouteProvider, Set<Id<TransitStopFacility>> stopsUsed) {
 		List<TransitStopFacility> choiceSet = new LinkedList<>();
 		
-		// find choice-set
-		for (TransitStopFacility stop : pRouteProvider.getAllPStops()) {
+		// find choice-set, only the stops within the envelope of the buffer are tested
+		for (TransitStopFacility stop : pRouteProvider.getPStopIndex().getStopsWithin(buffer)) {
 			if (!stopsUsed.contains(stop.getId())) {
-				if (buffer.contains(MGC.coord2Point(stop.getCoord()))) {
-					choiceSet.add(stop);
-				}
+				choiceSet.add(stop);
 			}
 		}
 		
@@ -232,31 +229,15 @@ public final class SidewaysRouteExtension extends AbstractPStrategyModule {
 		}
 
 
-		Geometry unionmax = null;
-		
-		for (Geometry lineString : lineStrings) {
-			Geometry buffer = BufferOp.bufferOp(lineString, bufferSize, bufferParameters);
-			if (unionmax == null) {
-				unionmax = buffer;
-			} else {
-				unionmax = unionmax.union(buffer);
-			}
-		}
+		// buffering all line strings at once equals the union of their buffers
+		Geometry unionmax = BufferOp.bufferOp(new GeometryFactory().buildGeometry(lineStrings), bufferSize, bufferParameters);
 		
 		
 		Geometry unionmin = null;
 		
 		// exclude first and last stop from buffer
-		for(int i = 1; i < stopPoints.size(); i++)	{
-			
-			Geometry buff = stopPoints.get(i).buffer(bufferSizeMin);
-			
-			if (unionmin == null)	{
-				unionmin = buff;
-			}
-			else {
-				unionmin = unionmin.union(buff);
-			}
+		if (stopPoints.size() > 1) {
+			unionmin = new GeometryFactory().buildGeometry(stopPoints.subList(1, stopPoints.size())).buffer(bufferSizeMin);
 		}
 		
 		Geometry union = null;
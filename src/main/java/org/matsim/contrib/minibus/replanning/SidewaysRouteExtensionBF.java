@@ -32,14 +32,11 @@ import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
+import org.matsim.contrib.minibus.routeProvider.PNetworkRouter;
 import org.matsim.contrib.minibus.routeProvider.PRouteProvider;
-import org.matsim.core.router.Dijkstra;
-import org.matsim.core.router.DijkstraFactory;
-import org.matsim.core.router.costcalculators.FreespeedTravelTimeAndDisutility;
-import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.contrib.minibus.schedule.PStopTwins;
 import org.matsim.core.router.util.LeastCostPathCalculator.Path;
 import org.matsim.core.utils.geometry.CoordUtils;
-import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitRouteStop;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
@@ -65,9 +62,10 @@ public final class SidewaysRouteExtensionBF extends AbstractPStrategyModule {
 	private final boolean excludeTermini;
 	private Network network;
 	private TransitSchedule pStops;
-	private LeastCostPathCalculator routingAlgo;
+	private final PNetworkRouter router;
+	private final PStopTwins stopTwins;
 	
-	public SidewaysRouteExtensionBF(ArrayList<String> parameter, Network pNetwork, TransitSchedule pStopsOnly) {
+	public SidewaysRouteExtensionBF(ArrayList<String> parameter, Network pNetwork, PNetworkRouter router, PStopTwins stopTwins, TransitSchedule pStopsOnly) {
 		super();
 		if(parameter.size() != 4){
 			log.error("Parameter 1: Buffer size in meter");
@@ -85,8 +83,8 @@ public final class SidewaysRouteExtensionBF extends AbstractPStrategyModule {
 		this.network = pNetwork;
 		this.pStops = pStopsOnly;
 		
-		FreespeedTravelTimeAndDisutility tC = new FreespeedTravelTimeAndDisutility(-6.0, 0.0, 0.0); // Here, it may make sense to use the variable cost parameters given in the config. Ihab/Daniel may'14
-		this.routingAlgo = new DijkstraFactory().createPathCalculator(this.network, tC, tC);
+		this.router = router;
+		this.stopTwins = stopTwins;
 	}
 
 	@Override
@@ -123,7 +121,7 @@ public final class SidewaysRouteExtensionBF extends AbstractPStrategyModule {
 		newPlan.setStopsToBeServed(newStopsToBeServed);
 		newPlan.setHeadway(operator.getBestPlan().getHeadway());
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -150,12 +148,12 @@ public final class SidewaysRouteExtensionBF extends AbstractPStrategyModule {
 		ArrayList<TransitStopFacility> newStopsToBeServed = new ArrayList<>(currentStopsToBeServed);
 		
 		double distanceBack = getShortestPath(currentStopsToBeServed.get(index), newStop);
-		double distanceForth = getShortestPath(currentStopsToBeServed.get(index), this.pStops.getFacilities().get(reverseStopId(newStop.getId())));
+		double distanceForth = getShortestPath(currentStopsToBeServed.get(index), this.stopTwins.getTwin(newStop));
 
 		if(distanceBack < distanceForth)
 			newStopsToBeServed.add(index + 1, newStop);
 		else	
-			newStopsToBeServed.add(index + 1, this.pStops.getFacilities().get(reverseStopId(newStop.getId())));
+			newStopsToBeServed.add(index + 1, this.stopTwins.getTwin(newStop));
 
 		return newStopsToBeServed;
 
@@ -164,7 +162,7 @@ public final class SidewaysRouteExtensionBF extends AbstractPStrategyModule {
 		
 		for (TransitStopFacility transitStopFacility : currentStopsToBeServed) {
 			double distanceBack = getShortestPath(transitStopFacility, newStop);
-			double distanceForth = getShortestPath(transitStopFacility, this.pStops.getFacilities().get(reverseStopId(newStop.getId())));
+			double distanceForth = getShortestPath(transitStopFacility, this.stopTwins.getTwin(newStop));
 			
 			if(distanceBack < distanceForth)	{
 				if (distanceBack < smallestDistance) {
@@ -179,7 +177,7 @@ public final class SidewaysRouteExtensionBF extends AbstractPStrategyModule {
 					smallestDistance = distanceForth;
 					stopWithSecondSmallestDistance = stopWithSmallestDistance;
 					stopWithSmallestDistance = transitStopFacility;
-					stopToInsert = this.pStops.getFacilities().get(reverseStopId(newStop.getId()));
+					stopToInsert = this.stopTwins.getTwin(newStop);
 				}
 			}
 		}
@@ -198,30 +196,13 @@ public final class SidewaysRouteExtensionBF extends AbstractPStrategyModule {
 	
 	
 	private double getShortestPath(TransitStopFacility fromStop, TransitStopFacility toStop)	{
-		Path path = this.routingAlgo.calcLeastCostPath(this.network.getLinks().get(fromStop.getLinkId()).getToNode(), this.network.getLinks().get(toStop.getLinkId()).getFromNode(), 0.0, null, null);
+		Path path = this.router.calcLeastCostPath(this.network.getLinks().get(fromStop.getLinkId()).getToNode(), this.network.getLinks().get(toStop.getLinkId()).getFromNode(), 0.0, null, null);
 		double distance = 0.0;
 		for (Link link : path.links) {
 			distance += link.getLength();
 		}
 		return distance;
 	}
-	
-	
-	private Id<TransitStopFacility> reverseStopId(Id<TransitStopFacility> stopId)	{
-		String[] stopIdSplit = stopId.toString().split("_");
-		String reversedStop = "";
-		for(int i = 0; i < stopIdSplit.length - 1; i++)	{
-			reversedStop += stopIdSplit[i] + "_";
-		}
-		if(stopIdSplit[stopIdSplit.length - 1].equals("A"))
-			reversedStop += "B";
-		else
-			reversedStop += "A";
-		
-		Id<TransitStopFacility> reversedStopId = Id.create(reversedStop, TransitStopFacility.class);
-		
-		return reversedStopId;
-	}
 
 	
 	private Set<Id<TransitStopFacility>> getStopsUsed(Collection<TransitRoute> routes) {
@@ -238,12 +219,11 @@ public final class SidewaysRouteExtensionBF extends AbstractPStrategyModule {
 	private TransitStopFacility drawRandomStop(Geometry buffer, PRouteProvider pRouteProvider, Set<Id<TransitStopFacility>> stopsUsed) {
 		List<TransitStopFacility> choiceSet = new LinkedList<>();
 		
-		// find choice-set
-		for (TransitStopFacility stop : pRouteProvider.getAllPStops()) {
-			if (!stopsUsed.contains(stop.getId()) && !stopsUsed.contains(reverseStopId(stop.getId()))) {
-				if (buffer.contains(MGC.coord2Point(stop.getCoord()))) {
-					choiceSet.add(stop);
-				}
+		// find choice-set, only the stops within the envelope of the buffer are tested
+		for (TransitStopFacility stop : pRouteProvider.getPStopIndex().getStopsWithin(buffer)) {
+			Id<TransitStopFacility> twinId = this.stopTwins.getTwinId(stop.getId());
+			if (!stopsUsed.contains(stop.getId()) && (twinId == null || !stopsUsed.contains(twinId))) {
+				choiceSet.add(stop);
 			}
 		}
 		
@@ -261,31 +241,15 @@ public final class SidewaysRouteExtensionBF extends AbstractPStrategyModule {
 		}
 
 
-		Geometry unionmax = null;
-		
-		for (Geometry lineString : lineStrings) {
-			Geometry buffer = BufferOp.bufferOp(lineString, bufferSize, bufferParameters);
-			if (unionmax == null) {
-				unionmax = buffer;
-			} else {
-				unionmax = unionmax.union(buffer);
-			}
-		}
+		// buffering all line strings at once is the same as the union of their buffers, but avoids unioning one buffer after the other
+		Geometry unionmax = BufferOp.bufferOp(new GeometryFactory().buildGeometry(lineStrings), bufferSize, bufferParameters);
 		
 		
 		Geometry unionmin = null;
 		
 		// exclude first and last stop from buffer
-		for(int i = 1; i < stopPoints.size(); i++)	{
-			
-			Geometry buff = stopPoints.get(i).buffer(bufferSizeMin);
-			
-			if (unionmin == null)	{
-				unionmin = buff;
-			}
-			else {
-				unionmin = unionmin.union(buff);
-			}
+		if (stopPoints.size() > 1) {
+			unionmin = new GeometryFactory().buildGeometry(stopPoints.subList(1, stopPoints.size())).buffer(bufferSizeMin);
 		}
 		
 		Geometry union = null;
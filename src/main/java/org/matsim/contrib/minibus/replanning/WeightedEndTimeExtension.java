@@ -71,7 +71,7 @@ public final class WeightedEndTimeExtension extends AbstractPStrategyModule {
 			return null;
 		}
 		
-		newPlan.setLine(operator.getRouteProvider().createTransitLineFromOperatorPlan(operator.getId(), newPlan));
+		newPlan.setLineProvider(operator.getRouteProvider(), operator.getId());
 		
 		return newPlan;
 	}
@@ -1,5 +1,8 @@
 package org.matsim.contrib.minibus.routeProvider;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -7,27 +10,21 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
 import org.matsim.contrib.minibus.genericUtils.GridNode;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
+import org.matsim.contrib.minibus.schedule.PStopTwins;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.filter.NetworkLinkFilter;
 import org.matsim.core.population.routes.NetworkRoute;
 import org.matsim.core.population.routes.RouteUtils;
-import org.matsim.core.router.Dijkstra;
-import org.matsim.core.router.DijkstraFactory;
-import org.matsim.core.router.costcalculators.FreespeedTravelTimeAndDisutility;
-import org.matsim.core.router.util.LeastCostPathCalculator;
-import org.matsim.core.router.util.LeastCostPathCalculator.Path;
 import org.matsim.core.utils.misc.Time;
 import org.matsim.pt.transitSchedule.api.Departure;
 import org.matsim.pt.transitSchedule.api.TransitLine;
@@ -53,7 +50,8 @@ final class BackAndForthScheduleProvider implements PRouteProvider{
 	public final static String NAME = "BackAndForthScheduleProvider";
 	
 	private final Network net;
-	private final LeastCostPathCalculator routingAlgo;
+	private final PNetworkRouter router;
+	private final PStopTwins stopTwins;
 	private final TransitSchedule scheduleWithStopsOnly;
 	private final RandomStopProvider randomStopProvider;
 	private final RandomPVehicleProvider randomPVehicleProvider;
@@ -64,28 +62,22 @@ final class BackAndForthScheduleProvider implements PRouteProvider{
 	
 	private final TimeAwareComplexCircleScheduleProviderHandler handler;
 	private final String transportMode;
-	private final Collection<PVehicleSettings> pVehicleSettings;
-	private PPlan pOperatorPlan;
-	private ArrayList<TransitStopFacility> stopsServedBackPattern;
+	private final PVehicleTypeRegistry pVehicleTypes;
+	private final PStopIndex pStopIndex;
+	private final PNetworkRouteCache routeCache = new PNetworkRouteCache();
 	
-	public BackAndForthScheduleProvider(TransitSchedule scheduleWithStopsOnly, Network network, RandomStopProvider randomStopProvider, RandomPVehicleProvider randomPVehicleProvider, double vehicleMaximumVelocity, double planningSpeedFactor, double driverRestTime, String pIdentifier, EventsManager eventsManager, final String transportMode, Collection<PVehicleSettings> pVehicleSettings) {
+	public BackAndForthScheduleProvider(TransitSchedule scheduleWithStopsOnly, Network network, PNetworkRouter router, PStopTwins stopTwins, RandomStopProvider randomStopProvider, RandomPVehicleProvider randomPVehicleProvider, double vehicleMaximumVelocity, double planningSpeedFactor, double driverRestTime, String pIdentifier, EventsManager eventsManager, final String transportMode, PVehicleTypeRegistry pVehicleTypes) {
 
 		this.net = network;
 		
-		this.pVehicleSettings = pVehicleSettings;
+		this.pVehicleTypes = pVehicleTypes;
 		this.randomPVehicleProvider = randomPVehicleProvider;
 		this.scheduleWithStopsOnly = scheduleWithStopsOnly;
+		this.pStopIndex = new PStopIndex(scheduleWithStopsOnly.getFacilities().values());
 		
 
-		FreespeedTravelTimeAndDisutility tC = new FreespeedTravelTimeAndDisutility(-6.0, 0.0, 0.0); // Here, it may make sense to use the variable cost parameters given in the config. Ihab/Daniel may'14
-		this.routingAlgo = new DijkstraFactory().createPathCalculator(this.net, tC, tC);
-		@SuppressWarnings("serial")
-		Set<String> modes =  new HashSet<String>(){{
-			// this is the networkmode and explicitly not the transportmode
-			add(TransportMode.car);
-//			add(TransportMode.pt);
-			}};
-		((Dijkstra)this.routingAlgo).setModeRestriction(modes);
+		this.router = router;
+		this.stopTwins = stopTwins;
 		
 		// register all stops by their corresponding link id
 		this.linkId2StopFacilityMap = new LinkedHashMap<>();
@@ -103,53 +95,43 @@ final class BackAndForthScheduleProvider implements PRouteProvider{
 		this.driverRestTime = driverRestTime;
 		this.handler = new TimeAwareComplexCircleScheduleProviderHandler(pIdentifier);
 		eventsManager.addHandler(this.handler);
+		eventsManager.addHandler(this.routeCache);
+		// the paths between stops are shared by all providers, only their statistics are reported here
+		eventsManager.addHandler(this.router.getStopPairPathCache());
 		this.transportMode = transportMode;
 	}
 	
 	@Override
-	public TransitLine createTransitLineFromOperatorPlan(Id<Operator> operatorId, PPlan plan){
-		this.pOperatorPlan = plan;
-		return this.createTransitLine(Id.create(operatorId, TransitLine.class), plan.getStartTime(), plan.getEndTime(), plan.getNVehicles(), plan.getStopsToBeServed(), plan.getPVehicleType(), Id.create(plan.getId(), TransitRoute.class), plan.getId());
+	public TransitLine createTransitLineFromOperatorPlan(Id<Operator> operatorId, PPlan plan, TransitLine lineToReuse){
+		return this.createTransitLine(plan, Id.create(operatorId, TransitLine.class), plan.getStartTime(), plan.getEndTime(), plan.getNVehicles(), plan.getStopsToBeServed(), plan.getPVehicleType(), Id.create(plan.getId(), TransitRoute.class), plan.getId(), lineToReuse);
 	}
 	
-	private TransitLine createTransitLine(Id<TransitLine> pLineId, double startTime, double endTime, int numberOfVehicles, ArrayList<TransitStopFacility> stopsToBeServed, String pVehicleType, Id<TransitRoute> routeId, Id<PPlan> planId){
+	private TransitLine createTransitLine(PPlan pOperatorPlan, Id<TransitLine> pLineId, double startTime, double endTime, int numberOfVehicles, ArrayList<TransitStopFacility> stopsToBeServed, String pVehicleType, Id<TransitRoute> routeId, Id<PPlan> planId, TransitLine lineToReuse){
 		
 		// initialize
 		TransitLine line = this.scheduleWithStopsOnly.getFactory().createTransitLine(pLineId);	
-		this.stopsServedBackPattern = new ArrayList<>();
+		ArrayList<TransitStopFacility> stopsServedBackPattern = new ArrayList<>();
 		
 		Id<TransitRoute> routeIdBack = Id.create(pLineId + "-" + routeId + "-Back", TransitRoute.class);
 		Id<TransitRoute> routeIdForth = Id.create(pLineId + "-" + routeId + "-Forth", TransitRoute.class);
 		
 		// create the first route
-		TransitRoute transitRouteBack = createRoute(routeIdBack, stopsToBeServed, pVehicleType, planId, "back");
+		TransitRoute transitRouteBack = createRoute(routeIdBack, stopsToBeServed, pVehicleType, planId, "back", stopsServedBackPattern);
 		
 		// create the other route containing the stops on the other side of the road in a reversed order
 		ArrayList<TransitStopFacility> stopsToBeServedReversed = new ArrayList<>();
-		ListIterator<TransitStopFacility> listIterator = this.stopsServedBackPattern.listIterator(this.stopsServedBackPattern.size());
+		ListIterator<TransitStopFacility> listIterator = stopsServedBackPattern.listIterator(stopsServedBackPattern.size());
 		while(listIterator.hasPrevious()) {
-
-			String[] stopName = listIterator.previous().getId().toString().split("_");
-			
-			StringBuilder builder = new StringBuilder();
-			for(int i = 0; i < stopName.length; i++)	{
-				if(i != stopName.length - 1) {
-					builder.append(stopName[i] + "_");
-				} else {
-					if(stopName[i].equals("A"))
-						builder.append("B");
-					if(stopName[i].equals("B"))
-						builder.append("A");
-				}
-			}
-			String str = builder.toString();
-			
-			Id<TransitStopFacility> reversedStopID = Id.create(str, TransitStopFacility.class);
-
-			stopsToBeServedReversed.add(this.scheduleWithStopsOnly.getFacilities().get(reversedStopID));
+			stopsToBeServedReversed.add(this.stopTwins.getTwin(listIterator.previous()));
 		}
 		
-		TransitRoute transitRouteForth = createRoute(routeIdForth, stopsToBeServedReversed, pVehicleType, planId, "forth");
+		TransitRoute transitRouteForth = createRoute(routeIdForth, stopsToBeServedReversed, pVehicleType, planId, "forth", stopsServedBackPattern);
+		
+		// the departures only depend on the definition of the plan, which did not change, and the last stop of the routes
+		if (lineToReuse != null && isSameRouteWithoutDepartures(lineToReuse.getRoutes().get(routeIdBack), transitRouteBack)
+				&& isSameRouteWithoutDepartures(lineToReuse.getRoutes().get(routeIdForth), transitRouteForth)) {
+			return lineToReuse;
+		}
 		
 		// register route
 		line.addRoute(transitRouteBack);
@@ -168,17 +150,20 @@ final class BackAndForthScheduleProvider implements PRouteProvider{
 		
 		// possibility to introduce a maximal frequency
 		// headway = Math.max(5*60, headway);
-		this.pOperatorPlan.setHeadway(headway);
+		pOperatorPlan.beginDepartures(line);
+		pOperatorPlan.recordHeadway(headway);
 		for (int i = 0; i < numberOfVehicles; i++) {
 			for (double j = startTime + i * headway; j <= endTime; ) {
 				Departure departureBack = this.scheduleWithStopsOnly.getFactory().createDeparture(Id.create(n, Departure.class), j);
 				departureBack.setVehicleId(Id.create(pLineId + "-" + routeId + "-" + n +"_" + pVehicleType + "-Back-" + i, Vehicle.class));
 				transitRouteBack.addDeparture(departureBack);
+				pOperatorPlan.addDeparture(j, i, pOperatorPlan.addVehicle(departureBack.getVehicleId()));
 				j += transitRouteBack.getStops().get(transitRouteBack.getStops().size() - 1).getDepartureOffset() + this.driverRestTime;
 				
 				Departure departureForth = this.scheduleWithStopsOnly.getFactory().createDeparture(Id.create(n, Departure.class), j);
 				departureForth.setVehicleId(Id.create(pLineId + "-" + routeId + "-" + n +"_" + pVehicleType + "-Forth-" + i, Vehicle.class));
 				transitRouteForth.addDeparture(departureForth);
+				pOperatorPlan.addDeparture(j, i, pOperatorPlan.addVehicle(departureForth.getVehicleId()));
 				j += transitRouteForth.getStops().get(transitRouteForth.getStops().size() - 1).getDepartureOffset() + this.driverRestTime;
 				n++;
 			}
@@ -188,7 +173,7 @@ final class BackAndForthScheduleProvider implements PRouteProvider{
 		
 	}
 	
-	private TransitRoute createRoute(Id<TransitRoute> routeID, ArrayList<TransitStopFacility> stopsToBeServed, String pVehicleType, Id<PPlan> planId, String routePattern){
+	private TransitRoute createRoute(Id<TransitRoute> routeID, ArrayList<TransitStopFacility> stopsToBeServed, String pVehicleType, Id<PPlan> planId, String routePattern, List<TransitStopFacility> stopsServedBackPattern){
 		
 		ArrayList<TransitStopFacility> tempStopsToBeServed = new ArrayList<>();
 		HashSet<String> gridStopHashSet = new HashSet<>();
@@ -205,27 +190,14 @@ final class BackAndForthScheduleProvider implements PRouteProvider{
 		// this would be the last stop, not necessary anymore
 		// tempStopsToBeServed.add(stopsToBeServed.get(0));
 		
-		// create links - network route		
-		Id<Link> startLinkId = null;
-		Id<Link> lastLinkId = null;
+		// create links - network route, a stop sequence routed before is reused
+		Id<Link> startLinkId = tempStopsToBeServed.get(0).getLinkId();
+		Id<Link> lastLinkId = tempStopsToBeServed.get(tempStopsToBeServed.size() - 1).getLinkId();
 		
-		List<Link> links = new LinkedList<>();
-		// for each stop
-		for (TransitStopFacility stop : tempStopsToBeServed) {
-			if(startLinkId == null){
-				startLinkId = stop.getLinkId();
-			}
-			if(lastLinkId != null){
-				links.add(this.net.getLinks().get(lastLinkId));
-				Path path = this.routingAlgo.calcLeastCostPath(this.net.getLinks().get(lastLinkId).getToNode(), this.net.getLinks().get(stop.getLinkId()).getFromNode(), 0.0, null, null);
-
-				for (Link link : path.links) {
-					links.add(link);
-				}
-			}
-			lastLinkId = stop.getLinkId();
+		List<Link> links = this.routeCache.getLinks(tempStopsToBeServed);
+		if (links == null) {
+			links = this.routeCache.putLinks(tempStopsToBeServed, this.routeStops(tempStopsToBeServed));
 		}
-		links.remove(0);
 		NetworkRoute route = RouteUtils.createLinkNetworkRouteImpl(startLinkId, NetworkUtils.getLinkIds(links), lastLinkId);
 		//route.setLinkIds(startLinkId, NetworkUtils.getLinkIds(links), lastLinkId);
 
@@ -235,15 +207,8 @@ final class BackAndForthScheduleProvider implements PRouteProvider{
 		
 		
 		// get capacity of the vehicle
-		double capacity = 0.0;
-		
-		for (PVehicleSettings pVS : this.pVehicleSettings) {
-			
-            if (pVehicleType.equals(pVS.getPVehicleName())) {
-            	// manserpa: !!attention: the factor 10 is because of the downscaled scenario. Not really nice because it is hard-coded
-            	capacity = pVS.getCapacityPerVehicle() * 10;
-            }
-        }
+		// manserpa: !!attention: the factor 10 is because of the downscaled scenario. Not really nice because it is hard-coded
+		double capacity = this.pVehicleTypes.getCapacityPerVehicle(this.pVehicleTypes.getIndex(pVehicleType)) * 10;
 		
 		// first stop
 		TransitRouteStop routeStop;
@@ -359,12 +324,60 @@ final class BackAndForthScheduleProvider implements PRouteProvider{
 		
 		tempStopsToBeServedNew.add(tempStopsToBeServed.get(tempStopsToBeServed.size()-1));
 		if(routePattern.equals("back"))
-			this.stopsServedBackPattern = tempStopsToBeServedNew;
+			stopsServedBackPattern.addAll(tempStopsToBeServedNew);
 		
 		TransitRoute transitRoute = this.scheduleWithStopsOnly.getFactory().createTransitRoute(routeID, route, stops, this.transportMode);
 		return transitRoute;
 	}
 	
+	/**
+	 * @return true, if both routes serve the same stops with the same offsets on the same links
+	 */
+	private static boolean isSameRouteWithoutDepartures(TransitRoute route, TransitRoute otherRoute) {
+		if (route == null || route.getStops().size() != otherRoute.getStops().size()) {
+			return false;
+		}
+		
+		for (int i = 0; i < route.getStops().size(); i++) {
+			TransitRouteStop stop = route.getStops().get(i);
+			TransitRouteStop otherStop = otherRoute.getStops().get(i);
+			if (stop.getStopFacility() != otherStop.getStopFacility()
+					|| stop.getArrivalOffset() != otherStop.getArrivalOffset()
+					|| stop.getDepartureOffset() != otherStop.getDepartureOffset()
+					|| stop.isAwaitDepartureTime() != otherStop.isAwaitDepartureTime()) {
+				return false;
+			}
+		}
+		
+		return route.getRoute().getStartLinkId().equals(otherRoute.getRoute().getStartLinkId())
+				&& route.getRoute().getEndLinkId().equals(otherRoute.getRoute().getEndLinkId())
+				&& route.getRoute().getLinkIds().equals(otherRoute.getRoute().getLinkIds());
+	}
+	
+	/**
+	 * @param stops
+	 * @return The links between the first and the last stop, both excluded
+	 */
+	private List<Link> routeStops(List<TransitStopFacility> stops) {
+		Id<Link> lastLinkId = null;
+		
+		List<Link> links = new LinkedList<>();
+		// for each stop
+		for (TransitStopFacility stop : stops) {
+			if(lastLinkId != null){
+				links.add(this.net.getLinks().get(lastLinkId));
+				List<Link> path = this.router.getLinksBetweenStops(this.net.getLinks().get(lastLinkId), this.net.getLinks().get(stop.getLinkId()));
+
+				for (Link link : path) {
+					links.add(link);
+				}
+			}
+			lastLinkId = stop.getLinkId();
+		}
+		links.remove(0);
+		return links;
+	}
+	
 	public int getMinStopTime(double capacity){
 		// TODO: add more flexibility
 		int minStopTime = (int) (0.2 * capacity);
@@ -391,6 +404,21 @@ final class BackAndForthScheduleProvider implements PRouteProvider{
 		return this.scheduleWithStopsOnly.getFacilities().values();
 	}
 	
+	@Override
+	public PStopIndex getPStopIndex() {
+		return this.pStopIndex;
+	}
+	
+	@Override
+	public void writeCheckpoint(DataOutputStream out) throws IOException {
+		this.handler.writeCheckpoint(out);
+	}
+	
+	@Override
+	public void readCheckpoint(DataInputStream in) throws IOException {
+		this.handler.readCheckpoint(in);
+	}
+	
 	private double modifyRunningTimeAccordingToTheLastIterationIfPossible(double runningTime, double offsetFromLastIteration){
 		if (offsetFromLastIteration != -Double.MAX_VALUE) {
 			runningTime = offsetFromLastIteration;
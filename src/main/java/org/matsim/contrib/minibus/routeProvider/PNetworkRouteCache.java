@@ -0,0 +1,86 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.routeProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.events.handler.EventHandler;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+/**
+ * Keeps the links routed between the stops of a stop sequence, so plans serving the same stops in the same order are not routed again, e.g. when only the time served, the number of vehicles or the vehicle type changed.
+ * Only sequences routed in the current or the last iteration are kept. Thread-safe.
+ * 
+ * @author manserpa
+ *
+ */
+final class PNetworkRouteCache implements EventHandler {
+	
+	private volatile Map<List<Id<TransitStopFacility>>, List<Link>> stops2LinksOfThisIteration = new ConcurrentHashMap<>();
+	private volatile Map<List<Id<TransitStopFacility>>, List<Link>> stops2LinksOfLastIteration = new ConcurrentHashMap<>();
+	
+	/**
+	 * @param stops
+	 * @return The links routed for the stop sequence or <code>null</code>, if it was not routed in this or the last iteration.
+	 */
+	List<Link> getLinks(List<TransitStopFacility> stops) {
+		List<Id<TransitStopFacility>> key = getKey(stops);
+		List<Link> links = this.stops2LinksOfThisIteration.get(key);
+		if (links == null) {
+			links = this.stops2LinksOfLastIteration.get(key);
+			if (links != null) {
+				this.stops2LinksOfThisIteration.put(key, links);
+			}
+		}
+		return links;
+	}
+	
+	/**
+	 * @param stops
+	 * @param links The links routed for the stop sequence
+	 * @return The links as kept by the cache
+	 */
+	List<Link> putLinks(List<TransitStopFacility> stops, List<Link> links) {
+		List<Link> linksToKeep = Collections.unmodifiableList(new ArrayList<>(links));
+		this.stops2LinksOfThisIteration.put(getKey(stops), linksToKeep);
+		return linksToKeep;
+	}
+	
+	private static List<Id<TransitStopFacility>> getKey(List<TransitStopFacility> stops) {
+		List<Id<TransitStopFacility>> key = new ArrayList<>(stops.size());
+		for (TransitStopFacility stop : stops) {
+			key.add(stop.getId());
+		}
+		return key;
+	}
+
+	@Override
+	public void reset(int iteration) {
+		// drop all sequences not routed in the last iteration
+		this.stops2LinksOfLastIteration = this.stops2LinksOfThisIteration;
+		this.stops2LinksOfThisIteration = new ConcurrentHashMap<>();
+	}
+}
@@ -0,0 +1,527 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.routeProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.router.Dijkstra;
+import org.matsim.core.router.DijkstraFactory;
+import org.matsim.core.router.costcalculators.FreespeedTravelTimeAndDisutility;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Least cost path calculator for the paratransit network shared by the route provider and the replanning strategies. Uses the same freespeed costs and the same car links as the Dijkstra used before.
+ * <p>
+ * The network is copied into arrays once, the out links of a node being stored consecutively. Queries run A* with landmarks (ALT): the distances from and to a few landmarks
+ * are calculated beforehand and give a lower bound of the remaining costs, thus far less nodes are settled than by Dijkstra. The path found is the one of Dijkstra:
+ * each node on a least cost path is reached from all its predecessors on least cost paths before the target is settled, and of two links reaching a node at exactly
+ * the same costs the one with the lower id is kept, as done by Dijkstra. Run {@link #main(String[])} to compare both on a network.
+ * <p>
+ * Thread-safe, each thread gets its own query state.
+ * 
+ * @author manserpa
+ *
+ */
+public final class PNetworkRouter implements LeastCostPathCalculator {
+	
+	private final static Logger log = Logger.getLogger(PNetworkRouter.class);
+	
+	private static final int NUMBER_OF_LANDMARKS = 16;
+	// keeps the lower bound below the real costs despite rounding errors
+	private static final double HEURISTIC_FACTOR = 1.0 - 1e-9;
+	private static final int MAX_NUMBER_OF_STOP_PAIR_PATHS = 500000;
+	
+	private final Node[] nodes;
+	private final Map<Id<Node>, Integer> nodeId2Index;
+	
+	// out links of node i are firstOutLink[i] to firstOutLink[i + 1] - 1
+	private final int[] firstOutLink;
+	private final Link[] links;
+	private final Map<Id<Link>, Integer> linkId2Index;
+	private final int[] linkToNode;
+	private final double[] linkTravelTime;
+	private final double[] linkCost;
+	
+	// in links of node i are inLinks[firstInLink[i]] to inLinks[firstInLink[i + 1] - 1]
+	private final int[] firstInLink;
+	private final int[] inLinks;
+	private final int[] linkFromNode;
+	
+	private final double[][] costFromLandmark;
+	private final double[][] costToLandmark;
+	
+	private final PStopPairPathCache stopPairPaths = new PStopPairPathCache(MAX_NUMBER_OF_STOP_PAIR_PATHS);
+	
+	private final ThreadLocal<QueryState> queryState = new ThreadLocal<QueryState>() {
+		@Override
+		protected QueryState initialValue() {
+			return new QueryState(PNetworkRouter.this.nodes.length);
+		}
+	};
+	
+	public PNetworkRouter(Network network) {
+		FreespeedTravelTimeAndDisutility tC = new FreespeedTravelTimeAndDisutility(-6.0, 0.0, 0.0);
+		
+		int numberOfNodes = network.getNodes().size();
+		this.nodes = new Node[numberOfNodes];
+		this.nodeId2Index = new HashMap<>(numberOfNodes * 2);
+		int numberOfLinks = 0;
+		for (Node node : network.getNodes().values()) {
+			this.nodeId2Index.put(node.getId(), this.nodeId2Index.size());
+			this.nodes[this.nodeId2Index.size() - 1] = node;
+			for (Link link : node.getOutLinks().values()) {
+				if (isRoutable(link)) {
+					numberOfLinks++;
+				}
+			}
+		}
+		
+		this.firstOutLink = new int[numberOfNodes + 1];
+		this.links = new Link[numberOfLinks];
+		this.linkId2Index = new HashMap<>(numberOfLinks * 2);
+		this.linkToNode = new int[numberOfLinks];
+		this.linkFromNode = new int[numberOfLinks];
+		this.linkTravelTime = new double[numberOfLinks];
+		this.linkCost = new double[numberOfLinks];
+		int[] numberOfInLinks = new int[numberOfNodes];
+		int linkIndex = 0;
+		for (int i = 0; i < numberOfNodes; i++) {
+			this.firstOutLink[i] = linkIndex;
+			// same order as relaxed by Dijkstra
+			for (Link link : this.nodes[i].getOutLinks().values()) {
+				if (!isRoutable(link)) {
+					continue;
+				}
+				this.links[linkIndex] = link;
+				this.linkId2Index.put(link.getId(), linkIndex);
+				this.linkFromNode[linkIndex] = i;
+				this.linkToNode[linkIndex] = this.nodeId2Index.get(link.getToNode().getId());
+				this.linkTravelTime[linkIndex] = tC.getLinkTravelTime(link, 0.0, null, null);
+				this.linkCost[linkIndex] = tC.getLinkTravelDisutility(link, 0.0, null, null);
+				numberOfInLinks[this.linkToNode[linkIndex]]++;
+				linkIndex++;
+			}
+		}
+		this.firstOutLink[numberOfNodes] = linkIndex;
+		
+		this.firstInLink = new int[numberOfNodes + 1];
+		for (int i = 0; i < numberOfNodes; i++) {
+			this.firstInLink[i + 1] = this.firstInLink[i] + numberOfInLinks[i];
+		}
+		this.inLinks = new int[numberOfLinks];
+		int[] nextInLink = Arrays.copyOf(this.firstInLink, numberOfNodes);
+		for (int i = 0; i < numberOfLinks; i++) {
+			this.inLinks[nextInLink[this.linkToNode[i]]++] = i;
+		}
+		
+		// choose the landmarks one after the other, each as far as possible from the ones chosen before
+		List<double[]> costsFromLandmarks = new ArrayList<>();
+		List<double[]> costsToLandmarks = new ArrayList<>();
+		if (numberOfNodes > 0) {
+			double[] minCostFromLandmarks = this.calcCostsFromOrTo(0, true);
+			while (costsFromLandmarks.size() < NUMBER_OF_LANDMARKS) {
+				int landmark = -1;
+				for (int i = 0; i < numberOfNodes; i++) {
+					if (minCostFromLandmarks[i] != Double.POSITIVE_INFINITY && minCostFromLandmarks[i] > 0.0 
+							&& (landmark == -1 || minCostFromLandmarks[i] > minCostFromLandmarks[landmark])) {
+						landmark = i;
+					}
+				}
+				if (landmark == -1) {
+					break;
+				}
+				
+				double[] costsFromLandmark = this.calcCostsFromOrTo(landmark, true);
+				costsFromLandmarks.add(costsFromLandmark);
+				costsToLandmarks.add(this.calcCostsFromOrTo(landmark, false));
+				
+				if (costsFromLandmarks.size() == 1) {
+					// the distances to the start node are not needed any longer
+					minCostFromLandmarks = costsFromLandmark.clone();
+				} else {
+					for (int i = 0; i < numberOfNodes; i++) {
+						minCostFromLandmarks[i] = Math.min(minCostFromLandmarks[i], costsFromLandmark[i]);
+					}
+				}
+			}
+		}
+		this.costFromLandmark = costsFromLandmarks.toArray(new double[costsFromLandmarks.size()][]);
+		this.costToLandmark = costsToLandmarks.toArray(new double[costsToLandmarks.size()][]);
+		
+		log.info("Prepared routing on " + numberOfNodes + " nodes and " + numberOfLinks + " links with " + this.costFromLandmark.length + " landmarks.");
+	}
+
+	@Override
+	public Path calcLeastCostPath(Node fromNode, Node toNode, double starttime, Person person, Vehicle vehicle) {
+		int from = this.getIndex(fromNode);
+		int to = this.getIndex(toNode);
+		
+		QueryState state = this.queryState.get();
+		state.begin();
+		state.visit(from, 0.0, -1, this.getLowerBound(from, to));
+		state.heap.add(from, state.lowerBound[from]);
+		
+		while (!state.heap.isEmpty()) {
+			double key = state.heap.peekKey();
+			int node = state.heap.poll();
+			double cost = state.cost[node];
+			if (key > cost + state.lowerBound[node]) {
+				// the node was added again with lower costs
+				continue;
+			}
+			
+			if (node == to) {
+				return this.createPath(state, from, to);
+			}
+			
+			for (int i = this.firstOutLink[node]; i < this.firstOutLink[node + 1]; i++) {
+				int nextNode = this.linkToNode[i];
+				double nextCost = cost + this.linkCost[i];
+				if (!state.isVisited(nextNode)) {
+					state.visit(nextNode, nextCost, i, this.getLowerBound(nextNode, to));
+					state.heap.add(nextNode, nextCost + state.lowerBound[nextNode]);
+				} else if (nextCost < state.cost[nextNode]) {
+					state.cost[nextNode] = nextCost;
+					state.previousLink[nextNode] = i;
+					state.heap.add(nextNode, nextCost + state.lowerBound[nextNode]);
+				} else if (nextCost == state.cost[nextNode] && state.previousLink[nextNode] != -1 
+						&& this.links[state.previousLink[nextNode]].getId().compareTo(this.links[i].getId()) > 0) {
+					// same costs, same tie-break as Dijkstra
+					state.previousLink[nextNode] = i;
+				}
+			}
+		}
+		
+		log.warn("No route was found from node " + fromNode.getId() + " to node " + toNode.getId());
+		return null;
+	}
+	
+	/**
+	 * Routes between the links of two stops. The paths are kept over the iterations, since stop pairs are served by many plans.
+	 * 
+	 * @return The links from the to node of the first link to the from node of the second link, both stop links excluded, or <code>null</code>, if there is no route.
+	 */
+	List<Link> getLinksBetweenStops(Link fromStopLink, Link toStopLink) {
+		int from = this.getIndex(fromStopLink.getToNode());
+		int to = this.getIndex(toStopLink.getFromNode());
+		
+		int[] path = this.stopPairPaths.getPath(from, to);
+		if (path == null) {
+			Path newPath = this.calcLeastCostPath(fromStopLink.getToNode(), toStopLink.getFromNode(), 0.0, null, null);
+			if (newPath == null) {
+				return null;
+			}
+			path = new int[newPath.links.size()];
+			for (int i = 0; i < path.length; i++) {
+				path[i] = this.linkId2Index.get(newPath.links.get(i).getId());
+			}
+			this.stopPairPaths.putPath(from, to, path);
+		}
+		
+		List<Link> pathLinks = new ArrayList<>(path.length);
+		for (int link : path) {
+			pathLinks.add(this.links[link]);
+		}
+		return pathLinks;
+	}
+	
+	PStopPairPathCache getStopPairPathCache() {
+		return this.stopPairPaths;
+	}
+	
+	/**
+	 * Dijkstra was restricted to the network mode car.
+	 */
+	private static boolean isRoutable(Link link) {
+		return link.getAllowedModes().contains(TransportMode.car);
+	}
+	
+	private int getIndex(Node node) {
+		Integer index = this.nodeId2Index.get(node.getId());
+		if (index == null) {
+			throw new RuntimeException("Node " + node.getId() + " is not part of the paratransit network. Aborting...");
+		}
+		return index;
+	}
+	
+	/**
+	 * By the triangle inequality, the costs from a node to the target are at least the difference of their costs from and to each landmark.
+	 */
+	private double getLowerBound(int node, int target) {
+		double lowerBound = 0.0;
+		for (int l = 0; l < this.costFromLandmark.length; l++) {
+			double costFromLandmarkToTarget = this.costFromLandmark[l][target];
+			double costFromLandmarkToNode = this.costFromLandmark[l][node];
+			if (costFromLandmarkToTarget != Double.POSITIVE_INFINITY && costFromLandmarkToNode != Double.POSITIVE_INFINITY) {
+				lowerBound = Math.max(lowerBound, costFromLandmarkToTarget - costFromLandmarkToNode);
+			}
+			double costFromNodeToLandmark = this.costToLandmark[l][node];
+			double costFromTargetToLandmark = this.costToLandmark[l][target];
+			if (costFromNodeToLandmark != Double.POSITIVE_INFINITY && costFromTargetToLandmark != Double.POSITIVE_INFINITY) {
+				lowerBound = Math.max(lowerBound, costFromNodeToLandmark - costFromTargetToLandmark);
+			}
+		}
+		return lowerBound * HEURISTIC_FACTOR;
+	}
+	
+	private Path createPath(QueryState state, int from, int to) {
+		List<Link> pathLinks = new ArrayList<>();
+		List<Node> pathNodes = new ArrayList<>();
+		double travelTime = 0.0;
+		int node = to;
+		pathNodes.add(this.nodes[node]);
+		while (node != from) {
+			int link = state.previousLink[node];
+			pathLinks.add(this.links[link]);
+			travelTime += this.linkTravelTime[link];
+			node = this.linkFromNode[link];
+			pathNodes.add(this.nodes[node]);
+		}
+		Collections.reverse(pathLinks);
+		Collections.reverse(pathNodes);
+		return new Path(pathNodes, pathLinks, travelTime, state.cost[to]);
+	}
+	
+	/**
+	 * Dijkstra on the whole network.
+	 * 
+	 * @param node
+	 * @param forward the costs from the node to all other nodes if true, the costs from all other nodes to the node otherwise
+	 * @return The least costs, {@link Double#POSITIVE_INFINITY} for nodes not connected
+	 */
+	private double[] calcCostsFromOrTo(int node, boolean forward) {
+		double[] costs = new double[this.nodes.length];
+		Arrays.fill(costs, Double.POSITIVE_INFINITY);
+		NodeHeap heap = new NodeHeap();
+		costs[node] = 0.0;
+		heap.add(node, 0.0);
+		
+		while (!heap.isEmpty()) {
+			double cost = heap.peekKey();
+			int currentNode = heap.poll();
+			if (cost > costs[currentNode]) {
+				continue;
+			}
+			if (forward) {
+				for (int i = this.firstOutLink[currentNode]; i < this.firstOutLink[currentNode + 1]; i++) {
+					this.relax(costs, heap, this.linkToNode[i], cost + this.linkCost[i]);
+				}
+			} else {
+				for (int i = this.firstInLink[currentNode]; i < this.firstInLink[currentNode + 1]; i++) {
+					int link = this.inLinks[i];
+					this.relax(costs, heap, this.linkFromNode[link], cost + this.linkCost[link]);
+				}
+			}
+		}
+		return costs;
+	}
+	
+	private void relax(double[] costs, NodeHeap heap, int node, double cost) {
+		if (cost < costs[node]) {
+			costs[node] = cost;
+			heap.add(node, cost);
+		}
+	}
+	
+	/**
+	 * Routes between random pairs of nodes with this router and with the Dijkstra used before and logs all pairs for which the paths differ.
+	 * 
+	 * @param network the network this router was created for
+	 * @param numberOfPairs
+	 * @param seed
+	 * @return The number of pairs with different paths
+	 */
+	int compareWithDijkstra(Network network, int numberOfPairs, long seed) {
+		FreespeedTravelTimeAndDisutility tC = new FreespeedTravelTimeAndDisutility(-6.0, 0.0, 0.0);
+		LeastCostPathCalculator dijkstra = new DijkstraFactory().createPathCalculator(network, tC, tC);
+		((Dijkstra) dijkstra).setModeRestriction(Collections.singleton(TransportMode.car));
+		
+		Random random = new Random(seed);
+		int numberOfDifferences = 0;
+		for (int i = 0; i < numberOfPairs; i++) {
+			Node fromNode = this.nodes[random.nextInt(this.nodes.length)];
+			Node toNode = this.nodes[random.nextInt(this.nodes.length)];
+			Path path = this.calcLeastCostPath(fromNode, toNode, 0.0, null, null);
+			Path dijkstraPath = dijkstra.calcLeastCostPath(fromNode, toNode, 0.0, null, null);
+			
+			List<Id<Link>> linkIds = getLinkIds(path);
+			List<Id<Link>> dijkstraLinkIds = getLinkIds(dijkstraPath);
+			if (linkIds == null ? dijkstraLinkIds != null : !linkIds.equals(dijkstraLinkIds)) {
+				numberOfDifferences++;
+				log.warn("Different paths from node " + fromNode.getId() + " to node " + toNode.getId() + ": " + linkIds + " with costs " + (path == null ? null : path.travelCost) 
+						+ ", Dijkstra " + dijkstraLinkIds + " with costs " + (dijkstraPath == null ? null : dijkstraPath.travelCost));
+			}
+		}
+		log.info(numberOfDifferences + " of " + numberOfPairs + " paths differ from the ones of Dijkstra.");
+		return numberOfDifferences;
+	}
+	
+	private static List<Id<Link>> getLinkIds(Path path) {
+		if (path == null) {
+			return null;
+		}
+		List<Id<Link>> linkIds = new ArrayList<>(path.links.size());
+		for (Link link : path.links) {
+			linkIds.add(link.getId());
+		}
+		return linkIds;
+	}
+	
+	/**
+	 * Compares the paths with the ones of Dijkstra, e.g. after changing the router.
+	 * 
+	 * @param args the network file, optionally followed by the number of node pairs to compare
+	 */
+	public static void main(String[] args) {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		new MatsimNetworkReader(scenario.getNetwork()).readFile(args[0]);
+		int numberOfPairs = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		
+		PNetworkRouter router = new PNetworkRouter(scenario.getNetwork());
+		if (router.compareWithDijkstra(scenario.getNetwork(), numberOfPairs, 4711) > 0) {
+			throw new RuntimeException("The paths differ from the ones of Dijkstra. Aborting...");
+		}
+	}
+	
+	/**
+	 * State of the queries of one thread. Nodes count as visited in the current query only if marked with its number, thus the arrays need not be cleared between queries.
+	 */
+	private static final class QueryState {
+		private final double[] cost;
+		private final double[] lowerBound;
+		private final int[] previousLink;
+		private final int[] visitedInQuery;
+		private final NodeHeap heap = new NodeHeap();
+		private int query = 0;
+		
+		private QueryState(int numberOfNodes) {
+			this.cost = new double[numberOfNodes];
+			this.lowerBound = new double[numberOfNodes];
+			this.previousLink = new int[numberOfNodes];
+			this.visitedInQuery = new int[numberOfNodes];
+		}
+		
+		private void begin() {
+			if (this.query == Integer.MAX_VALUE) {
+				Arrays.fill(this.visitedInQuery, 0);
+				this.query = 0;
+			}
+			this.query++;
+			this.heap.clear();
+		}
+		
+		private boolean isVisited(int node) {
+			return this.visitedInQuery[node] == this.query;
+		}
+		
+		private void visit(int node, double cost, int previousLink, double lowerBound) {
+			this.visitedInQuery[node] = this.query;
+			this.cost[node] = cost;
+			this.previousLink[node] = previousLink;
+			this.lowerBound[node] = lowerBound;
+		}
+	}
+	
+	/**
+	 * Binary min heap of nodes. A node added again with a lower key is not removed, the outdated entry has to be skipped when polled.
+	 */
+	private static final class NodeHeap {
+		private double[] keys = new double[64];
+		private int[] nodes = new int[64];
+		private int size = 0;
+		
+		private boolean isEmpty() {
+			return this.size == 0;
+		}
+		
+		private void clear() {
+			this.size = 0;
+		}
+		
+		private double peekKey() {
+			return this.keys[0];
+		}
+		
+		private void add(int node, double key) {
+			if (this.size == this.keys.length) {
+				this.keys = Arrays.copyOf(this.keys, this.size * 2);
+				this.nodes = Arrays.copyOf(this.nodes, this.size * 2);
+			}
+			int i = this.size++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (this.keys[parent] <= key) {
+					break;
+				}
+				this.keys[i] = this.keys[parent];
+				this.nodes[i] = this.nodes[parent];
+				i = parent;
+			}
+			this.keys[i] = key;
+			this.nodes[i] = node;
+		}
+		
+		private int poll() {
+			int node = this.nodes[0];
+			this.size--;
+			if (this.size > 0) {
+				double key = this.keys[this.size];
+				int lastNode = this.nodes[this.size];
+				int i = 0;
+				while (true) {
+					int child = 2 * i + 1;
+					if (child >= this.size) {
+						break;
+					}
+					if (child + 1 < this.size && this.keys[child + 1] < this.keys[child]) {
+						child++;
+					}
+					if (key <= this.keys[child]) {
+						break;
+					}
+					this.keys[i] = this.keys[child];
+					this.nodes[i] = this.nodes[child];
+					i = child;
+				}
+				this.keys[i] = key;
+				this.nodes[i] = lastNode;
+			}
+			return node;
+		}
+	}
+}
@@ -25,23 +25,43 @@ import org.matsim.contrib.minibus.operator.PPlan;
 import org.matsim.pt.transitSchedule.api.TransitLine;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 
 public interface PRouteProvider {
 	
-	public TransitLine createTransitLineFromOperatorPlan(Id<Operator> operatorId, PPlan plan);
+	/**
+	 * Creates the line of a plan, see {@link PPlan#getLine()}. The departures are recorded in the plan, see {@link PPlan#beginDepartures(TransitLine)}.
+	 * 
+	 * @param lineToReuse the current line of the plan, if created from the same definition of the plan, otherwise null. It is returned, if its routes would not change.
+	 */
+	public TransitLine createTransitLineFromOperatorPlan(Id<Operator> operatorId, PPlan plan, TransitLine lineToReuse);
 
 	public TransitStopFacility getRandomTransitStop(int currentIteration);
 	
 	public TransitStopFacility drawRandomStopFromList(List<TransitStopFacility> choiceSet);
 	
 	public Collection<TransitStopFacility> getAllPStops();
+	
+	public PStopIndex getPStopIndex();
 
 	public TransitLine createEmptyLineFromOperator(Id<Operator> id);
 	
 	public String getRandomPVehicle();
 	
 	public String getSmallestPVehicle();
+	
+	/**
+	 * Writes the state collected from the events of the last iteration, which the next lines created depend on.
+	 */
+	public void writeCheckpoint(DataOutputStream out) throws IOException;
+	
+	/**
+	 * Restores the state written by {@link #writeCheckpoint(DataOutputStream)}.
+	 */
+	public void readCheckpoint(DataInputStream in) throws IOException;
 
 }
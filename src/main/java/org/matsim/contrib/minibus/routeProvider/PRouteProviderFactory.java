@@ -56,7 +56,7 @@ public final class PRouteProviderFactory {
 		RandomPVehicleProvider randomPVehicleProvider = new RandomPVehicleProvider(pConfig);
 
 		// in this case, we allow for one possible routing algorithm only
-		return new BackAndForthScheduleProvider(pStopsOnly, pConfig.getPNetwork(), randomStopProvider, randomPVehicleProvider, pConfig.getVehicleMaximumVelocity(), pConfig.getPlanningSpeedFactor(), pConfig.getDriverRestTime(), pConfig.getPIdentifier(), eventsManager, pConfig.getMode(), pConfig.getPVehicleSettings());
+		return new BackAndForthScheduleProvider(pStopsOnly, pConfig.getPNetwork(), pConfig.getPNetworkRouter(), pConfig.getPStopTwins(), randomStopProvider, randomPVehicleProvider, pConfig.getVehicleMaximumVelocity(), pConfig.getPlanningSpeedFactor(), pConfig.getDriverRestTime(), pConfig.getPIdentifier(), eventsManager, pConfig.getMode(), pConfig.getPVehicleTypeRegistry());
 
 	}
 }
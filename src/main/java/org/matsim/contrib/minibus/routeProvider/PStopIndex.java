@@ -0,0 +1,94 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.routeProvider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Spatial index of the paratransit stops. The stops are put into an {@link STRtree} once. A query only tests the stops within the envelope of the geometry against the prepared geometry.
+ * The tree is built in the constructor and not altered afterwards, thus it may be queried by several threads.
+ * 
+ * @author manserpa
+ *
+ */
+public final class PStopIndex {
+	
+	private final static Logger log = Logger.getLogger(PStopIndex.class);
+	
+	private final List<TransitStopFacility> stops;
+	private final STRtree tree = new STRtree();
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+	
+	PStopIndex(Collection<TransitStopFacility> stops) {
+		this.stops = new ArrayList<>(stops);
+		for (int i = 0; i < this.stops.size(); i++) {
+			TransitStopFacility stop = this.stops.get(i);
+			this.tree.insert(new Envelope(stop.getCoord().getX(), stop.getCoord().getX(), stop.getCoord().getY(), stop.getCoord().getY()), i);
+		}
+		this.tree.build();
+	}
+	
+	/**
+	 * @param geometry
+	 * @return All stops within the geometry in the order of {@link PRouteProvider#getAllPStops()}
+	 */
+	public List<TransitStopFacility> getStopsWithin(Geometry geometry) {
+		List<?> candidates = this.tree.query(geometry.getEnvelopeInternal());
+		if (candidates.isEmpty()) {
+			return Collections.emptyList();
+		}
+		
+		PreparedGeometry preparedGeometry = PreparedGeometryFactory.prepare(geometry);
+		List<Integer> indicesWithin = new ArrayList<>();
+		for (Object candidate : candidates) {
+			Integer index = (Integer) candidate;
+			Coordinate coordinate = new Coordinate(this.stops.get(index).getCoord().getX(), this.stops.get(index).getCoord().getY());
+			if (preparedGeometry.contains(this.geometryFactory.createPoint(coordinate))) {
+				indicesWithin.add(index);
+			}
+		}
+		// the tree does not keep the order of the stops
+		Collections.sort(indicesWithin);
+		
+		List<TransitStopFacility> stopsWithin = new ArrayList<>(indicesWithin.size());
+		for (Integer index : indicesWithin) {
+			stopsWithin.add(this.stops.get(index));
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Tested " + candidates.size() + " out of " + this.stops.size() + " stops, " + stopsWithin.size() + " of them are within the geometry.");
+		}
+		return stopsWithin;
+	}
+}
@@ -0,0 +1,115 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.routeProvider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.events.handler.EventHandler;
+
+/**
+ * Keeps the paths routed between two stops as arrays of link indices of the {@link PNetworkRouter}, keyed by the indices of the nodes the path runs between, i.e. the to node of the first and the from node of the second stop link.
+ * The paratransit network does not change during a run, thus the paths stay valid over all iterations. The number of paths kept is limited, the least recently used ones are dropped first.
+ * <p>
+ * Thread-safe, the paths are spread over several segments, each locked on its own.
+ * 
+ * @author manserpa
+ *
+ */
+final class PStopPairPathCache implements EventHandler {
+	
+	private final static Logger log = Logger.getLogger(PStopPairPathCache.class);
+	
+	private static final int NUMBER_OF_SEGMENTS = 16;
+	
+	private final Map<Long, int[]>[] segments;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	@SuppressWarnings("unchecked")
+	PStopPairPathCache(int maxNumberOfPaths) {
+		final int maxNumberOfPathsPerSegment = Math.max(1, maxNumberOfPaths / NUMBER_OF_SEGMENTS);
+		this.segments = new Map[NUMBER_OF_SEGMENTS];
+		for (int i = 0; i < NUMBER_OF_SEGMENTS; i++) {
+			this.segments[i] = new LinkedHashMap<Long, int[]>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+					if (this.size() > maxNumberOfPathsPerSegment) {
+						PStopPairPathCache.this.evictions.increment();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+	}
+	
+	/**
+	 * @return The link indices of the path between the two nodes or <code>null</code>, if not kept.
+	 */
+	int[] getPath(int fromNodeIndex, int toNodeIndex) {
+		long key = getKey(fromNodeIndex, toNodeIndex);
+		Map<Long, int[]> segment = this.getSegment(key);
+		int[] path;
+		synchronized (segment) {
+			path = segment.get(key);
+		}
+		if (path == null) {
+			this.misses.increment();
+		} else {
+			this.hits.increment();
+		}
+		return path;
+	}
+	
+	void putPath(int fromNodeIndex, int toNodeIndex, int[] path) {
+		long key = getKey(fromNodeIndex, toNodeIndex);
+		Map<Long, int[]> segment = this.getSegment(key);
+		synchronized (segment) {
+			segment.put(key, path);
+		}
+	}
+	
+	private Map<Long, int[]> getSegment(long key) {
+		int hash = Long.hashCode(key);
+		hash ^= hash >>> 16;
+		return this.segments[(hash & Integer.MAX_VALUE) % NUMBER_OF_SEGMENTS];
+	}
+	
+	private static long getKey(int fromNodeIndex, int toNodeIndex) {
+		return ((long) fromNodeIndex << 32) | (toNodeIndex & 0xFFFFFFFFL);
+	}
+
+	@Override
+	public void reset(int iteration) {
+		long hits = this.hits.sumThenReset();
+		long misses = this.misses.sumThenReset();
+		long evictions = this.evictions.sumThenReset();
+		if (hits + misses > 0) {
+			log.info("Stop pair paths since the last iteration: " + hits + " hits, " + misses + " misses, " + evictions + " evictions.");
+		}
+	}
+}
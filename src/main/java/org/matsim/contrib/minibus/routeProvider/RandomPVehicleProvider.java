@@ -1,12 +1,8 @@
 package org.matsim.contrib.minibus.routeProvider;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-
 import org.matsim.contrib.minibus.PConfigGroup;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
-import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
 
 /**
  *
@@ -17,26 +13,20 @@ public class RandomPVehicleProvider {
 	
 	//private final static Logger log = Logger.getLogger(RandomPVehicleProvider.class);
 	
-	private final Collection<PVehicleSettings> pVehicleSettings;
+	private final PVehicleTypeRegistry pVehicleTypes;
 
 	public RandomPVehicleProvider(PConfigGroup pConfig){
-		this.pVehicleSettings = pConfig.getPVehicleSettings();
+		this.pVehicleTypes = pConfig.getPVehicleTypeRegistry();
 	}
 	
 	public String getRandomPVehicle() {
 		
-		List<String> pVehicleTypes = new ArrayList<>();
-		
-		for (PVehicleSettings settings : this.pVehicleSettings) {
-			pVehicleTypes.add(settings.getPVehicleName());
-		}
-		
-		int i = pVehicleTypes.size();
+		int i = this.pVehicleTypes.size();
 		
 		// returns a random vehicle type
-		for (String pVehicleType : pVehicleTypes) {
-			if(MatsimRandom.getRandom().nextDouble() < 1.0 / i){
-				return pVehicleType;
+		for (int index = 0; index < this.pVehicleTypes.size(); index++) {
+			if(PRandom.getRandom().nextDouble() < 1.0 / i){
+				return this.pVehicleTypes.getName(index);
 			}
 			i--;
 		}
@@ -48,19 +38,19 @@ public class RandomPVehicleProvider {
 		
 		double minCapacity = 1000;
 		
-		for (PVehicleSettings settings : this.pVehicleSettings) {
+		for (int index = 0; index < this.pVehicleTypes.size(); index++) {
 			
-			double capacity = settings.getCapacityPerVehicle();
+			double capacity = this.pVehicleTypes.getCapacityPerVehicle(index);
 			
 			if (capacity < minCapacity)
 				minCapacity = capacity;
 			
 		}
 		
-		for (PVehicleSettings settings : this.pVehicleSettings) {
+		for (int index = 0; index < this.pVehicleTypes.size(); index++) {
 			
-			if(settings.getCapacityPerVehicle() == minCapacity)
-				return settings.getPVehicleName();
+			if(this.pVehicleTypes.getCapacityPerVehicle(index) == minCapacity)
+				return this.pVehicleTypes.getName(index);
 			
 		}
 		
@@ -27,7 +27,7 @@ import org.matsim.api.core.v01.population.Population;
 import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.contrib.minibus.PConstants;
 import org.matsim.contrib.minibus.genericUtils.GridNode;
-import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.contrib.minibus.genericUtils.PRandom;
 import org.matsim.core.utils.io.IOUtils;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
@@ -40,6 +40,7 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 /**
@@ -54,12 +55,9 @@ final class RandomStopProvider {
 	private final static Logger log = Logger.getLogger(RandomStopProvider.class);
 	
 	private final double gridSize;
-	private LinkedHashMap<TransitStopFacility, Double> stops2Weight;
-	private double totalWeight = 0.0;
+	// replaced as a whole, thus threads drawing stops never see weights being updated
+	private volatile StopWeights weights = null;
 	private int lastIteration;
-	private LinkedHashMap<String, Integer> gridNodeId2ActsCountMap;
-	private double thresholdActivitiesInGrid = 0.0;
-	private List<Integer> sortedGridNodeId2ActsCountMap;
 	
 	private final Population population;
 	private final TransitSchedule pStopsOnly;
@@ -76,28 +74,28 @@ final class RandomStopProvider {
 		this.outputDir = outputDir;		
 	}
 	
-	private void updateWeights(){
-		this.stops2Weight = new LinkedHashMap<>();
-		this.totalWeight = 0.0;
+	private StopWeights createWeights(){
+		LinkedHashMap<TransitStopFacility, Double> stops2Weight = new LinkedHashMap<>();
+		double totalWeight = 0.0;
 		double numberOfActsInPlans = 0;
 		
 		// count acts for all grid nodes
-		this.gridNodeId2ActsCountMap = new LinkedHashMap<>();
+		LinkedHashMap<String, Integer> gridNodeId2ActsCountMap = new LinkedHashMap<>();
 		for (Person person : this.population.getPersons().values()) {
 			for (PlanElement pE : person.getSelectedPlan().getPlanElements()) {
 				if (pE instanceof Activity) {
 					Activity act = (Activity) pE;
 					numberOfActsInPlans++;
 					String gridNodeId = GridNode.getGridNodeIdForCoord(act.getCoord(), this.gridSize);
-					if (this.gridNodeId2ActsCountMap.get(gridNodeId) == null) {
-						this.gridNodeId2ActsCountMap.put(gridNodeId, 0);
+					if (gridNodeId2ActsCountMap.get(gridNodeId) == null) {
+						gridNodeId2ActsCountMap.put(gridNodeId, 0);
 					}
-					this.gridNodeId2ActsCountMap.put(gridNodeId, this.gridNodeId2ActsCountMap.get(gridNodeId) + 1);
+					gridNodeId2ActsCountMap.put(gridNodeId, gridNodeId2ActsCountMap.get(gridNodeId) + 1);
 				}
 			}
 		}
 		
-		this.sortedGridNodeId2ActsCountMap = new ArrayList<>();
+		List<Integer> sortedGridNodeId2ActsCountMap = new ArrayList<>();
 		
 		// sort facilities for all grid nodes
 		LinkedHashMap<String, List<TransitStopFacility>> gridNodeId2StopsMap = new LinkedHashMap<>();
@@ -106,24 +104,24 @@ final class RandomStopProvider {
 			if (gridNodeId2StopsMap.get(gridNodeId) == null) {
 				gridNodeId2StopsMap.put(gridNodeId, new LinkedList<TransitStopFacility>());
 				
-				if(this.gridNodeId2ActsCountMap.get(gridNodeId) != null)
-					this.sortedGridNodeId2ActsCountMap.add(this.gridNodeId2ActsCountMap.get(gridNodeId));
+				if(gridNodeId2ActsCountMap.get(gridNodeId) != null)
+					sortedGridNodeId2ActsCountMap.add(gridNodeId2ActsCountMap.get(gridNodeId));
 			}
 			gridNodeId2StopsMap.get(gridNodeId).add(stop);
 		}
 		
-		Collections.sort(this.sortedGridNodeId2ActsCountMap);
+		Collections.sort(sortedGridNodeId2ActsCountMap);
 		
-		int percentile60 = (int) (0.25 * this.sortedGridNodeId2ActsCountMap.size());
+		int percentile60 = (int) (0.25 * sortedGridNodeId2ActsCountMap.size());
 		
-		this.thresholdActivitiesInGrid = this.sortedGridNodeId2ActsCountMap.get(percentile60);
+		double thresholdActivitiesInGrid = sortedGridNodeId2ActsCountMap.get(percentile60);
 
 		
 		// associate the number of acts per grid node with the corresponding transit stop facilities
 		for (Entry<String, List<TransitStopFacility>> stopsEntry : gridNodeId2StopsMap.entrySet()) {
 			double actsCountForThisGridNodeId = 0; 
-			if (this.gridNodeId2ActsCountMap.get(stopsEntry.getKey()) != null) {
-				actsCountForThisGridNodeId = this.gridNodeId2ActsCountMap.get(stopsEntry.getKey()).doubleValue();
+			if (gridNodeId2ActsCountMap.get(stopsEntry.getKey()) != null) {
+				actsCountForThisGridNodeId = gridNodeId2ActsCountMap.get(stopsEntry.getKey()).doubleValue();
 			}
 			
 			// no acts in this area - ignore the stops in this area as well
@@ -134,31 +132,43 @@ final class RandomStopProvider {
 			// divide count by the number of associated stops, thus neglecting a higher probability for stops located in a dense network area
 			actsCountForThisGridNodeId = actsCountForThisGridNodeId / stopsEntry.getValue().size();
 			for (TransitStopFacility stop : stopsEntry.getValue()) {
-				this.stops2Weight.put(stop, actsCountForThisGridNodeId);
-				this.totalWeight += actsCountForThisGridNodeId;
+				stops2Weight.put(stop, actsCountForThisGridNodeId);
+				totalWeight += actsCountForThisGridNodeId;
 			}
 		}
 		
-		log.info("Initialized with " + this.stops2Weight.size() + " of " + this.pStopsOnly.getFacilities().values().size() + " stops covering " + (this.totalWeight / numberOfActsInPlans) + " percent of activities");
+		log.info("Initialized with " + stops2Weight.size() + " of " + this.pStopsOnly.getFacilities().values().size() + " stops covering " + (totalWeight / numberOfActsInPlans) + " percent of activities");
+		return new StopWeights(stops2Weight, totalWeight, gridNodeId2ActsCountMap, thresholdActivitiesInGrid, sortedGridNodeId2ActsCountMap);
 	}
 
 
-	public TransitStopFacility getRandomTransitStop(int currentIteration) {
+	/**
+	 * Updates the weights once per iteration. Synchronized, since operators may be replanned in parallel.
+	 * 
+	 * @param currentIteration
+	 */
+	private synchronized void updateWeightsIfNecessary(int currentIteration) {
 		if (this.lastIteration != currentIteration) {
-			this.updateWeights();
-			this.writeToFile(currentIteration);
+			StopWeights weights = this.createWeights();
+			this.weights = weights;
+			this.writeToFile(weights, currentIteration);
 			this.lastIteration = currentIteration;
 			
-			if (this.totalWeight == 0.0) {
+			if (weights.totalWeight == 0.0) {
 				log.info("No weights found. Probably no population given. Falling back to old behavior.");
 			}
 		}
+	}
+
+	public TransitStopFacility getRandomTransitStop(int currentIteration) {
+		this.updateWeightsIfNecessary(currentIteration);
+		StopWeights weights = this.weights;
 		
-		if (this.totalWeight == 0.0) {
+		if (weights.totalWeight == 0.0) {
 			// old version
 			int i = this.pStopsOnly.getFacilities().size();
 			for (TransitStopFacility stop : this.pStopsOnly.getFacilities().values()) {
-				if(MatsimRandom.getRandom().nextDouble() < 1.0 / i){
+				if(PRandom.getRandom().nextDouble() < 1.0 / i){
 					return stop;
 				}
 				i--;
@@ -166,9 +176,9 @@ final class RandomStopProvider {
 			return null;
 		}
 		
-		double rnd = MatsimRandom.getRandom().nextDouble() * this.totalWeight;
+		double rnd = PRandom.getRandom().nextDouble() * weights.totalWeight;
 		double accumulatedWeight = 0.0;
-		for (Entry<TransitStopFacility, Double> stop2WeightEntry : this.stops2Weight.entrySet()) {
+		for (Entry<TransitStopFacility, Double> stop2WeightEntry : weights.stops2Weight.entrySet()) {
 			accumulatedWeight += stop2WeightEntry.getValue();
 			if (accumulatedWeight >= rnd) {
 				return stop2WeightEntry.getKey();
@@ -186,20 +196,18 @@ final class RandomStopProvider {
 	 * @return
 	 */
 	public TransitStopFacility drawRandomStopFromList(List<TransitStopFacility> choiceSet) {
-		if (this.stops2Weight == null) {
-			updateWeights();
-		}
+		StopWeights weights = this.getWeights();
 		double totalWeightOfChoiceSet = 0.0;
 		for (TransitStopFacility stop : choiceSet) {
-			if (this.stops2Weight.get(stop) != null) {
-				totalWeightOfChoiceSet += this.stops2Weight.get(stop);
+			if (weights.stops2Weight.get(stop) != null) {
+				totalWeightOfChoiceSet += weights.stops2Weight.get(stop);
 			}
 		}
 		
 		if (totalWeightOfChoiceSet == 0.0) {
 			// old version
 			int i = 0;
-			double rndTreshold = MatsimRandom.getRandom().nextDouble() * choiceSet.size();
+			double rndTreshold = PRandom.getRandom().nextDouble() * choiceSet.size();
 			for (TransitStopFacility stop : choiceSet) {
 				i++;
 				if(rndTreshold <= i){
@@ -210,10 +218,10 @@ final class RandomStopProvider {
 		}
 
 		double accumulatedWeightOfChoiceSet = 0.0;
-		double rndTreshold = MatsimRandom.getRandom().nextDouble() * totalWeightOfChoiceSet;
+		double rndTreshold = PRandom.getRandom().nextDouble() * totalWeightOfChoiceSet;
 		for (TransitStopFacility stop : choiceSet) {
-			if (this.stops2Weight.get(stop) != null) {
-				accumulatedWeightOfChoiceSet += this.stops2Weight.get(stop);
+			if (weights.stops2Weight.get(stop) != null) {
+				accumulatedWeightOfChoiceSet += weights.stops2Weight.get(stop);
 			}
 			if (rndTreshold <= accumulatedWeightOfChoiceSet) {
 				return stop;
@@ -231,21 +239,35 @@ final class RandomStopProvider {
 	 * @return
 	 */
 	public boolean hasHighNumberOfActivitiesInGrid(String grid) {
-		if (this.stops2Weight == null) {
-			updateWeights();
-		}
+		StopWeights weights = this.getWeights();
 		
-		if(this.gridNodeId2ActsCountMap.get(grid) == null)
+		if(weights.gridNodeId2ActsCountMap.get(grid) == null)
 			return false;
 		
-		if(this.gridNodeId2ActsCountMap.get(grid) > this.thresholdActivitiesInGrid)	
+		if(weights.gridNodeId2ActsCountMap.get(grid) > weights.thresholdActivitiesInGrid)	
 			return true;
 		else
 			return false;
 		
 	}
 	
-	private void writeToFile(int currentIteration) {
+	/**
+	 * @return The weights of the current iteration, created if no stop was drawn by {@link #getRandomTransitStop(int)} so far
+	 */
+	private StopWeights getWeights() {
+		StopWeights weights = this.weights;
+		if (weights == null) {
+			synchronized (this) {
+				if (this.weights == null) {
+					this.weights = this.createWeights();
+				}
+				weights = this.weights;
+			}
+		}
+		return weights;
+	}
+	
+	private void writeToFile(StopWeights weights, int currentIteration) {
 		if (this.outputDir == null) {
 			return;
 		}
@@ -258,8 +280,8 @@ final class RandomStopProvider {
 			
 			BufferedWriter writer = IOUtils.getBufferedWriter(outputDir + currentIteration + ".activitiesInGrid.txt.gz");
 			writer.write("activities; 85percentile"); writer.newLine();
-			for (int thisGrid : this.sortedGridNodeId2ActsCountMap) {
-				writer.write(thisGrid + "; " + this.thresholdActivitiesInGrid); writer.newLine();
+			for (int thisGrid : weights.sortedGridNodeId2ActsCountMap) {
+				writer.write(thisGrid + "; " + weights.thresholdActivitiesInGrid); writer.newLine();
 			}
 			
 			writer.flush();
@@ -269,4 +291,23 @@ final class RandomStopProvider {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Weights of one iteration. Not changed after creation.
+	 */
+	private static final class StopWeights {
+		private final Map<TransitStopFacility, Double> stops2Weight;
+		private final double totalWeight;
+		private final Map<String, Integer> gridNodeId2ActsCountMap;
+		private final double thresholdActivitiesInGrid;
+		private final List<Integer> sortedGridNodeId2ActsCountMap;
+		
+		private StopWeights(Map<TransitStopFacility, Double> stops2Weight, double totalWeight, Map<String, Integer> gridNodeId2ActsCountMap, double thresholdActivitiesInGrid, List<Integer> sortedGridNodeId2ActsCountMap) {
+			this.stops2Weight = Collections.unmodifiableMap(stops2Weight);
+			this.totalWeight = totalWeight;
+			this.gridNodeId2ActsCountMap = Collections.unmodifiableMap(gridNodeId2ActsCountMap);
+			this.thresholdActivitiesInGrid = thresholdActivitiesInGrid;
+			this.sortedGridNodeId2ActsCountMap = Collections.unmodifiableList(sortedGridNodeId2ActsCountMap);
+		}
+	}
 }
@@ -21,10 +21,9 @@ package org.matsim.contrib.minibus.routeProvider;
 
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
 import org.matsim.contrib.minibus.genericUtils.GridNode;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.PPlan;
@@ -32,14 +31,12 @@ import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.population.routes.NetworkRoute;
 import org.matsim.core.population.routes.RouteUtils;
-import org.matsim.core.router.Dijkstra;
-import org.matsim.core.router.DijkstraFactory;
-import org.matsim.core.router.costcalculators.FreespeedTravelTimeAndDisutility;
-import org.matsim.core.router.util.LeastCostPathCalculator;
-import org.matsim.core.router.util.LeastCostPathCalculator.Path;
 import org.matsim.pt.transitSchedule.api.*;
 import org.matsim.vehicles.Vehicle;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -54,7 +51,7 @@ final class TimeAwareComplexCircleScheduleProvider implements PRouteProvider{
 	public final static String NAME = "TimeAwareComplexCircleScheduleProvider";
 	
 	private final Network net;
-	private final LeastCostPathCalculator routingAlgo;
+	private final PNetworkRouter router;
 	private final TransitSchedule scheduleWithStopsOnly;
 	private final RandomStopProvider randomStopProvider;
 	private final RandomPVehicleProvider randomPVehicleProvider;
@@ -65,24 +62,17 @@ final class TimeAwareComplexCircleScheduleProvider implements PRouteProvider{
 	
 	private final TimeAwareComplexCircleScheduleProviderHandler handler;
 	private final String transportMode;
-	private final Collection<PVehicleSettings> pVehicleSettings;
-	private PPlan pOperatorPlan;
+	private final PVehicleTypeRegistry pVehicleTypes;
+	private final PStopIndex pStopIndex;
 	
-	public TimeAwareComplexCircleScheduleProvider(TransitSchedule scheduleWithStopsOnly, Network network, RandomStopProvider randomStopProvider, RandomPVehicleProvider randomPVehicleProvider, double vehicleMaximumVelocity, double planningSpeedFactor, double driverRestTime, String pIdentifier, EventsManager eventsManager, final String transportMode, Collection<PVehicleSettings> pVehicleSettings) {
+	public TimeAwareComplexCircleScheduleProvider(TransitSchedule scheduleWithStopsOnly, Network network, PNetworkRouter router, RandomStopProvider randomStopProvider, RandomPVehicleProvider randomPVehicleProvider, double vehicleMaximumVelocity, double planningSpeedFactor, double driverRestTime, String pIdentifier, EventsManager eventsManager, final String transportMode, PVehicleTypeRegistry pVehicleTypes) {
 		
 		this.net = network;
-		this.pVehicleSettings = pVehicleSettings;
+		this.pVehicleTypes = pVehicleTypes;
 		this.randomPVehicleProvider = randomPVehicleProvider;
 		this.scheduleWithStopsOnly = scheduleWithStopsOnly;
-		FreespeedTravelTimeAndDisutility tC = new FreespeedTravelTimeAndDisutility(-6.0, 0.0, 0.0); // Here, it may make sense to use the variable cost parameters given in the config. Ihab/Daniel may'14
-		this.routingAlgo = new DijkstraFactory().createPathCalculator(this.net, tC, tC);
-		@SuppressWarnings("serial")
-		Set<String> modes =  new HashSet<String>(){{
-			// this is the networkmode and explicitly not the transportmode
-			add(TransportMode.car);
-//			add(TransportMode.pt);
-			}};
-		((Dijkstra)this.routingAlgo).setModeRestriction(modes);
+		this.pStopIndex = new PStopIndex(scheduleWithStopsOnly.getFacilities().values());
+		this.router = router;
 		
 		// register all stops by their corresponding link id
 		this.linkId2StopFacilityMap = new LinkedHashMap<>();
@@ -104,12 +94,12 @@ final class TimeAwareComplexCircleScheduleProvider implements PRouteProvider{
 	}
 	
 	@Override
-	public TransitLine createTransitLineFromOperatorPlan(Id<Operator> operatorId, PPlan plan){
-		this.pOperatorPlan = plan;
-		return this.createTransitLine(Id.create(operatorId, TransitLine.class), plan.getStartTime(), plan.getEndTime(), plan.getNVehicles(), plan.getStopsToBeServed(), plan.getPVehicleType(), Id.create(plan.getId(), TransitRoute.class), plan.getId());
+	public TransitLine createTransitLineFromOperatorPlan(Id<Operator> operatorId, PPlan plan, TransitLine lineToReuse){
+		// lines are always created anew
+		return this.createTransitLine(plan, Id.create(operatorId, TransitLine.class), plan.getStartTime(), plan.getEndTime(), plan.getNVehicles(), plan.getStopsToBeServed(), plan.getPVehicleType(), Id.create(plan.getId(), TransitRoute.class), plan.getId());
 	}
 	
-	private TransitLine createTransitLine(Id<TransitLine> pLineId, double startTime, double endTime, int numberOfVehicles, ArrayList<TransitStopFacility> stopsToBeServed, String pVehicleType, Id<TransitRoute> routeId, Id<PPlan> planId){
+	private TransitLine createTransitLine(PPlan pOperatorPlan, Id<TransitLine> pLineId, double startTime, double endTime, int numberOfVehicles, ArrayList<TransitStopFacility> stopsToBeServed, String pVehicleType, Id<TransitRoute> routeId, Id<PPlan> planId){
 		
 		// initialize
 		TransitLine line = this.scheduleWithStopsOnly.getFactory().createTransitLine(pLineId);			
@@ -124,13 +114,22 @@ final class TimeAwareComplexCircleScheduleProvider implements PRouteProvider{
 		int n = 0;
 		
 		int headway = (int) (this.driverRestTime + transitRoute.getStops().get(transitRoute.getStops().size() - 1).getDepartureOffset()) / numberOfVehicles;
+		pOperatorPlan.beginDepartures(line);
 		for (int i = 0; i < numberOfVehicles; i++) {
+			// all departures of a slot are served by the same vehicle
+			Id<Vehicle> vehicleId = null;
+			int vehicleIndex = -1;
 			for (double j = startTime + i * headway; j <= endTime; ) {
 				Departure departure = this.scheduleWithStopsOnly.getFactory().createDeparture(Id.create(n, Departure.class), j);
 				
-				departure.setVehicleId(Id.create(transitRoute.getId().toString() + "-" + i +"_" + pVehicleType, Vehicle.class));
+				if (vehicleId == null) {
+					vehicleId = Id.create(transitRoute.getId().toString() + "-" + i +"_" + pVehicleType, Vehicle.class);
+					vehicleIndex = pOperatorPlan.addVehicle(vehicleId);
+				}
+				departure.setVehicleId(vehicleId);
 				//departure.setVehicleId(Id.create(vehicleIdNew + "-" + i, Vehicle.class));
 				transitRoute.addDeparture(departure);
+				pOperatorPlan.addDeparture(j, i, vehicleIndex);
 				j += transitRoute.getStops().get(transitRoute.getStops().size() - 1).getDepartureOffset() + this.driverRestTime;
 				n++;
 			}
@@ -168,9 +167,9 @@ final class TimeAwareComplexCircleScheduleProvider implements PRouteProvider{
 			
 			if(lastLinkId != null){
 				links.add(this.net.getLinks().get(lastLinkId));
-				Path path = this.routingAlgo.calcLeastCostPath(this.net.getLinks().get(lastLinkId).getToNode(), this.net.getLinks().get(stop.getLinkId()).getFromNode(), 0.0, null, null);
+				List<Link> path = this.router.getLinksBetweenStops(this.net.getLinks().get(lastLinkId), this.net.getLinks().get(stop.getLinkId()));
 
-				for (Link link : path.links) {
+				for (Link link : path) {
 					links.add(link);
 				}
 			}
@@ -188,13 +187,7 @@ final class TimeAwareComplexCircleScheduleProvider implements PRouteProvider{
 		
 		
 		// get capacity of the vehicle
-		double capacity = 0.0;
-		
-		for (PVehicleSettings pVS : this.pVehicleSettings) {
-            if (pVehicleType.equals(pVS.getPVehicleName())) {
-            	capacity = pVS.getCapacityPerVehicle() * 10;
-            }
-        }
+		double capacity = this.pVehicleTypes.getCapacityPerVehicle(this.pVehicleTypes.getIndex(pVehicleType)) * 10;
 		
 		// first stop
 		TransitRouteStop routeStop;
@@ -334,6 +327,21 @@ final class TimeAwareComplexCircleScheduleProvider implements PRouteProvider{
 		return this.scheduleWithStopsOnly.getFacilities().values();
 	}
 	
+	@Override
+	public PStopIndex getPStopIndex() {
+		return this.pStopIndex;
+	}
+	
+	@Override
+	public void writeCheckpoint(DataOutputStream out) throws IOException {
+		this.handler.writeCheckpoint(out);
+	}
+	
+	@Override
+	public void readCheckpoint(DataInputStream in) throws IOException {
+		this.handler.readCheckpoint(in);
+	}
+	
 	private double modifyRunningTimeAccordingToTheLastIterationIfPossible(double runningTime, double offsetFromLastIteration){
 		if (offsetFromLastIteration != -Double.MAX_VALUE) {
 			runningTime = offsetFromLastIteration;
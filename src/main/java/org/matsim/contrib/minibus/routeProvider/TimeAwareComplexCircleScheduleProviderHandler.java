@@ -29,8 +29,12 @@ import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 import org.matsim.vehicles.Vehicle;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 
 /**
  * @author aneumann, not used in this repository
@@ -151,6 +155,65 @@ final class TimeAwareComplexCircleScheduleProviderHandler implements TransitDriv
 		}
 	}
 	
+	/**
+	 * Writes the offsets and the stops served per route, i.e. the data of the last iteration used when creating the next lines. Trips not completed by a following trip are not part of it anyway.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeCheckpoint(DataOutputStream out) throws IOException {
+		out.writeInt(this.routeId2StatsContrainerMap.size());
+		for (Entry<Id<TransitRoute>, ArrayList<TinyStatsContainer>> entry : this.routeId2StatsContrainerMap.entrySet()) {
+			out.writeUTF(entry.getKey().toString());
+			out.writeInt(entry.getValue().size());
+			for (TinyStatsContainer statsContainer : entry.getValue()) {
+				out.writeInt(statsContainer.numberOfEntries);
+				out.writeDouble(statsContainer.sumOfEntries);
+			}
+		}
+		out.writeInt(this.routeId2TransitStopList.size());
+		for (Entry<Id<TransitRoute>, ArrayList<Id<TransitStopFacility>>> entry : this.routeId2TransitStopList.entrySet()) {
+			out.writeUTF(entry.getKey().toString());
+			out.writeInt(entry.getValue().size());
+			for (Id<TransitStopFacility> stopId : entry.getValue()) {
+				out.writeUTF(stopId.toString());
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the data of the last iteration with the one of the checkpoint. Called before the first iteration resumed, the data is cleared by the next reset of the events handlers as usual.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	void readCheckpoint(DataInputStream in) throws IOException {
+		this.reset(0);
+		int numberOfRoutes = in.readInt();
+		for (int i = 0; i < numberOfRoutes; i++) {
+			Id<TransitRoute> routeId = Id.create(in.readUTF(), TransitRoute.class);
+			int numberOfStops = in.readInt();
+			ArrayList<TinyStatsContainer> statsList = new ArrayList<>(numberOfStops);
+			for (int j = 0; j < numberOfStops; j++) {
+				TinyStatsContainer statsContainer = new TinyStatsContainer();
+				statsContainer.numberOfEntries = in.readInt();
+				statsContainer.sumOfEntries = in.readDouble();
+				statsList.add(statsContainer);
+			}
+			this.routeId2StatsContrainerMap.put(routeId, statsList);
+		}
+		numberOfRoutes = in.readInt();
+		for (int i = 0; i < numberOfRoutes; i++) {
+			Id<TransitRoute> routeId = Id.create(in.readUTF(), TransitRoute.class);
+			int numberOfStops = in.readInt();
+			ArrayList<Id<TransitStopFacility>> stopList = new ArrayList<>(numberOfStops);
+			for (int j = 0; j < numberOfStops; j++) {
+				stopList.add(Id.create(in.readUTF(), TransitStopFacility.class));
+			}
+			this.routeId2TransitStopList.put(routeId, stopList);
+		}
+	}
+	
 	public Id<TransitStopFacility> getServedStopsInLastIteration(Id<TransitRoute> routeID, int stopIndex) {
 		if (this.routeId2TransitStopList.get(routeID) == null) {
 			return null;
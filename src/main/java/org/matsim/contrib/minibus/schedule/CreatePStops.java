@@ -39,6 +39,8 @@ import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 import org.opengis.feature.simple.SimpleFeature;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
@@ -70,19 +72,154 @@ public final class CreatePStops{
 	private final HashSet<Link> wayBack = new HashSet<>();
 	private final HashSet<Link> linksToRemove = new HashSet<>();
 	private final HashSet<Link> linksToAdd = new HashSet<>();
+	private final HashMap<Id<TransitStopFacility>, Id<TransitStopFacility>> stopId2TwinId = new HashMap<>();
 	
 	public static TransitSchedule createPStops(Network network, PConfigGroup pConfigGroup){
 		return createPStops(network, pConfigGroup, null);
 	}
 
 	public static TransitSchedule createPStops(Network network, PConfigGroup pConfigGroup, TransitSchedule realTransitSchedule) {
+		return createPStops(network, pConfigGroup, realTransitSchedule, null);
+	}
+
+	/**
+	 * @param linksAddedToNetwork if not null, the links added to the network for the stops are collected in here
+	 */
+	public static TransitSchedule createPStops(Network network, PConfigGroup pConfigGroup, TransitSchedule realTransitSchedule, Collection<Link> linksAddedToNetwork) {
 		CreatePStops cS = new CreatePStops(network, pConfigGroup, realTransitSchedule);
 		// this
 		cS.run();
 		new NetworkWriter(pConfigGroup.getPNetwork()).write("pNetwork.xml.gz");
 		new NetworkWriter(network).write("totNetwork.xml.gz");
+		if (linksAddedToNetwork != null) {
+			linksAddedToNetwork.addAll(cS.linksToAdd);
+		}
 		return cS.getTransitSchedule();
 	}
+
+	/**
+	 * Writes the stops, the links added to the network and the links of the pNetwork. Together with the original network, this is all {@link #readCheckpoint} needs to restore them.
+	 * 
+	 * @param out
+	 * @param pStopsOnly
+	 * @param linksAddedToNetwork
+	 * @param pNetwork
+	 * @throws IOException
+	 */
+	public static void writeCheckpoint(DataOutputStream out, TransitSchedule pStopsOnly, Collection<Link> linksAddedToNetwork, Network pNetwork) throws IOException {
+		out.writeInt(pStopsOnly.getFacilities().size());
+		for (TransitStopFacility stop : pStopsOnly.getFacilities().values()) {
+			out.writeUTF(stop.getId().toString());
+			out.writeDouble(stop.getCoord().getX());
+			out.writeDouble(stop.getCoord().getY());
+			out.writeBoolean(stop.getIsBlockingLane());
+			out.writeBoolean(stop.getLinkId() != null);
+			if (stop.getLinkId() != null) {
+				out.writeUTF(stop.getLinkId().toString());
+			}
+			out.writeBoolean(stop.getName() != null);
+			if (stop.getName() != null) {
+				out.writeUTF(stop.getName());
+			}
+		}
+
+		out.writeInt(linksAddedToNetwork.size());
+		for (Link link : linksAddedToNetwork) {
+			out.writeUTF(link.getId().toString());
+			for (Node node : new Node[]{link.getFromNode(), link.getToNode()}) {
+				out.writeUTF(node.getId().toString());
+				out.writeDouble(node.getCoord().getX());
+				out.writeDouble(node.getCoord().getY());
+			}
+			out.writeDouble(link.getLength());
+			out.writeDouble(link.getFreespeed());
+			out.writeDouble(link.getCapacity());
+			out.writeDouble(link.getNumberOfLanes());
+			out.writeInt(link.getAllowedModes().size());
+			for (String mode : link.getAllowedModes()) {
+				out.writeUTF(mode);
+			}
+		}
+
+		out.writeInt(pNetwork.getLinks().size());
+		for (Id<Link> linkId : pNetwork.getLinks().keySet()) {
+			out.writeUTF(linkId.toString());
+		}
+	}
+
+	/**
+	 * Adds the links of the checkpoint to the network, creates the pNetwork and returns the stops. The stops are not searched again.
+	 * 
+	 * @param in
+	 * @param network the original network, i.e. without any links added for stops
+	 * @param pConfigGroup
+	 * @param linksAddedToNetwork if not null, the links added to the network are collected in here
+	 * @return
+	 * @throws IOException
+	 */
+	public static TransitSchedule readCheckpoint(DataInputStream in, Network network, PConfigGroup pConfigGroup, Collection<Link> linksAddedToNetwork) throws IOException {
+		TransitSchedule transitSchedule = new TransitScheduleFactoryImpl().createTransitSchedule();
+		int numberOfStops = in.readInt();
+		for (int i = 0; i < numberOfStops; i++) {
+			Id<TransitStopFacility> stopId = Id.create(in.readUTF(), TransitStopFacility.class);
+			Coord stopCoord = new Coord(in.readDouble(), in.readDouble());
+			TransitStopFacility stop = transitSchedule.getFactory().createTransitStopFacility(stopId, stopCoord, in.readBoolean());
+			if (in.readBoolean()) {
+				stop.setLinkId(Id.createLinkId(in.readUTF()));
+			}
+			if (in.readBoolean()) {
+				stop.setName(in.readUTF());
+			}
+			transitSchedule.addStopFacility(stop);
+		}
+
+		NetworkFactory factory = network.getFactory();
+		int numberOfLinks = in.readInt();
+		for (int i = 0; i < numberOfLinks; i++) {
+			Id<Link> linkId = Id.createLinkId(in.readUTF());
+			Node[] nodes = new Node[2];
+			for (int j = 0; j < nodes.length; j++) {
+				Id<Node> nodeId = Id.createNodeId(in.readUTF());
+				Coord nodeCoord = new Coord(in.readDouble(), in.readDouble());
+				nodes[j] = network.getNodes().get(nodeId);
+				if (nodes[j] == null) {
+					nodes[j] = factory.createNode(nodeId, nodeCoord);
+					network.addNode(nodes[j]);
+				}
+			}
+			Link link = factory.createLink(linkId, nodes[0], nodes[1]);
+			link.setLength(in.readDouble());
+			link.setFreespeed(in.readDouble());
+			link.setCapacity(in.readDouble());
+			link.setNumberOfLanes(in.readDouble());
+			int numberOfModes = in.readInt();
+			Set<String> modes = new HashSet<>();
+			for (int j = 0; j < numberOfModes; j++) {
+				modes.add(in.readUTF());
+			}
+			link.setAllowedModes(modes);
+			network.addLink(link);
+			if (linksAddedToNetwork != null) {
+				linksAddedToNetwork.add(link);
+			}
+		}
+
+		int numberOfPLinks = in.readInt();
+		List<Link> pNetworkLinks = new ArrayList<>(numberOfPLinks);
+		for (int i = 0; i < numberOfPLinks; i++) {
+			Id<Link> linkId = Id.createLinkId(in.readUTF());
+			Link link = network.getLinks().get(linkId);
+			if (link == null) {
+				throw new RuntimeException("Link " + linkId + " of the pNetwork is not part of the network. The checkpoint does not match the network of the scenario. Aborting...");
+			}
+			pNetworkLinks.add(link);
+		}
+		createPNetwork(pNetworkLinks, pConfigGroup);
+		pConfigGroup.setPStopTwins(PStopTwins.createFromStopIds(transitSchedule.getFacilities().values()));
+
+		log.info("Restored " + transitSchedule.getFacilities().size() + " paratransit stops, " + numberOfLinks + " links added to the network and " + numberOfPLinks + " pNetwork links from checkpoint");
+		return transitSchedule;
+	}
 	
 	/**
 	 * Creates PStops in two ways. First, if a serviceAreaFile is defined in the config and this file exists, the file is used.
@@ -282,13 +419,25 @@ public final class CreatePStops{
 		for(Link link : this.linksToAdd)
 			this.net.addLink(link);
 
+		createPNetwork(this.pNetworkLinks, this.pConfigGroup);
+		this.pConfigGroup.setPStopTwins(new PStopTwins(this.transitSchedule.getFacilities().values(), this.stopId2TwinId));
+		log.info("Added " + stopsAdded + " additional stops for paratransit services");
+	}
+	
+	/**
+	 * Creates the network used for paratransit routing and sets it in the config group.
+	 * 
+	 * @param pNetworkLinks
+	 * @param pConfigGroup
+	 */
+	private static void createPNetwork(Collection<Link> pNetworkLinks, PConfigGroup pConfigGroup) {
 		Scenario pScenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
-		this.pConfigGroup.setPNetwork(pScenario.getNetwork());
-		Network pNetwork = this.pConfigGroup.getPNetwork();
+		pConfigGroup.setPNetwork(pScenario.getNetwork());
+		Network pNetwork = pConfigGroup.getPNetwork();
 		NetworkFactory pFactory = pNetwork.getFactory();
 
 		//add links to pNetwork
-		for(Link link: this.pNetworkLinks)	{
+		for(Link link: pNetworkLinks)	{
 			Node pFromNode = pNetwork.getNodes().get(link.getFromNode().getId());
 			if(pFromNode == null) {
 				pFromNode = pFactory.createNode(link.getFromNode().getId(), link.getFromNode().getCoord());
@@ -310,7 +459,6 @@ public final class CreatePStops{
 			pLink.setAllowedModes(Collections.singleton(TransportMode.car));
 			pNetwork.addLink(pLink);
 		}
-		log.info("Added " + stopsAdded + " additional stops for paratransit services");
 	}
 	
 	private int addStopOnLink(Link link) {
@@ -411,6 +559,8 @@ public final class CreatePStops{
 				stopBack.setName(Integer.toString(this.transitSchedule.getFacilities().size() + 1));
 				this.transitSchedule.addStopFacility(stopBack);
 				this.linkId2StopFacilityMap.put(wayBack.getId(), stopBack);
+				this.stopId2TwinId.put(stopId, stopIdBack);
+				this.stopId2TwinId.put(stopIdBack, stopId);
 
 				return 2;
 			}
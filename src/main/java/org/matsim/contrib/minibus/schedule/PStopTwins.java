@@ -0,0 +1,123 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.schedule;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+/**
+ * Each paratransit stop is created together with a twin on the link of the opposite direction, the "_A" and the "_B" stop. Holds the twins of all stops, such that the way back of a route
+ * can be found without rebuilding the stop ids.
+ * <p>
+ * The stops are indexed in the order of the paratransit stop schedule.
+ * 
+ * @author manserpa
+ *
+ */
+public final class PStopTwins {
+	
+	private static final String SUFFIX_A = "_A";
+	private static final String SUFFIX_B = "_B";
+	
+	private final Map<Id<TransitStopFacility>, Integer> stopId2Index;
+	private final TransitStopFacility[] stops;
+	private final int[] twinIndex;
+	
+	/**
+	 * @param stops all paratransit stops
+	 * @param stopId2TwinId the twins as created, each pair has to be registered in both directions
+	 */
+	PStopTwins(Collection<TransitStopFacility> stops, Map<Id<TransitStopFacility>, Id<TransitStopFacility>> stopId2TwinId) {
+		this.stopId2Index = new HashMap<>(stops.size() * 2);
+		this.stops = new TransitStopFacility[stops.size()];
+		for (TransitStopFacility stop : stops) {
+			this.stops[this.stopId2Index.size()] = stop;
+			this.stopId2Index.put(stop.getId(), this.stopId2Index.size());
+		}
+		
+		this.twinIndex = new int[this.stops.length];
+		Arrays.fill(this.twinIndex, -1);
+		for (int i = 0; i < this.stops.length; i++) {
+			Id<TransitStopFacility> twinId = stopId2TwinId.get(this.stops[i].getId());
+			if (twinId != null) {
+				this.twinIndex[i] = this.getIndex(twinId);
+			}
+		}
+	}
+	
+	/**
+	 * Finds the twins by the suffix of their ids. Used for stops not created in this run, e.g. restored from a checkpoint.
+	 */
+	static PStopTwins createFromStopIds(Collection<TransitStopFacility> stops) {
+		Map<Id<TransitStopFacility>, TransitStopFacility> stopsById = new HashMap<>();
+		for (TransitStopFacility stop : stops) {
+			stopsById.put(stop.getId(), stop);
+		}
+		
+		Map<Id<TransitStopFacility>, Id<TransitStopFacility>> stopId2TwinId = new HashMap<>();
+		for (TransitStopFacility stop : stops) {
+			String stopId = stop.getId().toString();
+			if (stopId.endsWith(SUFFIX_A)) {
+				Id<TransitStopFacility> twinId = Id.create(stopId.substring(0, stopId.length() - SUFFIX_A.length()) + SUFFIX_B, TransitStopFacility.class);
+				if (stopsById.containsKey(twinId)) {
+					stopId2TwinId.put(stop.getId(), twinId);
+					stopId2TwinId.put(twinId, stop.getId());
+				}
+			}
+		}
+		return new PStopTwins(stops, stopId2TwinId);
+	}
+	
+	/**
+	 * @return The index of the stop or -1, if it is not a paratransit stop
+	 */
+	public int getIndex(Id<TransitStopFacility> stopId) {
+		Integer index = this.stopId2Index.get(stopId);
+		return index == null ? -1 : index;
+	}
+	
+	/**
+	 * @return The index of the twin or -1, if the stop has none
+	 */
+	public int getTwinIndex(int stopIndex) {
+		return stopIndex < 0 ? -1 : this.twinIndex[stopIndex];
+	}
+	
+	/**
+	 * @return The stop on the opposite direction or <code>null</code>, if the stop has none
+	 */
+	public TransitStopFacility getTwin(TransitStopFacility stop) {
+		int twinIndex = this.getTwinIndex(this.getIndex(stop.getId()));
+		return twinIndex < 0 ? null : this.stops[twinIndex];
+	}
+	
+	/**
+	 * @return The id of the stop on the opposite direction or <code>null</code>, if the stop has none
+	 */
+	public Id<TransitStopFacility> getTwinId(Id<TransitStopFacility> stopId) {
+		int twinIndex = this.getTwinIndex(this.getIndex(stopId));
+		return twinIndex < 0 ? null : this.stops[twinIndex].getId();
+	}
+}
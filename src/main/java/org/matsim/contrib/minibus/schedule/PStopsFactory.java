@@ -19,10 +19,16 @@
 
 package org.matsim.contrib.minibus.schedule;
 
+import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
 /**
  * Creates the transit stops valid for paratransit. Currently, only a replacement for a configurable version.
  * 
@@ -34,5 +40,17 @@ public final class PStopsFactory {
 	public static TransitSchedule createPStops(Network network, PConfigGroup pConfig, TransitSchedule transitSchedule){
 		return CreatePStops.createPStops(network, pConfig, transitSchedule);
 	}
+
+	public static TransitSchedule createPStops(Network network, PConfigGroup pConfig, TransitSchedule transitSchedule, Collection<Link> linksAddedToNetwork){
+		return CreatePStops.createPStops(network, pConfig, transitSchedule, linksAddedToNetwork);
+	}
+
+	public static void writeCheckpoint(DataOutputStream out, TransitSchedule pStopsOnly, Collection<Link> linksAddedToNetwork, Network pNetwork) throws IOException {
+		CreatePStops.writeCheckpoint(out, pStopsOnly, linksAddedToNetwork, pNetwork);
+	}
+
+	public static TransitSchedule readCheckpoint(DataInputStream in, Network network, PConfigGroup pConfig, Collection<Link> linksAddedToNetwork) throws IOException {
+		return CreatePStops.readCheckpoint(in, network, pConfig, linksAddedToNetwork);
+	}
 	
 }
@@ -28,12 +28,11 @@ import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
 import org.matsim.api.core.v01.events.handler.PersonLeavesVehicleEventHandler;
 import org.matsim.api.core.v01.events.handler.TransitDriverStartsEventHandler;
 import org.matsim.api.core.v01.network.Network;
-import org.matsim.contrib.minibus.PConfigGroup.PVehicleSettings;
+import org.matsim.contrib.minibus.PVehicleTypeRegistry;
 import org.matsim.core.controler.events.AfterMobsimEvent;
 import org.matsim.core.controler.listener.AfterMobsimListener;
 import org.matsim.vehicles.Vehicle;
 
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -58,11 +57,11 @@ public final class OperatorCostCollectorHandler implements TransitDriverStartsEv
 	private HashMap<Id<Vehicle>, OperatorCostContainer> vehId2OperatorCostContainer = new HashMap<>();
 	
 	// in the new code, the vehicle costs are depending on the vehicle type
-	private Collection<PVehicleSettings> pVehicleSettings;
+	private final PVehicleTypeRegistry pVehicleTypes;
 
-	public OperatorCostCollectorHandler(String pIdentifier, Collection<PVehicleSettings> pVehicleSettings){
+	public OperatorCostCollectorHandler(String pIdentifier, PVehicleTypeRegistry pVehicleTypes){
 		this.pIdentifier = pIdentifier;
-		this.pVehicleSettings = pVehicleSettings;
+		this.pVehicleTypes = pVehicleTypes;
 	}
 	
 	public void init(Network network){
@@ -84,19 +83,10 @@ public final class OperatorCostCollectorHandler implements TransitDriverStartsEv
 	
 	@Override
 	public void handleEvent(TransitDriverStartsEvent event) {
-		double costPerVehicleAndDay = 0.0;
-		double expensesPerMeter = 0.0;
-		double expensesPerSecond = 0.0;
+		int typeIndex = this.pVehicleTypes.getIndex(event.getVehicleId());
 		
-		for (PVehicleSettings pVS : this.pVehicleSettings) {
-            if (event.getVehicleId().toString().contains(pVS.getPVehicleName())) {
-            	costPerVehicleAndDay = pVS.getCostPerVehicleAndDay();
-            	expensesPerMeter = pVS.getCostPerKilometer() / 1000.0;
-            	expensesPerSecond = pVS.getCostPerHour() / 3600.0;
-            }
-        }
-		
-		this.vehId2OperatorCostContainer.put(event.getVehicleId(), new OperatorCostContainer(costPerVehicleAndDay, expensesPerMeter, expensesPerSecond));
+		this.vehId2OperatorCostContainer.put(event.getVehicleId(), new OperatorCostContainer(this.pVehicleTypes.getCostPerVehicleAndDay(typeIndex), 
+				this.pVehicleTypes.getCostPerMeter(typeIndex), this.pVehicleTypes.getCostPerSecond(typeIndex)));
 		this.vehId2OperatorCostContainer.get(event.getVehicleId()).handleTransitDriverStarts(event);
 	}
 
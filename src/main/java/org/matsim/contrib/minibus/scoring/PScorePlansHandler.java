@@ -19,70 +19,175 @@
 
 package org.matsim.contrib.minibus.scoring;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.fare.StageContainer;
 import org.matsim.contrib.minibus.fare.StageContainerHandler;
 import org.matsim.contrib.minibus.fare.TicketMachineI;
+import org.matsim.contrib.minibus.operator.Operator;
+import org.matsim.contrib.minibus.operator.PPlan;
 import org.matsim.vehicles.Vehicle;
 
 /**
- * Scores paratransit vehicles
+ * Scores paratransit plans. The vehicles are mapped to the slot of their plan when the schedule is built, see {@link #setPlans(Collection)}.
+ * Incomes and expenses of all vehicles of a plan are collected in that slot while the events are handled.
  * 
- * @author aneumann
+ * @author aneumann extended by manserpa:
+ *  - incorporated a subsidy approach
+ *  - collect per plan instead of per vehicle
  *
  */
 public final class PScorePlansHandler implements StageContainerHandler, OperatorCostContainerHandler{
 	
-	@SuppressWarnings("unused")
 	private final static Logger log = Logger.getLogger(PScorePlansHandler.class);
 	
+	public static final int UNKNOWN = -1;
+	
 	private final TicketMachineI ticketMachine;
-	private Map<Id<Vehicle>, PScoreContainer> vehicleId2ScoreMap = new ConcurrentHashMap<>();
+	private Map<Id<Vehicle>, Integer> vehicleId2Slot = new HashMap<>();
+	private Map<PPlan, Integer> plan2Slot = new IdentityHashMap<>();
+	
+	private int[] servedTrips = new int[0];
+	private int[] numberOfSubsidizedTrips = new int[0];
+	private double[] costs = new double[0];
+	private double[] earnings = new double[0];
+	private double[] totalMeterDriven = new double[0];
+	private double[] totalTimeDriven = new double[0];
+	private double[] passengerKilometer = new double[0];
+	private double[] amountOfSubsidies = new double[0];
+	
+	private int unknownVehicleWarnCount = 0;
 
 	public PScorePlansHandler(TicketMachineI ticketMachine){
 		this.ticketMachine = ticketMachine;
 	}
 	
-	public Map<Id<Vehicle>, PScoreContainer> getDriverId2ScoreMap() {
-		return this.vehicleId2ScoreMap;
+	/**
+	 * Assigns one slot to each plan of the operators and maps the vehicles of the plans to it. To be called whenever the schedule of the operators is built for the mobsim. Clears all slots.
+	 * 
+	 * @param operators
+	 */
+	public void setPlans(Collection<Operator> operators) {
+		Map<Id<Vehicle>, Integer> vehicleId2Slot = new HashMap<>();
+		Map<PPlan, Integer> plan2Slot = new IdentityHashMap<>();
+		for (Operator operator : operators) {
+			for (PPlan plan : operator.getAllPlans()) {
+				Integer slot = plan2Slot.size();
+				plan2Slot.put(plan, slot);
+				for (Id<Vehicle> vehicleId : plan.getVehicleIds()) {
+					vehicleId2Slot.put(vehicleId, slot);
+				}
+			}
+		}
+		this.vehicleId2Slot = vehicleId2Slot;
+		this.plan2Slot = plan2Slot;
+		this.allocateSlots(plan2Slot.size());
+	}
+	
+	/**
+	 * @param plan
+	 * @return The slot of the plan or {@link #UNKNOWN}, if the plan was not part of the schedule.
+	 */
+	public int getSlot(PPlan plan) {
+		Integer slot = this.plan2Slot.get(plan);
+		return slot == null ? UNKNOWN : slot;
 	}
 
 	@Override
 	public void handleFareContainer(StageContainer fareContainer) {
-		if (this.vehicleId2ScoreMap.get(fareContainer.getVehicleId()) == null) {
-			this.vehicleId2ScoreMap.put(fareContainer.getVehicleId(), new PScoreContainer(fareContainer.getVehicleId(), this.ticketMachine));
-		}
-
-		try {
-			this.vehicleId2ScoreMap.get(fareContainer.getVehicleId()).handleStageContainer(fareContainer);
-		} catch (Exception e) {
-			log.warn("Got a null pointer here...");
-			log.warn(e.getMessage());
-			log.warn("FareContainer " + fareContainer);
-			log.warn("vehicleMap " + this.vehicleId2ScoreMap);
-			e.printStackTrace();
+		int slot = this.getSlot(fareContainer.getVehicleId());
+		if (slot == UNKNOWN) {
+			return;
 		}
+		
+		this.servedTrips[slot]++;
+		this.amountOfSubsidies[slot] += this.ticketMachine.getAmountOfSubsidies(fareContainer);
+		if(this.ticketMachine.isSubsidized(fareContainer))
+			this.numberOfSubsidizedTrips[slot]++;
+		this.passengerKilometer[slot] += this.ticketMachine.getPassengerDistanceKilometer(fareContainer);
+		this.earnings[slot] += this.ticketMachine.getFare(fareContainer);
 	}
 
-    @Override
+	@Override
 	public void handleOperatorCostContainer(OperatorCostContainer operatorCostContainer) {
-		if (this.vehicleId2ScoreMap.get(operatorCostContainer.getVehicleId()) == null) {
-			this.vehicleId2ScoreMap.put(operatorCostContainer.getVehicleId(), new PScoreContainer(operatorCostContainer.getVehicleId(), this.ticketMachine));
+		if(operatorCostContainer.isStuck()) {
+			log.warn("Vehicle with ID " + operatorCostContainer.getVehicleId().toString() + " is stuck.");
+			return;
 		}
+		
+		int slot = this.getSlot(operatorCostContainer.getVehicleId());
+		if (slot == UNKNOWN) {
+			return;
+		}
+		
+		this.totalMeterDriven[slot] += operatorCostContainer.getTotalMeterDriven();
+		this.totalTimeDriven[slot] += operatorCostContainer.getTotalTimeDriven();
+		this.costs[slot] += operatorCostContainer.getRunningCostDistance();
+		this.costs[slot] += operatorCostContainer.getRunningCostTime();
+	}
+	
+	private int getSlot(Id<Vehicle> vehicleId) {
+		Integer slot = this.vehicleId2Slot.get(vehicleId);
+		if (slot == null) {
+			if (this.unknownVehicleWarnCount < 10) {
+				log.warn("Vehicle " + vehicleId + " does not belong to any plan of the current schedule. Ignoring its incomes and expenses.");
+				this.unknownVehicleWarnCount++;
+				if (this.unknownVehicleWarnCount == 10) {
+					log.warn("Future occurences of this logging statement are suppressed.");
+				}
+			}
+			return UNKNOWN;
+		}
+		return slot;
+	}
 
-		if(!operatorCostContainer.isStuck())
-			this.vehicleId2ScoreMap.get(operatorCostContainer.getVehicleId()).handleOperatorCostContainer(operatorCostContainer);
-		else
-			log.warn("Vehicle with ID " + operatorCostContainer.getVehicleId().toString() + " is stuck.");
-			
+	public double getTotalRevenue(int slot){
+		return slot == UNKNOWN ? 0.0 : this.earnings[slot] - this.costs[slot];
+	}
+	
+	public int getTripsServed(int slot){
+		return slot == UNKNOWN ? 0 : this.servedTrips[slot];
+	}
+	
+	public double getTotalMeterDriven(int slot)	{
+		return slot == UNKNOWN ? 0.0 : this.totalMeterDriven[slot];
+	}
+	
+	public double getTotalTimeDriven(int slot)	{
+		return slot == UNKNOWN ? 0.0 : this.totalTimeDriven[slot];
+	}
+	
+	public int getNumberOfSubsidizedTrips(int slot)	{
+		return slot == UNKNOWN ? 0 : this.numberOfSubsidizedTrips[slot];
+	}
+	
+	public double getAmountOfSubsidies(int slot)	{
+		return slot == UNKNOWN ? 0.0 : this.amountOfSubsidies[slot];
+	}
+	
+	public double getTotalPassengerKilometer(int slot)	{
+		return slot == UNKNOWN ? 0.0 : this.passengerKilometer[slot];
 	}
 
 	@Override
 	public void reset() {
-		this.vehicleId2ScoreMap = new ConcurrentHashMap<>();
+		// keep the plans of the schedule, it is built before the handlers are reset
+		this.allocateSlots(this.plan2Slot.size());
+	}
+	
+	private void allocateSlots(int numberOfSlots) {
+		this.servedTrips = new int[numberOfSlots];
+		this.numberOfSubsidizedTrips = new int[numberOfSlots];
+		this.costs = new double[numberOfSlots];
+		this.earnings = new double[numberOfSlots];
+		this.totalMeterDriven = new double[numberOfSlots];
+		this.totalTimeDriven = new double[numberOfSlots];
+		this.passengerKilometer = new double[numberOfSlots];
+		this.amountOfSubsidies = new double[numberOfSlots];
 	}
-}
\ No newline at end of file
+}
@@ -58,6 +58,7 @@ final class ActivityLocationsParatransitUser implements IterationEndsListener {
     private final String pIdentifier;
 	private final double gridSize;
 	private boolean firstIteration = true;
+	@Inject private PPhaseStats phaseStats;
 	
 	private Set<String> actTypes = new TreeSet<>();
 	private HashMap<String, GridNode> gridNodeId2GridNode = new HashMap<>();
@@ -74,6 +75,7 @@ final class ActivityLocationsParatransitUser implements IterationEndsListener {
 
 	@Override
 	public void notifyIterationEnds(IterationEndsEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.activityLocations");
 
         parsePopulation(event.getServices().getScenario().getPopulation());
 
@@ -86,6 +88,7 @@ final class ActivityLocationsParatransitUser implements IterationEndsListener {
 			// write it somewhere
 			writeResults(event.getServices().getControlerIO().getIterationFilename(event.getIteration(), outNameIdentifier));
 		}
+		phase.end();
 	}
 
 	private void parsePopulation(Population population) {
@@ -37,6 +37,7 @@ import org.matsim.core.controler.listener.StartupListener;
 import org.matsim.core.utils.io.IOUtils;
 import org.matsim.core.utils.io.MatsimJaxbXmlWriter;
 
+import javax.inject.Inject;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
@@ -72,6 +73,7 @@ final class GexfPStat extends MatsimJaxbXmlWriter implements StartupListener, It
 	private final String pIdentifier;
 	private final int getWriteGexfStatsInterval;
 	private final boolean writeOperatorInDetail;
+	@Inject private PPhaseStats phaseStats;
 
 	private HashMap<Id<Link>, XMLEdgeContent> edgeMap;
 	private HashMap<Id<Link>, XMLAttvaluesContent> linkAttributeValueContentMap;
@@ -140,6 +142,7 @@ final class GexfPStat extends MatsimJaxbXmlWriter implements StartupListener, It
 
 	@Override
 	public void notifyStartup(StartupEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.gexfPStat");
 		if (this.getWriteGexfStatsInterval > 0) {
             this.addNetworkAsLayer(event.getServices().getScenario().getNetwork(), 0);
 			this.createAttValues();
@@ -154,10 +157,12 @@ final class GexfPStat extends MatsimJaxbXmlWriter implements StartupListener, It
 			this.linkId2LineId2CountsFromLastIteration = new HashMap<>();
 			this.linkId2VehCountsFromLastIteration = new HashMap<>();
 		}
+		phase.end();
 	}
 
 	@Override
 	public void notifyIterationEnds(IterationEndsEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.gexfPStat");
 		if (this.getWriteGexfStatsInterval > 0) {
 			this.addValuesToGexf(event.getIteration(), this.globalPaxHandler, this.operatorHandler);
 			if ((event.getIteration() % this.getWriteGexfStatsInterval == 0) ) {
@@ -168,6 +173,7 @@ final class GexfPStat extends MatsimJaxbXmlWriter implements StartupListener, It
 				}
 			}			
 		}		
+		phase.end();
 	}
 
 	@Override
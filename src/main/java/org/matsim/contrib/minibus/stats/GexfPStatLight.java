@@ -83,6 +83,7 @@ final class GexfPStatLight extends MatsimJaxbXmlWriter implements StartupListene
 	private CountPVehHandler vehHandler;
 	private final String pIdentifier;
 	private final int getWriteGexfStatsInterval;
+	@Inject private PPhaseStats phaseStats;
 
 	private HashMap<Id<Link>, XMLEdgeContent> edgeMap;
 	private HashMap<Id<Link>, XMLAttvaluesContent> linkAttributeValueContentMap;
@@ -130,6 +131,7 @@ final class GexfPStatLight extends MatsimJaxbXmlWriter implements StartupListene
 
 	@Override
 	public void notifyStartup(StartupEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.gexfPStatLight");
 		if (this.getWriteGexfStatsInterval > 0) {
             this.addNetworkAsLayer(event.getServices().getScenario().getNetwork(), 0);
 			this.createAttValues();
@@ -140,16 +142,19 @@ final class GexfPStatLight extends MatsimJaxbXmlWriter implements StartupListene
 			event.getServices().getEvents().addHandler(this.vehHandler);
 			this.linkId2VehCountsFromLastIteration = new HashMap<>();
 		}
+		phase.end();
 	}
 
 	@Override
 	public void notifyIterationEnds(IterationEndsEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.gexfPStatLight");
 		if (this.getWriteGexfStatsInterval > 0) {
 			this.addValuesToGexf(event.getIteration());
 			if ((event.getIteration() % this.getWriteGexfStatsInterval == 0) ) {
 				this.write(event.getServices().getControlerIO().getIterationFilename(event.getIteration(), GexfPStatLight.FILENAME));
 			}			
 		}		
+		phase.end();
 	}
 
 	@Override
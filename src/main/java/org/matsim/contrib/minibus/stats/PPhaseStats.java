@@ -0,0 +1,203 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.minibus.stats;
+
+import org.apache.log4j.Logger;
+import org.matsim.contrib.minibus.PConstants;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Collects the wall time, an estimate of the memory allocated and the number of calls of the phases of the paratransit iteration loop, as well as some counters.
+ * Everything collected is written to pStats/pPhaseStats.csv once per iteration, one line per phase and counter. This includes the output of the stats listeners, see {@link PStatsModule}.
+ * <p>
+ * The allocation is measured per thread. It covers the thread running the phase and any work reported by {@link Phase#addAllocatedBytes(long)}.
+ * Phases running in parallel, e.g. the replanning of each strategy, are summed up over all threads. Phases running in the background are reported in the iteration they finish.
+ * 
+ * @author manserpa
+ *
+ */
+public final class PPhaseStats {
+	
+	private final static Logger log = Logger.getLogger(PPhaseStats.class);
+	
+	public static final String FILENAME = "pPhaseStats.csv";
+	private static final String SEPARATOR = ";";
+	private static final com.sun.management.ThreadMXBean threadMXBean = getThreadMXBeanIfAllocationIsSupported();
+	
+	// name -> number of calls, nanoseconds, bytes allocated
+	private final Map<String, long[]> phases = new LinkedHashMap<>();
+	private final Map<String, long[]> counters = new LinkedHashMap<>();
+	private BufferedWriter writer = null;
+	
+	public synchronized void init(String outputDir) {
+		new File(outputDir + PConstants.statsOutputFolder).mkdir();
+		this.writer = IOUtils.getBufferedWriter(outputDir + PConstants.statsOutputFolder + FILENAME);
+		try {
+			this.writer.write("iteration" + SEPARATOR + "type" + SEPARATOR + "name" + SEPARATOR + "count" + SEPARATOR + "wallTimeMs" + SEPARATOR + "allocatedMB"); this.writer.newLine();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (threadMXBean == null) {
+			log.warn("Measuring the memory allocated per thread is not supported by this JVM. Will write no allocation estimates.");
+		}
+	}
+	
+	/**
+	 * Starts measuring a phase. The phase is added to the stats when {@link Phase#end()} is called.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public Phase startPhase(String name) {
+		return new Phase(name);
+	}
+	
+	public synchronized void increment(String name) {
+		this.add(name, 1);
+	}
+	
+	public synchronized void add(String name, long value) {
+		long[] counter = this.counters.get(name);
+		if (counter == null) {
+			counter = new long[1];
+			this.counters.put(name, counter);
+		}
+		counter[0] += value;
+	}
+	
+	private synchronized void addPhase(String name, long nanos, long bytes) {
+		long[] phase = this.phases.get(name);
+		if (phase == null) {
+			phase = new long[3];
+			this.phases.put(name, phase);
+		}
+		phase[0]++;
+		phase[1] += nanos;
+		phase[2] += bytes;
+	}
+	
+	/**
+	 * Writes everything collected since the last call and starts over.
+	 * 
+	 * @param iteration
+	 */
+	public synchronized void writeIteration(int iteration) {
+		if (this.writer == null) {
+			return;
+		}
+		try {
+			for (Entry<String, long[]> phase : this.phases.entrySet()) {
+				String allocatedMB = threadMXBean == null ? "" : Double.toString(phase.getValue()[2] / 1024.0 / 1024.0);
+				this.writer.write(iteration + SEPARATOR + "phase" + SEPARATOR + phase.getKey() + SEPARATOR + phase.getValue()[0] + SEPARATOR + (phase.getValue()[1] / 1000000.0) + SEPARATOR + allocatedMB);
+				this.writer.newLine();
+			}
+			for (Entry<String, long[]> counter : this.counters.entrySet()) {
+				this.writer.write(iteration + SEPARATOR + "counter" + SEPARATOR + counter.getKey() + SEPARATOR + counter.getValue()[0] + SEPARATOR + SEPARATOR);
+				this.writer.newLine();
+			}
+			this.writer.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.phases.clear();
+		this.counters.clear();
+	}
+	
+	public synchronized void close() {
+		if (this.writer != null) {
+			try {
+				this.writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			this.writer = null;
+		}
+	}
+	
+	/**
+	 * @return The bytes allocated by the current thread so far, 0 if not supported
+	 */
+	public static long getAllocatedBytesOfCurrentThread() {
+		if (threadMXBean == null) {
+			return 0;
+		}
+		return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * @return The CPU time of the current thread in nanoseconds, the wall time if the CPU time cannot be measured by this JVM
+	 */
+	public static long getCpuTimeOfCurrentThread() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean.isCurrentThreadCpuTimeSupported()) {
+			long cpuTime = bean.getCurrentThreadCpuTime();
+			if (cpuTime >= 0) {
+				return cpuTime;
+			}
+		}
+		return System.nanoTime();
+	}
+	
+	private static com.sun.management.ThreadMXBean getThreadMXBeanIfAllocationIsSupported() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			return (com.sun.management.ThreadMXBean) bean;
+		}
+		return null;
+	}
+	
+	/**
+	 * A phase being measured. Has to be ended by the thread that started it.
+	 */
+	public final class Phase {
+		
+		private final String name;
+		private final long startTime = System.nanoTime();
+		private final long allocatedBytesAtStart = getAllocatedBytesOfCurrentThread();
+		private long allocatedBytesOfOtherThreads = 0;
+		
+		private Phase(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * Adds bytes allocated by other threads working for this phase.
+		 * 
+		 * @param bytes
+		 */
+		public synchronized void addAllocatedBytes(long bytes) {
+			this.allocatedBytesOfOtherThreads += bytes;
+		}
+		
+		public synchronized void end() {
+			long allocatedBytes = getAllocatedBytesOfCurrentThread() - this.allocatedBytesAtStart + this.allocatedBytesOfOtherThreads;
+			PPhaseStats.this.addPhase(this.name, System.nanoTime() - this.startTime, allocatedBytes);
+		}
+	}
+}
@@ -45,6 +45,9 @@ public final class PStatsModule extends AbstractModule {
 	public void install() {
 		PConfigGroup pConfig = ConfigUtils.addOrGetModule(this.getConfig(), PConfigGroup.class ) ;
 		
+		// shared by the paratransit box and the stats listeners below, which time their output with it
+		this.bind(PPhaseStats.class).asEagerSingleton();
+		
 		this.addControlerListenerBinding().to( PStatsOverview.class );
 		this.addControlerListenerBinding().toInstance( new POperatorLogger() );
 		this.addControlerListenerBinding().toInstance( new GexfPStat(false, pConfig) );
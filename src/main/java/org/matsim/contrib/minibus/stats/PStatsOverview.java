@@ -129,6 +129,7 @@ final class PStatsOverview implements StartupListener, IterationEndsListener, Sh
 	private int minIteration = 0;
 	@Inject private POperators operators;
 	@Inject private PConfigGroup pConfig;
+	@Inject private PPhaseStats phaseStats;
 
 	private RecursiveStatsContainer statsContainer;
 	private RecursiveStatsApproxContainer statsApproxContainer;
@@ -138,6 +139,7 @@ final class PStatsOverview implements StartupListener, IterationEndsListener, Sh
 
 	@Override
 	public void notifyStartup(final StartupEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.pStatsOverview");
 		
 		MatsimServices controler = event.getServices();
 		
@@ -161,10 +163,12 @@ final class PStatsOverview implements StartupListener, IterationEndsListener, Sh
 		this.history = new double[29][iterations+1];
 		this.statsContainer = new RecursiveStatsContainer();
 		this.statsApproxContainer = new RecursiveStatsApproxContainer(0.1, 10);
+		phase.end();
 	}
 
 	@Override
 	public void notifyIterationEnds(final IterationEndsEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.pStatsOverview");
 		if(this.pConfig.getWriteStatsInterval() > 0){
 			
 			PStatsOverviewDataContainer pStats = new PStatsOverviewDataContainer();
@@ -394,6 +398,7 @@ final class PStatsOverview implements StartupListener, IterationEndsListener, Sh
 				}
 			}
 		}
+		phase.end();
 	}
 
 	private void addSeriesToPlot(int index, XYLineChart xyLineChart, double[] iterations, int series) {
@@ -32,6 +32,7 @@ import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.contrib.minibus.PConstants;
+import org.matsim.contrib.minibus.stats.PPhaseStats;
 import org.matsim.core.controler.events.IterationEndsEvent;
 import org.matsim.core.controler.events.IterationStartsEvent;
 import org.matsim.core.controler.events.StartupEvent;
@@ -57,6 +58,7 @@ public final class PAnalysisManager implements StartupListener, IterationStartsL
 	private final HashMap<String, BufferedWriter> pAnalyis2Writer = new HashMap<>();
 	private boolean firstIteration = true;
 	@Inject private LineId2PtMode lineSetter;
+	@Inject private PPhaseStats phaseStats;
 
 	public PAnalysisManager(PConfigGroup pConfig){
 		log.info("enabled");
@@ -64,6 +66,7 @@ public final class PAnalysisManager implements StartupListener, IterationStartsL
 	}
 	@Override
 	public void notifyStartup(StartupEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.analysis");
 		// create all analyzes
 		this.pAnalyzesList.add(new CountTripsPerMode());
 		this.pAnalyzesList.add(new CountVehPerMode());
@@ -88,6 +91,7 @@ public final class PAnalysisManager implements StartupListener, IterationStartsL
 		for (PAnalysisModule ana : this.pAnalyzesList) {
 			event.getServices().getEvents().addHandler(ana);
 		}
+		phase.end();
 	}
 
 	@Override
@@ -99,6 +103,7 @@ public final class PAnalysisManager implements StartupListener, IterationStartsL
 
 	@Override
 	public void notifyIterationEnds(IterationEndsEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.analysis");
 		if (this.firstIteration) {
 			// create the output folder for this module
 			String outFilename = event.getServices().getControlerIO().getOutputPath() + PConstants.statsOutputFolder + PAnalysisManager.class.getSimpleName() + "/";
@@ -132,6 +137,7 @@ public final class PAnalysisManager implements StartupListener, IterationStartsL
 				e.printStackTrace();
 			}
 		}
+		phase.end();
 	}
 
 	private void updateLineId2ptModeMap(TransitSchedule transitSchedule) {
@@ -33,6 +33,7 @@ import org.matsim.contrib.minibus.PConfigGroup;
 import org.matsim.contrib.minibus.operator.Operator;
 import org.matsim.contrib.minibus.operator.POperators;
 import org.matsim.contrib.minibus.operator.PPlan;
+import org.matsim.contrib.minibus.stats.PPhaseStats;
 import org.matsim.core.controler.MatsimServices;
 import org.matsim.core.controler.events.IterationEndsEvent;
 import org.matsim.core.controler.events.ShutdownEvent;
@@ -70,9 +71,11 @@ public final class POperatorLogger implements StartupListener, IterationEndsList
 
 	@Inject private POperators pBox;
 	@Inject private PConfigGroup pConfig;
+	@Inject private PPhaseStats phaseStats;
 
 	@Override
 	public void notifyStartup(final StartupEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.operatorLogger");
 		MatsimServices controler = event.getServices();
 		
 		if(this.pConfig.getLogOperators()){
@@ -86,10 +89,12 @@ public final class POperatorLogger implements StartupListener, IterationEndsList
 		} else {
 			this.pOperatorLoggerWriter = null;
 		}		
+		phase.end();
 	}
 
 	@Override
 	public void notifyIterationEnds(final IterationEndsEvent event) {
+		PPhaseStats.Phase phase = this.phaseStats.startPhase("statsOutput.operatorLogger");
 		if(this.pConfig.getLogOperators()){
 			
 			// get operators
@@ -182,6 +187,7 @@ public final class POperatorLogger implements StartupListener, IterationEndsList
 				e.printStackTrace();
 			}
 		}
+		phase.end();
 	}
 
 	@Override